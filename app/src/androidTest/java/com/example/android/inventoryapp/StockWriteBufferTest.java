@@ -0,0 +1,213 @@
+package com.example.android.inventoryapp;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract;
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductProvider;
+import com.example.android.inventoryapp.data.ProductTestData;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instrumentation test of the flushes of {@link StockWriteBuffer}, against a provider that can
+ * fail the next write of the pending sales.
+ */
+public class StockWriteBufferTest extends ProviderTestCase2<StockWriteBufferTest.FlakyProvider> {
+
+    /**
+     * Product provider that throws on the next sale of the pending sales once told to, either
+     * before or after committing it.
+     */
+    public static class FlakyProvider extends ProductProvider {
+
+        final CountDownLatch mFailed = new CountDownLatch(1);
+        volatile boolean mFailNext;
+        volatile boolean mCommitBeforeFailing;
+
+        @Override
+        public Bundle call(@NonNull String method, @Nullable String arg,
+                           @Nullable Bundle extras) {
+            if (ProductEntry.METHOD_SELL_ALL.equals(method) && mFailNext) {
+                mFailNext = false;
+                if (mCommitBeforeFailing) {
+                    super.call(method, arg, extras);
+                }
+                mFailed.countDown();
+                throw new IllegalStateException("Injected failure");
+            }
+            return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Counts the flushes and keeps the quantities written last.
+     */
+    private static class FlushListener implements StockWriteBuffer.Listener {
+
+        final CountDownLatch mFlushed = new CountDownLatch(1);
+        volatile Map<Long, Integer> mQuantities;
+
+        @Override
+        public void onPendingSalesChanged(Set<Long> ids) {
+        }
+
+        @Override
+        public void onSalesFlushed(Map<Long, Integer> quantities) {
+            mQuantities = quantities;
+            mFlushed.countDown();
+        }
+    }
+
+    private File mJournalDirectory;
+    private StockWriteBuffer mStockWriteBuffer;
+
+    public StockWriteBufferTest() {
+        super(FlakyProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournalDirectory = new File(getContext().getCacheDir(), "test_stock_journal");
+        deleteJournal();
+        mStockWriteBuffer = new StockWriteBuffer(getMockContentResolver(), mJournalDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteJournal();
+        super.tearDown();
+    }
+
+    public void testFailedFlushIsWrittenByNextFlush() throws InterruptedException {
+        long id = insertProduct(5);
+        getProvider().mFailNext = true;
+        FlushListener listener = new FlushListener();
+        sellOnMainThread(listener, id);
+
+        assertTrue(getProvider().mFailed.await(5, TimeUnit.SECONDS));
+        // The second sale goes to a new segment, the failed one must not be lost with it.
+        sellOnMainThread(null, id);
+
+        assertTrue(listener.mFlushed.await(10, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(3), listener.mQuantities.get(id));
+        assertEquals(3, queryQuantity(id));
+        assertEquals(0, mStockWriteBuffer.getPendingSales(id));
+        assertEquals(0, countSegments());
+    }
+
+    public void testFailedFlushThatCommittedIsNotSoldAgain() throws InterruptedException {
+        long id = insertProduct(5);
+        getProvider().mFailNext = true;
+        getProvider().mCommitBeforeFailing = true;
+        FlushListener listener = new FlushListener();
+        sellOnMainThread(listener, id);
+
+        assertTrue(getProvider().mFailed.await(5, TimeUnit.SECONDS));
+        assertTrue(listener.mFlushed.await(10, TimeUnit.SECONDS));
+        // The retry sent the committed sale again, the provider skipped it.
+        assertFalse(listener.mQuantities.containsKey(id));
+        assertEquals(4, queryQuantity(id));
+        assertEquals(0, mStockWriteBuffer.getPendingSales(id));
+        assertEquals(0, countSegments());
+    }
+
+    public void testSegmentKeptAfterCommitIsNotSoldAgain() throws Exception {
+        long id = insertProduct(5);
+        FlushListener listener = new FlushListener();
+        sellOnMainThread(listener, id);
+        assertTrue(listener.mFlushed.await(5, TimeUnit.SECONDS));
+        assertEquals(4, queryQuantity(id));
+
+        // The process died after the commit, before segment 1, the first of the journal, was
+        // deleted.
+        FileOutputStream segment = new FileOutputStream(new File(mJournalDirectory, "1"));
+        try {
+            segment.write((id + " 1\n").getBytes("UTF-8"));
+        } finally {
+            segment.close();
+        }
+
+        final FlushListener recoveryListener = new FlushListener();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mStockWriteBuffer = new StockWriteBuffer(getMockContentResolver(),
+                        mJournalDirectory);
+                mStockWriteBuffer.addListener(recoveryListener);
+            }
+        });
+
+        assertTrue(recoveryListener.mFlushed.await(5, TimeUnit.SECONDS));
+        assertEquals(4, queryQuantity(id));
+        assertEquals(0, mStockWriteBuffer.getPendingSales(id));
+        assertEquals(0, countSegments());
+    }
+
+    private void sellOnMainThread(final StockWriteBuffer.Listener listener, final long id) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null) {
+                    mStockWriteBuffer.addListener(listener);
+                }
+                assertTrue(mStockWriteBuffer.sell(id, 5));
+            }
+        });
+    }
+
+    private long insertProduct(int quantity) {
+        return ContentUris.parseId(getMockContentResolver().insert(ProductEntry.CONTENT_URI,
+                ProductTestData.createProduct("Tea", 10, quantity)));
+    }
+
+    private int queryQuantity(long id) {
+        Uri uri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+        Cursor cursor = getMockContentResolver().query(uri,
+                new String[] { ProductEntry.QUANTITY }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+    * Counts the journal segments, leaving out the sequence file.
+    */
+    private int countSegments() {
+        String[] segments = mJournalDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.matches("[0-9]+");
+            }
+        });
+        assertNotNull(segments);
+        return segments.length;
+    }
+
+    private void deleteJournal() {
+        File[] segments = mJournalDirectory.listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+        mJournalDirectory.delete();
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.android.inventoryapp.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sync server of the tests, answering the exchanges of {@link ProductSyncEngine} in process.
+ * The server version of a product is the sequence number of its latest change, the pull token
+ * the sequence number of the latest change pulled. Exchanges can be made to fail.
+ */
+class InProcessSyncServer implements SyncTransport {
+
+    // The latest change of every product, deleted ones included.
+    private final Map<String, SyncChange> mProducts = new HashMap<>();
+    // The global ID of the latest change of every product, by sequence number.
+    private final TreeMap<Long, String> mChanges = new TreeMap<>();
+    private long mSequence;
+    private int mExchangesBeforeFailure = -1;
+
+    /**
+     * Makes the exchanges after the next count ones fail.
+     */
+    void failAfter(int count) {
+        mExchangesBeforeFailure = count;
+    }
+
+    void put(String globalId, String name, int quantity) {
+        store(new SyncChange(globalId, 0, name, 10, quantity, "+3670",
+                System.currentTimeMillis()));
+    }
+
+    void delete(String globalId) {
+        store(SyncChange.deletion(globalId, 0, System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the product, or null if the server has none or it is deleted.
+     */
+    SyncChange get(String globalId) {
+        SyncChange change = mProducts.get(globalId);
+        return change == null || change.deleted ? null : change;
+    }
+
+    int getProductCount() {
+        int count = 0;
+        for (SyncChange change : mProducts.values()) {
+            if (!change.deleted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public byte[] exchange(String endpoint, byte[] request) throws IOException {
+        if (mExchangesBeforeFailure == 0) {
+            throw new IOException("Exchange failed");
+        }
+        if (mExchangesBeforeFailure > 0) {
+            mExchangesBeforeFailure--;
+        }
+
+        switch (endpoint) {
+            case ENDPOINT_PUSH:
+                return SyncPayloads.encodePushResponse(
+                        push(SyncPayloads.decodePushRequest(request)));
+            case ENDPOINT_PULL:
+                return SyncPayloads.encodePullResponse(
+                        pull(SyncPayloads.decodePullRequest(request)));
+            default:
+                throw new IOException("Unknown endpoint " + endpoint);
+        }
+    }
+
+    private List<SyncPayloads.PushResult> push(List<SyncChange> changes) {
+        List<SyncPayloads.PushResult> results = new ArrayList<>();
+        for (SyncChange change : changes) {
+            SyncChange current = mProducts.get(change.globalId);
+            if (current != null && current.serverVersion != change.serverVersion) {
+                results.add(new SyncPayloads.PushResult(change.globalId, current.serverVersion,
+                        true));
+            } else {
+                results.add(new SyncPayloads.PushResult(change.globalId, store(change), false));
+            }
+        }
+        return results;
+    }
+
+    private SyncPayloads.PullResponse pull(SyncPayloads.PullRequest request) {
+        long since = request.since == null ? 0 : Long.parseLong(request.since);
+        List<SyncChange> changes = new ArrayList<>();
+        long nextToken = since;
+        for (Map.Entry<Long, String> entry : mChanges.tailMap(since, false).entrySet()) {
+            if (changes.size() == request.limit) {
+                break;
+            }
+            changes.add(mProducts.get(entry.getValue()));
+            nextToken = entry.getKey();
+        }
+        boolean hasMore = !mChanges.tailMap(nextToken, false).isEmpty();
+        return new SyncPayloads.PullResponse(changes, String.valueOf(nextToken), hasMore);
+    }
+
+    private long store(SyncChange change) {
+        SyncChange previous = mProducts.get(change.globalId);
+        if (previous != null) {
+            mChanges.remove(previous.serverVersion);
+        }
+        long serverVersion = ++mSequence;
+        mProducts.put(change.globalId, change.withServerVersion(serverVersion));
+        mChanges.put(serverVersion, change.globalId);
+        return serverVersion;
+    }
+}
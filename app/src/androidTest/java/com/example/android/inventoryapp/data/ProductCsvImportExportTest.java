@@ -0,0 +1,115 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.DatabaseUtils;
+import android.os.ParcelFileDescriptor;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * Instrumentation test of {@link ProductCsvImporter} and of the CSV export of
+ * {@link ProductProvider}.
+ */
+public class ProductCsvImportExportTest extends ProviderTestCase2<ProductProvider> {
+
+    public ProductCsvImportExportTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    public void testImportRejectsInvalidRows() throws Exception {
+        String csv = "quantity,name,supplier_phone,price\n"
+                + "3,Tea,+3670,2.5\n"
+                + "-1,Coffee,+3670,4\n"
+                + "2,,+3670,1\n"
+                + "1,\"Milk, 1 l\",+3671,1.2\n"
+                + "1,Sugar,+3670\n";
+        ProductCsvImporter.Result result = new ProductCsvImporter(getMockContentResolver())
+                .importProducts(toStream(csv), null);
+
+        assertEquals(2, result.importedCount);
+        assertEquals(3, result.rejectedCount);
+        assertEquals(3, result.rejections.get(0).lineNumber);
+        assertEquals(4, result.rejections.get(1).lineNumber);
+        assertEquals(6, result.rejections.get(2).lineNumber);
+    }
+
+    public void testImportRejectsPricesThatAreNoDecimals() throws Exception {
+        String csv = "name,price,quantity,supplier_phone\n"
+                + "Tea,NaN,1,+3670\n"
+                + "Coffee,Infinity,1,+3670\n"
+                + "Milk,-Infinity,1,+3670\n"
+                + "Sugar,0x1p3,1,+3670\n"
+                + "Salt,2f,1,+3670\n"
+                + "Honey,3d,1,+3670\n"
+                + "Jam,3,1,+3670\n";
+        ProductCsvImporter.Result result = new ProductCsvImporter(getMockContentResolver())
+                .importProducts(toStream(csv), null);
+
+        assertEquals(1, result.importedCount);
+        assertEquals(6, result.rejectedCount);
+    }
+
+    public void testImportsInChunks() throws Exception {
+        StringBuilder csv = new StringBuilder("name,price,quantity,supplier_phone\n");
+        int productCount = ProductCsvImporter.CHUNK_SIZE * 2 + 1;
+        for (int i = 0; i < productCount; i++) {
+            csv.append("Product ").append(i).append(",1,1,+3670\n");
+        }
+        final int[] progressCalls = new int[1];
+        ProductCsvImporter.Result result = new ProductCsvImporter(getMockContentResolver())
+                .importProducts(toStream(csv.toString()), new ProductCsvImporter.Listener() {
+                    @Override
+                    public void onProgress(int importedCount, int rejectedCount) {
+                        progressCalls[0]++;
+                    }
+                });
+
+        assertEquals(productCount, result.importedCount);
+        assertEquals(3, progressCalls[0]);
+    }
+
+    public void testExportRoundTrips() throws Exception {
+        String csv = "name,price,quantity,supplier_phone\r\n"
+                + "Tea,2.5,3,+3670\r\n"
+                + "\"Milk, 1 l\",1.2,1,+3671\r\n";
+        new ProductCsvImporter(getMockContentResolver()).importProducts(toStream(csv), null);
+
+        String exported = readExport();
+        assertEquals(csv, exported);
+
+        // Importing the export again doubles the catalog.
+        new ProductCsvImporter(getMockContentResolver()).importProducts(toStream(exported),
+                null);
+        ProductDbHelper dbHelper = new ProductDbHelper(getMockContext());
+        try {
+            assertEquals(4, DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(),
+                    ProductEntry.TABLE_NAME));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private String readExport() throws Exception {
+        ParcelFileDescriptor descriptor = getProvider().openFile(ProductEntry.EXPORT_URI, "r");
+        InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static InputStream toStream(String csv) throws Exception {
+        return new ByteArrayInputStream(csv.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Instrumentation benchmark of catalog reads while sales are written concurrently. The read
+ * latencies are logged for the rollback journal and for the write-ahead log ProductDbHelper
+ * runs with.
+ */
+public class ProductDatabaseConcurrencyTest extends AndroidTestCase {
+
+    private static final String LOG_TAG = ProductDatabaseConcurrencyTest.class.getSimpleName();
+
+    private static final int PRODUCT_COUNT = 1000;
+    private static final int READ_COUNT = 500;
+    private static final int PAGE_SIZE = 50;
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), "test.");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testReadLatencyUnderWriteLoad() throws Exception {
+        String rollbackJournal = measureReadLatency(false);
+        String writeAheadLog = measureReadLatency(true);
+        Log.i(LOG_TAG, "Reading a page of " + PAGE_SIZE + " products during concurrent sales: "
+                + "rollback journal " + rollbackJournal + ", WAL " + writeAheadLog);
+    }
+
+    /*
+    * Reads pages of the catalog while a second thread sells products in a loop of single
+    * transactions, and returns the read latency percentiles and the number of sales written.
+    */
+    private String measureReadLatency(boolean writeAheadLogging) throws Exception {
+        mContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+        ProductDbHelper dbHelper = new ProductDbHelper(mContext);
+        dbHelper.setWriteAheadLoggingEnabled(writeAheadLogging);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            assertEquals(writeAheadLogging, db.isWriteAheadLoggingEnabled());
+            insertProducts(db);
+
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            final AtomicInteger sales = new AtomicInteger();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SQLiteStatement statement = db.compileStatement("UPDATE "
+                            + ProductEntry.TABLE_NAME + " SET " + ProductEntry.QUANTITY + " = "
+                            + ProductEntry.QUANTITY + " + 1 WHERE " + ProductEntry._ID + " = ?");
+                    try {
+                        while (writing.get()) {
+                            db.beginTransaction();
+                            try {
+                                statement.bindLong(1, sales.get() % PRODUCT_COUNT + 1);
+                                statement.executeUpdateDelete();
+                                db.setTransactionSuccessful();
+                            } finally {
+                                db.endTransaction();
+                            }
+                            sales.incrementAndGet();
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+            writer.start();
+
+            long[] latencies = new long[READ_COUNT];
+            for (int i = 0; i < READ_COUNT; i++) {
+                long start = System.nanoTime();
+                Cursor cursor = db.query(ProductEntry.TABLE_NAME, null, ProductEntry._ID + ">?",
+                        new String[] { String.valueOf(i % (PRODUCT_COUNT - PAGE_SIZE)) }, null,
+                        null, ProductEntry._ID + " ASC", String.valueOf(PAGE_SIZE));
+                try {
+                    // Filling the window runs the query.
+                    assertEquals(PAGE_SIZE, cursor.getCount());
+                } finally {
+                    cursor.close();
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            writing.set(false);
+            writer.join();
+
+            Arrays.sort(latencies);
+            return "p50 " + latencies[READ_COUNT / 2] / 1000 + " us, p95 "
+                    + latencies[READ_COUNT * 95 / 100] / 1000 + " us, max "
+                    + latencies[READ_COUNT - 1] / 1000 + " us with " + sales.get() + " sales";
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static void insertProducts(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < PRODUCT_COUNT; i++) {
+                db.insertOrThrow(ProductEntry.TABLE_NAME, null, ProductTestData.createProduct(i));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Instrumentation test of the image Uri of {@link ProductProvider}.
+ */
+public class ProductImageUriTest extends ProviderTestCase2<ProductProvider> {
+
+    public ProductImageUriTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    public void testStreamsImageLargerThanCursorWindow() throws Exception {
+        // Larger than the 2 MB cursor window a blob column would have to fit in.
+        byte[] image = new byte[3 * 1024 * 1024];
+        Arrays.fill(image, (byte) 7);
+        long id = insertProduct(image);
+
+        Uri imageUri = ProductEntry.buildImageUri(id);
+        assertEquals(ProductEntry.IMAGE_MIME_TYPE, getProvider().getType(imageUri));
+        assertTrue(Arrays.equals(image, readImage(imageUri)));
+    }
+
+    public void testProductWithoutImageHasNoStream() throws Exception {
+        long id = insertProduct(null);
+        try {
+            getProvider().openFile(ProductEntry.buildImageUri(id), "r");
+            fail("Opened the image of a product without one");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    public void testImageIsReadOnly() throws Exception {
+        long id = insertProduct(ProductTestData.IMAGE);
+        try {
+            getProvider().openFile(ProductEntry.buildImageUri(id), "w");
+            fail("Opened an image for writing");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    private long insertProduct(byte[] image) {
+        ContentValues values = ProductTestData.createProduct("Product", 10, 5);
+        if (image != null) {
+            values.put(ProductEntry.IMAGE, image);
+        }
+        return ContentUris.parseId(getProvider().insert(ProductEntry.CONTENT_URI, values));
+    }
+
+    private byte[] readImage(Uri uri) throws Exception {
+        ParcelFileDescriptor descriptor = getProvider().openFile(uri, "r");
+        InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
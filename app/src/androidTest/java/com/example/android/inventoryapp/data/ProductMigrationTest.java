@@ -0,0 +1,439 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductContract.StockMovementEntry;
+import com.example.android.inventoryapp.data.ProductContract.SummaryEntry;
+import com.example.android.inventoryapp.data.ProductContract.SyncStateEntry;
+import com.example.android.inventoryapp.data.ProductContract.TombstoneEntry;
+
+/**
+ * Instrumentation test of the upgrades of the product database. A database is created with the
+ * schema of every old version, filled with products and opened with the current
+ * {@link ProductDbHelper}. After the background migrations have completed, no product may have
+ * been lost and the database must match a newly created one.
+ */
+public class ProductMigrationTest extends AndroidTestCase {
+
+    private static final int PRODUCT_COUNT = 3 * ProductMigrations.IMAGE_BATCH_SIZE + 1;
+
+    /*
+    * Schemas as they were created by the old versions, never change these.
+    */
+    private static final String[] SCHEMA_VERSION_1 = {
+            "CREATE TABLE Products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                    + "price INTEGER NOT NULL DEFAULT 0, quantity INTEGER NOT NULL DEFAULT 0, "
+                    + "supplier_phone TEXT NOT NULL, image BLOB NOT NULL)"
+    };
+
+    private static final String[] SCHEMA_VERSION_2 = {
+            "CREATE TABLE Products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                    + "price INTEGER NOT NULL DEFAULT 0, quantity INTEGER NOT NULL DEFAULT 0, "
+                    + "supplier_phone TEXT NOT NULL, image_ref TEXT)"
+    };
+
+    private static final String[] SCHEMA_VERSION_3 = {
+            SCHEMA_VERSION_2[0],
+            "CREATE VIRTUAL TABLE products_fts USING fts4(name, supplier_phone, "
+                    + "content=\"Products\")",
+            "CREATE TRIGGER products_fts_after_insert AFTER INSERT ON Products BEGIN "
+                    + "INSERT INTO products_fts(docid, name, supplier_phone) "
+                    + "VALUES(new._id, new.name, new.supplier_phone); END",
+            "CREATE TRIGGER products_fts_before_update BEFORE UPDATE OF name, supplier_phone "
+                    + "ON Products BEGIN DELETE FROM products_fts WHERE docid = old._id; END",
+            "CREATE TRIGGER products_fts_after_update AFTER UPDATE OF name, supplier_phone "
+                    + "ON Products BEGIN INSERT INTO products_fts(docid, name, supplier_phone) "
+                    + "VALUES(new._id, new.name, new.supplier_phone); END",
+            "CREATE TRIGGER products_fts_before_delete BEFORE DELETE ON Products BEGIN "
+                    + "DELETE FROM products_fts WHERE docid = old._id; END"
+    };
+
+    private static final String[] SCHEMA_VERSION_4 = concat(SCHEMA_VERSION_3,
+            "CREATE INDEX Products_name_index ON Products (name COLLATE NOCASE)",
+            "CREATE INDEX Products_price_index ON Products (price)",
+            "CREATE INDEX Products_quantity_index ON Products (quantity)",
+            "CREATE TABLE background_migrations (name TEXT PRIMARY KEY)");
+
+    private static final String[] SCHEMA_VERSION_5 = concat(SCHEMA_VERSION_4,
+            "CREATE TABLE product_summary (_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                    + "product_count INTEGER NOT NULL, units_on_hand INTEGER NOT NULL, "
+                    + "stock_value REAL NOT NULL, out_of_stock_count INTEGER NOT NULL)",
+            "INSERT INTO product_summary SELECT 1, count(*), total(quantity), "
+                    + "total(price * quantity), total(quantity = 0) FROM Products",
+            "CREATE TRIGGER product_summary_after_insert AFTER INSERT ON Products BEGIN "
+                    + "UPDATE product_summary SET product_count = product_count + 1, "
+                    + "units_on_hand = units_on_hand + new.quantity, "
+                    + "stock_value = stock_value + new.price * new.quantity, "
+                    + "out_of_stock_count = out_of_stock_count + (new.quantity = 0); END",
+            "CREATE TRIGGER product_summary_after_update AFTER UPDATE OF price, quantity "
+                    + "ON Products BEGIN UPDATE product_summary SET "
+                    + "product_count = product_count + 0, "
+                    + "units_on_hand = units_on_hand + new.quantity - old.quantity, "
+                    + "stock_value = stock_value + new.price * new.quantity "
+                    + "- old.price * old.quantity, "
+                    + "out_of_stock_count = out_of_stock_count + (new.quantity = 0) "
+                    + "- (old.quantity = 0); END",
+            "CREATE TRIGGER product_summary_after_delete AFTER DELETE ON Products BEGIN "
+                    + "UPDATE product_summary SET product_count = product_count + -1, "
+                    + "units_on_hand = units_on_hand - old.quantity, "
+                    + "stock_value = stock_value - old.price * old.quantity, "
+                    + "out_of_stock_count = out_of_stock_count - (old.quantity = 0); END");
+
+    private static final String[] SCHEMA_VERSION_6 = concat(SCHEMA_VERSION_5,
+            "CREATE TABLE stock_movements (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "product_id INTEGER NOT NULL, change INTEGER NOT NULL, "
+                    + "reason TEXT NOT NULL, timestamp INTEGER NOT NULL)",
+            "CREATE INDEX stock_movements_product_index ON stock_movements (product_id)",
+            "CREATE INDEX stock_movements_timestamp_index ON stock_movements (timestamp)",
+            "CREATE TABLE stock_snapshots (product_id INTEGER NOT NULL, "
+                    + "timestamp INTEGER NOT NULL, quantity INTEGER NOT NULL, "
+                    + "movement_id INTEGER NOT NULL)",
+            "CREATE INDEX stock_snapshots_product_index ON stock_snapshots "
+                    + "(product_id, timestamp)");
+
+    // Upgraded from version 6, the sync columns end up last like in a newly created database.
+    private static final String[] SCHEMA_VERSION_7 = concat(SCHEMA_VERSION_6,
+            "ALTER TABLE Products ADD COLUMN global_id TEXT",
+            "ALTER TABLE Products ADD COLUMN version INTEGER NOT NULL DEFAULT 1",
+            "ALTER TABLE Products ADD COLUMN updated_at INTEGER NOT NULL DEFAULT 0",
+            "ALTER TABLE Products ADD COLUMN server_version INTEGER NOT NULL DEFAULT 0",
+            "ALTER TABLE Products ADD COLUMN dirty INTEGER NOT NULL DEFAULT 1",
+            "CREATE UNIQUE INDEX Products_global_id_index ON Products (global_id)",
+            "CREATE TABLE product_tombstones (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "global_id TEXT NOT NULL UNIQUE, server_version INTEGER NOT NULL, "
+                    + "deleted_at INTEGER NOT NULL)",
+            "CREATE TABLE sync_state (name TEXT PRIMARY KEY, value TEXT)",
+            "CREATE TRIGGER Products_assign_global_id AFTER INSERT ON Products "
+                    + "WHEN new.global_id IS NULL BEGIN UPDATE Products "
+                    + "SET global_id = lower(hex(randomblob(16))), "
+                    + "updated_at = CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER) "
+                    + "WHERE _id = new._id; END",
+            // Sync writes, which change the server version, did not increment the version.
+            "CREATE TRIGGER Products_after_change AFTER UPDATE OF name, price, quantity, "
+                    + "supplier_phone ON Products WHEN new.server_version = old.server_version "
+                    + "BEGIN UPDATE Products SET version = old.version + 1, "
+                    + "updated_at = CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER), "
+                    + "dirty = 1 WHERE _id = new._id; END",
+            "CREATE TRIGGER product_tombstones_after_delete AFTER DELETE ON Products "
+                    + "WHEN old.server_version > 0 BEGIN INSERT OR REPLACE INTO "
+                    + "product_tombstones (global_id, server_version, deleted_at) "
+                    + "VALUES (old.global_id, old.server_version, "
+                    + "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)); END");
+
+    private static final String[] SCHEMA_VERSION_8 = concat(SCHEMA_VERSION_7,
+            "DROP TRIGGER Products_after_change",
+            "CREATE TRIGGER Products_after_change AFTER UPDATE OF name, price, quantity, "
+                    + "supplier_phone ON Products BEGIN UPDATE Products SET "
+                    + "version = old.version + 1, updated_at = CASE WHEN "
+                    + "new.server_version = old.server_version THEN "
+                    + "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER) "
+                    + "ELSE new.updated_at END, dirty = CASE WHEN "
+                    + "new.server_version = old.server_version THEN 1 ELSE new.dirty END "
+                    + "WHERE _id = new._id; END");
+
+    private static final String[] SCHEMA_VERSION_9 = concat(SCHEMA_VERSION_8,
+            "CREATE TABLE stock_journal_state (_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                    + "last_segment INTEGER NOT NULL)",
+            "INSERT INTO stock_journal_state VALUES (1, 0)");
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), "test.");
+        mContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+        // RenamingDelegatingContext does not rename the files directory, the moved images are
+        // in the image store of the app.
+        ProductImageStore imageStore = new ProductImageStore(mContext);
+        for (int i = 0; i < PRODUCT_COUNT; i++) {
+            imageStore.getFile(ProductImageStore.hash(createImage(i))).delete();
+        }
+        super.tearDown();
+    }
+
+    public void testUpgradeFromVersion1() {
+        createDatabase(1, SCHEMA_VERSION_1);
+        assertUpgraded(true);
+    }
+
+    public void testUpgradeFromVersion2() {
+        createDatabase(2, SCHEMA_VERSION_2);
+        assertUpgraded(false);
+    }
+
+    public void testUpgradeFromVersion3() {
+        createDatabase(3, SCHEMA_VERSION_3);
+        assertUpgraded(false);
+    }
+
+    public void testUpgradeFromVersion4() {
+        createDatabase(4, SCHEMA_VERSION_4);
+        assertUpgraded(false);
+    }
+
+    public void testUpgradeFromVersion5() {
+        createDatabase(5, SCHEMA_VERSION_5);
+        assertUpgraded(false);
+    }
+
+    public void testUpgradeFromVersion6() {
+        createDatabase(6, SCHEMA_VERSION_6);
+        assertUpgraded(false);
+    }
+
+    public void testUpgradeFromVersion7() {
+        createDatabase(7, SCHEMA_VERSION_7);
+        assertUpgraded(false);
+
+        ProductDbHelper dbHelper = new ProductDbHelper(mContext);
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            String[] id = new String[] { String.valueOf(DatabaseUtils.longForQuery(db,
+                    "SELECT min(" + ProductEntry._ID + ") FROM " + ProductEntry.TABLE_NAME,
+                    null)) };
+
+            // A sync write now increments the version, but keeps its update time and dirty flag.
+            db.execSQL("UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.QUANTITY
+                    + " = 9, " + ProductEntry.SERVER_VERSION + " = " + ProductEntry.SERVER_VERSION
+                    + " + 1, " + ProductEntry.UPDATED_AT + " = 5, " + ProductEntry.DIRTY
+                    + " = 0 WHERE " + ProductEntry._ID + " = ?", id);
+            assertEquals(2, queryLong(db, ProductEntry.VERSION, id));
+            assertEquals(5, queryLong(db, ProductEntry.UPDATED_AT, id));
+            assertEquals(0, queryLong(db, ProductEntry.DIRTY, id));
+
+            // A local write increments it as before and marks the product dirty.
+            db.execSQL("UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.QUANTITY
+                    + " = 8 WHERE " + ProductEntry._ID + " = ?", id);
+            assertEquals(3, queryLong(db, ProductEntry.VERSION, id));
+            assertEquals(1, queryLong(db, ProductEntry.DIRTY, id));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    public void testUpgradeFromVersion8() {
+        createDatabase(8, SCHEMA_VERSION_8);
+        assertUpgraded(false);
+    }
+
+    public void testUpgradeFromVersion9() {
+        createDatabase(9, SCHEMA_VERSION_9);
+        assertUpgraded(false);
+
+        ProductDbHelper dbHelper = new ProductDbHelper(mContext);
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            String[] id = new String[] { String.valueOf(DatabaseUtils.longForQuery(db,
+                    "SELECT min(" + ProductEntry._ID + ") FROM " + ProductEntry.TABLE_NAME,
+                    null)) };
+            long version = queryLong(db, ProductEntry.VERSION, id);
+
+            // An image change now increments the version.
+            db.execSQL("UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.IMAGE_REF
+                    + " = 'new_image' WHERE " + ProductEntry._ID + " = ?", id);
+            assertEquals(version + 1, queryLong(db, ProductEntry.VERSION, id));
+            assertEquals(1, queryLong(db, ProductEntry.DIRTY, id));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    public void testStockSnapshotKeepsEarlierSale() {
+        createDatabase(5, SCHEMA_VERSION_5);
+
+        // A product is sold after the upgrade, before its first snapshot has been taken.
+        ProductDbHelper dbHelper = new ProductDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        String[] id = new String[] { String.valueOf(DatabaseUtils.longForQuery(db,
+                "SELECT min(" + ProductEntry._ID + ") FROM " + ProductEntry.TABLE_NAME
+                        + " WHERE " + ProductEntry.QUANTITY + " > 0", null)) };
+        int quantity = (int) queryLong(db, ProductEntry.QUANTITY, id);
+        db.beginTransaction();
+        try {
+            db.execSQL("UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.QUANTITY
+                    + " = " + ProductEntry.QUANTITY + " - 1 WHERE " + ProductEntry._ID + " = ?",
+                    id);
+            StockLedger ledger = new StockLedger(db);
+            ledger.append(Long.parseLong(id[0]), -1, quantity - 1,
+                    StockMovementEntry.REASON_SALE);
+            ledger.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, StockLedger.SNAPSHOTS_TABLE));
+        dbHelper.close();
+
+        // The snapshot is taken of the quantity before the sale.
+        assertUpgraded(false);
+        dbHelper = new ProductDbHelper(mContext);
+        try {
+            assertEquals(quantity, DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                    "SELECT " + StockLedger.COLUMN_QUANTITY + " FROM "
+                            + StockLedger.SNAPSHOTS_TABLE + " WHERE "
+                            + StockMovementEntry.PRODUCT_ID + " = ?", id));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    public void testImageMigrationResumesAfterInterruption() {
+        createDatabase(1, SCHEMA_VERSION_1);
+
+        // Move a single batch, as if the process had been killed right after it.
+        ProductDbHelper dbHelper = new ProductDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        BackgroundMigration migration = ProductMigrations.getBackgroundMigrations(mContext)
+                .get(ProductMigrations.MOVE_LEGACY_IMAGES);
+        db.beginTransaction();
+        try {
+            assertTrue(migration.migrateBatch(db));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertEquals(ProductMigrations.IMAGE_BATCH_SIZE, DatabaseUtils.queryNumEntries(db,
+                ProductEntry.TABLE_NAME, ProductEntry.IMAGE_REF + " IS NOT NULL"));
+        dbHelper.close();
+
+        assertUpgraded(true);
+    }
+
+    private void createDatabase(int version, String[] schema) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(ProductDbHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            for (String statement : schema) {
+                db.execSQL(statement);
+            }
+            for (int i = 0; i < PRODUCT_COUNT; i++) {
+                ContentValues values = new ContentValues();
+                values.put("name", "Product " + i);
+                values.put("price", i);
+                values.put("quantity", i % 10);
+                values.put("supplier_phone", "+3670" + i);
+                if (version == 1) {
+                    values.put("image", createImage(i));
+                }
+                long id = db.insertOrThrow("Products", null, values);
+                if (version >= 6) {
+                    // Like ProductProvider, every insert since version 6 starts the history of
+                    // the product in the stock ledger.
+                    ContentValues movement = new ContentValues();
+                    movement.put("product_id", id);
+                    movement.put("change", i % 10);
+                    movement.put("reason", "created");
+                    movement.put("timestamp", System.currentTimeMillis());
+                    db.insertOrThrow("stock_movements", null, movement);
+                }
+            }
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void assertUpgraded(boolean imagesMoved) {
+        ProductDbHelper dbHelper = new ProductDbHelper(mContext);
+        try {
+            ProductMigrations.runBackgroundMigrations(dbHelper, mContext);
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+            assertEquals(PRODUCT_COUNT, DatabaseUtils.queryNumEntries(db, ProductEntry.TABLE_NAME));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db,
+                    ProductMigrations.BACKGROUND_MIGRATIONS_TABLE));
+            assertEquals(PRODUCT_COUNT, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + ProductEntry.SEARCH_TABLE_NAME + " WHERE " + ProductEntry.SEARCH_TABLE_NAME
+                    + " MATCH 'product'", null));
+            assertSchemaObject(db, "index", ProductDbHelper.NAME_INDEX);
+            assertSchemaObject(db, "index", ProductDbHelper.PRICE_INDEX);
+            assertSchemaObject(db, "index", ProductDbHelper.QUANTITY_INDEX);
+            assertEquals(PRODUCT_COUNT, DatabaseUtils.longForQuery(db, "SELECT "
+                    + SummaryEntry.PRODUCT_COUNT + " FROM " + SummaryEntry.TABLE_NAME, null));
+            assertEquals(DatabaseUtils.longForQuery(db, "SELECT total(" + ProductEntry.QUANTITY
+                    + ") FROM " + ProductEntry.TABLE_NAME, null), DatabaseUtils.longForQuery(db,
+                    "SELECT " + SummaryEntry.UNITS_ON_HAND + " FROM " + SummaryEntry.TABLE_NAME,
+                    null));
+            assertLedgerKnowsQuantities(db);
+            assertSchemaObject(db, "index", ProductDbHelper.GLOBAL_ID_INDEX);
+            assertSchemaObject(db, "table", TombstoneEntry.TABLE_NAME);
+            assertSchemaObject(db, "table", SyncStateEntry.TABLE_NAME);
+            assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT "
+                    + ProductDbHelper.LAST_SEGMENT + " FROM "
+                    + ProductDbHelper.JOURNAL_STATE_TABLE, null));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, ProductEntry.TABLE_NAME,
+                    ProductEntry.GLOBAL_ID + " IS NULL"));
+
+            if (imagesMoved) {
+                assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master"
+                        + " WHERE name = ?", new String[] { ProductMigrations.LEGACY_IMAGES_TABLE }));
+                ProductImageStore imageStore = new ProductImageStore(mContext);
+                Cursor cursor = db.query(ProductEntry.TABLE_NAME,
+                        new String[] { ProductEntry.IMAGE_REF }, null, null, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        assertFalse(cursor.isNull(0));
+                        assertTrue(imageStore.getFile(cursor.getString(0)).exists());
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /*
+    * Products that existed before the ledger have a snapshot, the later ones a history.
+    */
+    private static void assertLedgerKnowsQuantities(SQLiteDatabase db) {
+        long now = System.currentTimeMillis();
+        Cursor cursor = db.query(ProductEntry.TABLE_NAME,
+                new String[] { ProductEntry._ID, ProductEntry.QUANTITY }, null, null, null, null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                assertEquals(Integer.valueOf(cursor.getInt(1)),
+                        StockLedger.getQuantityAsOf(db, cursor.getLong(0), now));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long queryLong(SQLiteDatabase db, String column, String[] id) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + column + " FROM "
+                + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + " = ?", id);
+    }
+
+    private static byte[] createImage(int i) {
+        return new byte[] { 1, 2, 3, (byte) i };
+    }
+
+    private static String[] concat(String[] schema, String... statements) {
+        String[] result = new String[schema.length + statements.length];
+        System.arraycopy(schema, 0, result, 0, schema.length);
+        System.arraycopy(statements, 0, result, schema.length, statements.length);
+        return result;
+    }
+
+    private static void assertSchemaObject(SQLiteDatabase db, String type, String name) {
+        assertEquals(type + " " + name + " is missing", 1, DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM sqlite_master WHERE type = ? AND name = ?",
+                new String[] { type, name }));
+    }
+}
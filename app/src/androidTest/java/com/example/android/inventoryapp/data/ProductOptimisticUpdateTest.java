@@ -0,0 +1,177 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Instrumentation test of the versioned updates of {@link ProductProvider}.
+ */
+public class ProductOptimisticUpdateTest extends ProviderTestCase2<ProductProvider> {
+
+    public ProductOptimisticUpdateTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    public void testUpdatesUnchangedProduct() {
+        Uri uri = insertProduct();
+
+        Bundle result = update(uri, ProductEntry.NAME, "Tea", "Green tea", 1);
+        assertEquals(ProductEntry.UPDATE_RESULT_UPDATED, result.getInt(ProductEntry.EXTRA_RESULT));
+        assertEquals(2, result.getLong(ProductEntry.EXTRA_VERSION));
+        assertEquals("Green tea", queryString(uri, ProductEntry.NAME));
+    }
+
+    public void testMergesChangeOfAnotherColumn() {
+        Uri uri = insertProduct();
+        getProvider().call(ProductEntry.METHOD_SELL, String.valueOf(ContentUris.parseId(uri)),
+                null);
+
+        Bundle result = update(uri, ProductEntry.NAME, "Tea", "Green tea", 1);
+        assertEquals(ProductEntry.UPDATE_RESULT_MERGED, result.getInt(ProductEntry.EXTRA_RESULT));
+        assertEquals(3, result.getLong(ProductEntry.EXTRA_VERSION));
+        assertEquals("Green tea", queryString(uri, ProductEntry.NAME));
+        // The sale is not lost.
+        assertEquals("4", queryString(uri, ProductEntry.QUANTITY));
+    }
+
+    public void testReportsConflictingChange() {
+        Uri uri = insertProduct();
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.NAME, "Black tea");
+        getProvider().update(uri, values, null, null);
+
+        Bundle result = update(uri, ProductEntry.NAME, "Tea", "Green tea", 1);
+        assertEquals(ProductEntry.UPDATE_RESULT_CONFLICT,
+                result.getInt(ProductEntry.EXTRA_RESULT));
+        assertEquals(2, result.getLong(ProductEntry.EXTRA_VERSION));
+        ContentValues currentValues = result.getParcelable(ProductEntry.EXTRA_BASE_VALUES);
+        assertEquals("Black tea", currentValues.getAsString(ProductEntry.NAME));
+        assertEquals("Black tea", queryString(uri, ProductEntry.NAME));
+
+        // Saving again, based on the current version, overwrites it.
+        result = update(uri, ProductEntry.NAME, "Black tea", "Green tea", 2);
+        assertEquals(ProductEntry.UPDATE_RESULT_UPDATED, result.getInt(ProductEntry.EXTRA_RESULT));
+        assertEquals("Green tea", queryString(uri, ProductEntry.NAME));
+    }
+
+    public void testConflictingImageChangeLeavesNoImage() {
+        Uri uri = insertProduct();
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.NAME, "Black tea");
+        getProvider().update(uri, values, null, null);
+
+        byte[] image = new byte[] { 7, 5, 3, 1 };
+        values = new ContentValues();
+        values.put(ProductEntry.NAME, "Green tea");
+        values.put(ProductEntry.IMAGE, image);
+        ContentValues baseValues = new ContentValues();
+        baseValues.put(ProductEntry.NAME, "Tea");
+        Bundle extras = new Bundle();
+        extras.putParcelable(ProductEntry.EXTRA_VALUES, values);
+        extras.putParcelable(ProductEntry.EXTRA_BASE_VALUES, baseValues);
+        extras.putLong(ProductEntry.EXTRA_VERSION, 1);
+        Bundle result = getProvider().call(ProductEntry.METHOD_UPDATE,
+                String.valueOf(ContentUris.parseId(uri)), extras);
+
+        assertEquals(ProductEntry.UPDATE_RESULT_CONFLICT,
+                result.getInt(ProductEntry.EXTRA_RESULT));
+        assertNull(queryString(uri, ProductEntry.IMAGE_REF));
+        ProductImageStore imageStore = new ProductImageStore(getProvider().getContext());
+        assertFalse(imageStore.getFile(ProductImageStore.hash(image)).exists());
+    }
+
+    public void testImageChangeIncrementsVersion() {
+        Uri uri = insertProduct();
+        byte[] firstImage = new byte[] { 7, 5, 3, 1 };
+        byte[] secondImage = new byte[] { 8, 6, 4, 2 };
+
+        Bundle result = updateImage(uri, firstImage, 1);
+        assertEquals(ProductEntry.UPDATE_RESULT_UPDATED, result.getInt(ProductEntry.EXTRA_RESULT));
+        assertEquals(2, result.getLong(ProductEntry.EXTRA_VERSION));
+
+        // The second edit, based on the same version, no longer passes the version check. The
+        // image has no base value, so it is merged into the current version.
+        result = updateImage(uri, secondImage, 1);
+        assertEquals(ProductEntry.UPDATE_RESULT_MERGED, result.getInt(ProductEntry.EXTRA_RESULT));
+        assertEquals(3, result.getLong(ProductEntry.EXTRA_VERSION));
+        assertEquals(ProductImageStore.hash(secondImage),
+                queryString(uri, ProductEntry.IMAGE_REF));
+
+        ProductImageStore imageStore = new ProductImageStore(getProvider().getContext());
+        imageStore.getFile(ProductImageStore.hash(firstImage)).delete();
+        imageStore.getFile(ProductImageStore.hash(secondImage)).delete();
+    }
+
+    public void testReportsDeletedProduct() {
+        Uri uri = insertProduct();
+        getProvider().delete(uri, null, null);
+
+        Bundle result = update(uri, ProductEntry.NAME, "Tea", "Green tea", 1);
+        assertEquals(ProductEntry.UPDATE_RESULT_NOT_FOUND,
+                result.getInt(ProductEntry.EXTRA_RESULT));
+    }
+
+    public void testExpectedVersionUriUpdatesOnlyThatVersion() {
+        Uri uri = insertProduct();
+        getProvider().call(ProductEntry.METHOD_SELL, String.valueOf(ContentUris.parseId(uri)),
+                null);
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.QUANTITY, 9);
+
+        assertEquals(0, getProvider().update(getVersionedUri(uri, 1), values, null, null));
+        assertEquals("4", queryString(uri, ProductEntry.QUANTITY));
+        assertEquals(1, getProvider().update(getVersionedUri(uri, 2), values, null, null));
+        assertEquals("9", queryString(uri, ProductEntry.QUANTITY));
+    }
+
+    private Uri insertProduct() {
+        return getProvider().insert(ProductEntry.CONTENT_URI,
+                ProductTestData.createProduct("Tea", 10, 5));
+    }
+
+    private Bundle update(Uri uri, String column, String baseValue, String value, long version) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        ContentValues baseValues = new ContentValues();
+        baseValues.put(column, baseValue);
+        Bundle extras = new Bundle();
+        extras.putParcelable(ProductEntry.EXTRA_VALUES, values);
+        extras.putParcelable(ProductEntry.EXTRA_BASE_VALUES, baseValues);
+        extras.putLong(ProductEntry.EXTRA_VERSION, version);
+        return getProvider().call(ProductEntry.METHOD_UPDATE,
+                String.valueOf(ContentUris.parseId(uri)), extras);
+    }
+
+    private Bundle updateImage(Uri uri, byte[] image, long version) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.IMAGE, image);
+        Bundle extras = new Bundle();
+        extras.putParcelable(ProductEntry.EXTRA_VALUES, values);
+        extras.putLong(ProductEntry.EXTRA_VERSION, version);
+        return getProvider().call(ProductEntry.METHOD_UPDATE,
+                String.valueOf(ContentUris.parseId(uri)), extras);
+    }
+
+        private static Uri getVersionedUri(Uri uri, long version) {
+        return uri.buildUpon()
+                .appendQueryParameter(ProductEntry.QUERY_PARAMETER_EXPECTED_VERSION,
+                        String.valueOf(version))
+                .build();
+    }
+
+    private String queryString(Uri uri, String column) {
+        Cursor cursor = getProvider().query(uri, new String[] { column }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
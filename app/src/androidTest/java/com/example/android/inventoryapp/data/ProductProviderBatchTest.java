@@ -0,0 +1,88 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Instrumentation test of the transactional batch operations of {@link ProductProvider}.
+ * The load test logs the time of loading 10k products one by one and in a single bulkInsert.
+ */
+public class ProductProviderBatchTest extends ProviderTestCase2<ProductProvider> {
+
+    private static final String LOG_TAG = ProductProviderBatchTest.class.getSimpleName();
+
+    private static final int LOAD_SIZE = 10000;
+
+    public ProductProviderBatchTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    public void testBulkInsertIsFasterThanSingleInserts() {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LOAD_SIZE; i++) {
+            getProvider().insert(ProductEntry.CONTENT_URI, createProduct(i));
+        }
+        long singleInsertsMillis = SystemClock.elapsedRealtime() - start;
+        getProvider().delete(ProductEntry.CONTENT_URI, null, null);
+
+        ContentValues[] values = new ContentValues[LOAD_SIZE];
+        for (int i = 0; i < LOAD_SIZE; i++) {
+            values[i] = createProduct(i);
+        }
+        start = SystemClock.elapsedRealtime();
+        int rowsInserted = getProvider().bulkInsert(ProductEntry.CONTENT_URI, values);
+        long bulkInsertMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(LOG_TAG, "Loading " + LOAD_SIZE + " products: single inserts " + singleInsertsMillis
+                + " ms, bulkInsert " + bulkInsertMillis + " ms, speedup "
+                + ((float) singleInsertsMillis / Math.max(bulkInsertMillis, 1)) + "x");
+
+        assertEquals(LOAD_SIZE, rowsInserted);
+        assertEquals(LOAD_SIZE, countProducts());
+    }
+
+    public void testApplyBatchRollsBackOnInvalidOperation() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(ProductEntry.CONTENT_URI)
+                .withValues(createProduct(0))
+                .build());
+        ContentValues invalidProduct = createProduct(1);
+        invalidProduct.put(ProductEntry.QUANTITY, -1);
+        operations.add(ContentProviderOperation.newInsert(ProductEntry.CONTENT_URI)
+                .withValues(invalidProduct)
+                .build());
+
+        try {
+            getProvider().applyBatch(operations);
+            fail("Invalid product was accepted.");
+        } catch (IllegalArgumentException expected) {
+            // The validation of insertProduct rejects the second operation.
+        }
+
+        assertEquals(0, countProducts());
+    }
+
+    private int countProducts() {
+        Cursor cursor = getProvider().query(ProductEntry.CONTENT_URI,
+                new String[] { ProductEntry._ID }, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues createProduct(int index) {
+        ContentValues values = ProductTestData.createProduct(index);
+        values.put(ProductEntry.IMAGE, new byte[] { 1, 2, 3, (byte) (index % 16) });
+        return values;
+    }
+}
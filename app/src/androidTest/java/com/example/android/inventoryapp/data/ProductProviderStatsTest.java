@@ -0,0 +1,96 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.DiagnosticsEntry;
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Instrumentation test of the diagnostics of {@link ProductProvider}.
+ */
+public class ProductProviderStatsTest extends ProviderTestCase2<ProductProvider> {
+
+    public ProductProviderStatsTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    public void testNothingRecordedWhileDisabled() {
+        getProvider().insert(ProductEntry.CONTENT_URI, createProduct());
+        getProvider().query(ProductEntry.CONTENT_URI, null, null, null, null).close();
+
+        Cursor cursor = getProvider().query(DiagnosticsEntry.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testRecordsOperationsPerUri() {
+        setEnabled(true);
+        getProvider().insert(ProductEntry.CONTENT_URI, createProduct());
+        Uri second = getProvider().insert(ProductEntry.CONTENT_URI, createProduct());
+        getProvider().query(ProductEntry.CONTENT_URI, null, null, null, null).close();
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.QUANTITY, 1);
+        getProvider().update(ProductEntry.CONTENT_URI, values, null, null);
+        getProvider().delete(second, null, null);
+        setEnabled(false);
+
+        assertRow("insert", "products", 2, 2);
+        assertRow("query", "products", 1, 2);
+        assertRow("update", "products", 1, 2);
+        assertRow("delete", "product_id", 1, 1);
+        // Both inserts and the delete changed one product, the update two.
+        assertRow(DiagnosticsEntry.OPERATION_NOTIFY, "item", 3, 0);
+        assertRow(DiagnosticsEntry.OPERATION_NOTIFY, "ids", 1, 0);
+    }
+
+    public void testPercentiles() {
+        long[] buckets = new long[ProductProviderStats.BUCKET_COUNT];
+        assertEquals(0, ProductProviderStats.getPercentile(buckets, 0.5));
+
+        buckets[ProductProviderStats.getBucket(10)] = 90;
+        buckets[ProductProviderStats.getBucket(1000)] = 10;
+        assertEquals(64, ProductProviderStats.getPercentile(buckets, 0.5));
+        assertEquals(1024, ProductProviderStats.getPercentile(buckets, 0.95));
+        assertEquals(ProductProviderStats.BUCKET_COUNT - 1,
+                ProductProviderStats.getBucket(Long.MAX_VALUE));
+    }
+
+    private void setEnabled(boolean enabled) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(DiagnosticsEntry.EXTRA_ENABLED, enabled);
+        getProvider().call(DiagnosticsEntry.METHOD_SET_DIAGNOSTICS_ENABLED, null, extras);
+    }
+
+    private void assertRow(String operation, String uriMatch, long count, long rows) {
+        Cursor cursor = getProvider().query(DiagnosticsEntry.CONTENT_URI, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                int operationIndex = cursor.getColumnIndex(DiagnosticsEntry.OPERATION);
+                int uriMatchIndex = cursor.getColumnIndex(DiagnosticsEntry.URI_MATCH);
+                if (operation.equals(cursor.getString(operationIndex))
+                        && uriMatch.equals(cursor.getString(uriMatchIndex))) {
+                    assertEquals(count,
+                            cursor.getLong(cursor.getColumnIndex(DiagnosticsEntry.COUNT)));
+                    assertEquals(rows,
+                            cursor.getLong(cursor.getColumnIndex(DiagnosticsEntry.ROWS)));
+                    return;
+                }
+            }
+            fail("No diagnostics of " + operation + " " + uriMatch);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues createProduct() {
+        return ProductTestData.createProduct("Product", 10, 5);
+    }
+}
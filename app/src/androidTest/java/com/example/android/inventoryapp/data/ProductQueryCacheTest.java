@@ -0,0 +1,149 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.DiagnosticsEntry;
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Instrumentation test of the query result cache of {@link ProductProvider}.
+ */
+public class ProductQueryCacheTest extends ProviderTestCase2<ProductProvider> {
+
+    private static final String[] PROJECTION = { ProductEntry._ID, ProductEntry.QUANTITY };
+
+    public ProductQueryCacheTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Bundle extras = new Bundle();
+        extras.putBoolean(DiagnosticsEntry.EXTRA_ENABLED, true);
+        getProvider().call(DiagnosticsEntry.METHOD_SET_DIAGNOSTICS_ENABLED, null, extras);
+    }
+
+    public void testRepeatedQueryIsAnsweredFromCache() {
+        insertProducts(3);
+        long hits = getCounter("hits");
+        long misses = getCounter("misses");
+
+        assertEquals(3, queryCount(ProductEntry.CONTENT_URI));
+        assertEquals(3, queryCount(ProductEntry.CONTENT_URI));
+
+        assertEquals(hits + 1, getCounter("hits"));
+        assertEquals(misses + 1, getCounter("misses"));
+    }
+
+    public void testUpdateDropsOnlyThePageOfTheProduct() {
+        insertProducts(4);
+        Uri firstPage = getPageUri(0, 2);
+        Uri secondPage = getPageUri(2, 2);
+        queryCount(firstPage);
+        queryCount(secondPage);
+
+        setQuantity(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, 1), 9);
+        long hits = getCounter("hits");
+        long misses = getCounter("misses");
+
+        assertEquals(9, queryQuantity(firstPage, 1));
+        queryCount(secondPage);
+        assertEquals(hits + 1, getCounter("hits"));
+        assertEquals(misses + 1, getCounter("misses"));
+    }
+
+    public void testInsertDropsOnlyThePageNotFull() {
+        insertProducts(3);
+        Uri fullPage = getPageUri(0, 2);
+        Uri lastPage = getPageUri(2, 2);
+        queryCount(fullPage);
+        assertEquals(1, queryCount(lastPage));
+
+        insertProducts(1);
+        long hits = getCounter("hits");
+
+        assertEquals(2, queryCount(lastPage));
+        assertEquals(2, queryCount(fullPage));
+        assertEquals(hits + 1, getCounter("hits"));
+    }
+
+    public void testUpdateDropsFilteredResults() {
+        insertProducts(2);
+        Uri lowStock = ProductEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductEntry.QUERY_PARAMETER_MAX_QUANTITY, "1")
+                .build();
+        assertEquals(0, queryCount(lowStock));
+
+        setQuantity(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, 2), 0);
+
+        assertEquals(1, queryCount(lowStock));
+    }
+
+    private void insertProducts(int count) {
+        for (int i = 0; i < count; i++) {
+            getProvider().insert(ProductEntry.CONTENT_URI,
+                    ProductTestData.createProduct("Product " + i, 10, 5));
+        }
+    }
+
+    private void setQuantity(Uri uri, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.QUANTITY, quantity);
+        getProvider().update(uri, values, null, null);
+    }
+
+    private static Uri getPageUri(long afterId, int limit) {
+        return ProductEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductEntry.QUERY_PARAMETER_AFTER, String.valueOf(afterId))
+                .appendQueryParameter(ProductEntry.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    private int queryCount(Uri uri) {
+        Cursor cursor = getProvider().query(uri, PROJECTION, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int queryQuantity(Uri uri, long id) {
+        Cursor cursor = getProvider().query(uri, PROJECTION, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) == id) {
+                    return cursor.getInt(1);
+                }
+            }
+            fail("No product " + id + " in " + uri);
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getCounter(String name) {
+        Cursor cursor = getProvider().query(DiagnosticsEntry.CONTENT_URI, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (DiagnosticsEntry.OPERATION_QUERY_CACHE.equals(cursor.getString(
+                        cursor.getColumnIndex(DiagnosticsEntry.OPERATION)))
+                        && name.equals(cursor.getString(
+                        cursor.getColumnIndex(DiagnosticsEntry.URI_MATCH)))) {
+                    return cursor.getLong(cursor.getColumnIndex(DiagnosticsEntry.COUNT));
+                }
+            }
+            fail("No query cache counter " + name);
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductProvider.FilteredSelection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instrumentation test of the sort orders and filters of {@link ProductProvider}. The query plan
+ * of every sort order and filter must use its index, neither scanning the whole table nor
+ * sorting the results in a temporary B-tree.
+ */
+public class ProductQueryPlanTest extends ProviderTestCase2<ProductProvider> {
+
+    private SQLiteDatabase mDatabase;
+
+    public ProductQueryPlanTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = new ProductDbHelper(getMockContext()).getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testSortByNameUsesIndex() {
+        assertUsesIndex(ProductEntry.CONTENT_URI, ProductEntry.SORT_BY_NAME,
+                ProductDbHelper.NAME_INDEX);
+    }
+
+    public void testSortByPriceUsesIndex() {
+        assertUsesIndex(ProductEntry.CONTENT_URI, ProductEntry.SORT_BY_PRICE,
+                ProductDbHelper.PRICE_INDEX);
+    }
+
+    public void testSortByQuantityUsesIndex() {
+        assertUsesIndex(ProductEntry.CONTENT_URI, ProductEntry.SORT_BY_QUANTITY,
+                ProductDbHelper.QUANTITY_INDEX);
+    }
+
+    public void testPriceRangeUsesIndex() {
+        assertUsesIndex(ProductEntry.buildPriceRangeUri(10, 20), null, ProductDbHelper.PRICE_INDEX);
+        assertUsesIndex(ProductEntry.buildPriceRangeUri(10, 20), ProductEntry.SORT_BY_PRICE,
+                ProductDbHelper.PRICE_INDEX);
+    }
+
+    public void testLowStockUsesIndex() {
+        assertUsesIndex(ProductEntry.buildLowStockUri(5), null, ProductDbHelper.QUANTITY_INDEX);
+        assertUsesIndex(ProductEntry.buildLowStockUri(5), ProductEntry.SORT_BY_QUANTITY,
+                ProductDbHelper.QUANTITY_INDEX);
+    }
+
+    public void testQueryHonorsSortOrderAndFilters() {
+        getProvider().insert(ProductEntry.CONTENT_URI, ProductTestData.createProduct("b", 30, 1));
+        getProvider().insert(ProductEntry.CONTENT_URI, ProductTestData.createProduct("C", 10, 8));
+        getProvider().insert(ProductEntry.CONTENT_URI, ProductTestData.createProduct("a", 20, 3));
+
+        assertEquals("a,b,C", queryNames(ProductEntry.CONTENT_URI, ProductEntry.SORT_BY_NAME));
+        assertEquals("C,a,b", queryNames(ProductEntry.CONTENT_URI, ProductEntry.SORT_BY_PRICE));
+        assertEquals("C,a", queryNames(ProductEntry.buildPriceRangeUri(10, 20),
+                ProductEntry.SORT_BY_PRICE));
+        assertEquals("b,a", queryNames(ProductEntry.buildLowStockUri(3),
+                ProductEntry.SORT_BY_QUANTITY));
+    }
+
+    private void assertUsesIndex(Uri uri, String sortOrder, String index) {
+        FilteredSelection filteredSelection = new FilteredSelection(uri, null, null);
+        String sql = SQLiteQueryBuilder.buildQueryString(false, ProductEntry.TABLE_NAME, null,
+                filteredSelection.selection, null, null, sortOrder, null);
+
+        List<String> plan = new ArrayList<>();
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                filteredSelection.selectionArgs);
+        try {
+            int detailColumnIndex = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailColumnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        boolean usesIndex = false;
+        for (String step : plan) {
+            assertFalse("Results are sorted in a temporary B-tree: " + plan,
+                    step.contains("TEMP B-TREE"));
+            usesIndex |= step.contains(index);
+        }
+        assertTrue(sql + " does not use " + index + ": " + plan, usesIndex);
+    }
+
+    private String queryNames(Uri uri, String sortOrder) {
+        StringBuilder names = new StringBuilder();
+        Cursor cursor = getProvider().query(uri, new String[] { ProductEntry.NAME }, null, null,
+                sortOrder);
+        try {
+            while (cursor.moveToNext()) {
+                if (names.length() > 0) {
+                    names.append(',');
+                }
+                names.append(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names.toString();
+    }
+}
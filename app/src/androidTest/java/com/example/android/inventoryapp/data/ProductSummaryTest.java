@@ -0,0 +1,73 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductContract.SummaryEntry;
+
+/**
+ * Instrumentation test of the inventory summary of {@link ProductProvider}. After every kind of
+ * write the summary must equal the totals computed from the products.
+ */
+public class ProductSummaryTest extends ProviderTestCase2<ProductProvider> {
+
+    public ProductSummaryTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    public void testSummaryFollowsWrites() {
+        assertSummary(0, 0, 0, 0);
+
+        Uri first = getProvider().insert(ProductEntry.CONTENT_URI, createProduct(10, 3));
+        Uri second = getProvider().insert(ProductEntry.CONTENT_URI, createProduct(2.5f, 0));
+        assertSummary(2, 3, 30, 1);
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.QUANTITY, 4);
+        getProvider().update(second, values, null, null);
+        assertSummary(2, 7, 40, 0);
+
+        values = new ContentValues();
+        values.put(ProductEntry.PRICE, 20);
+        getProvider().update(first, values, null, null);
+        assertSummary(2, 7, 70, 0);
+
+        Bundle extras = new Bundle();
+        extras.putInt(ProductEntry.EXTRA_AMOUNT, 3);
+        getProvider().call(ProductEntry.METHOD_SELL, String.valueOf(ContentUris.parseId(first)),
+                extras);
+        assertSummary(2, 4, 10, 1);
+
+        getProvider().delete(second, null, null);
+        assertSummary(1, 0, 0, 1);
+    }
+
+    private void assertSummary(int productCount, int unitsOnHand, float stockValue,
+                               int outOfStockCount) {
+        Cursor cursor = getProvider().query(SummaryEntry.CONTENT_URI, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(productCount,
+                    cursor.getInt(cursor.getColumnIndex(SummaryEntry.PRODUCT_COUNT)));
+            assertEquals(unitsOnHand,
+                    cursor.getInt(cursor.getColumnIndex(SummaryEntry.UNITS_ON_HAND)));
+            assertEquals(stockValue,
+                    cursor.getFloat(cursor.getColumnIndex(SummaryEntry.STOCK_VALUE)), 0.001f);
+            assertEquals(outOfStockCount,
+                    cursor.getInt(cursor.getColumnIndex(SummaryEntry.OUT_OF_STOCK_COUNT)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues createProduct(float price, int quantity) {
+        ContentValues values = ProductTestData.createProduct("Product", 0, quantity);
+        values.put(ProductEntry.PRICE, price);
+        return values;
+    }
+}
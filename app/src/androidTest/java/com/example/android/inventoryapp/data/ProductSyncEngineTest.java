@@ -0,0 +1,201 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductContract.TombstoneEntry;
+
+import java.io.IOException;
+
+/**
+ * Instrumentation test of {@link ProductSyncEngine} against an {@link InProcessSyncServer}.
+ */
+public class ProductSyncEngineTest extends ProviderTestCase2<ProductProvider> {
+
+    private static final String[] PROJECTION = {
+            ProductEntry.GLOBAL_ID,
+            ProductEntry.NAME,
+            ProductEntry.QUANTITY,
+            ProductEntry.VERSION,
+            ProductEntry.SERVER_VERSION,
+            ProductEntry.DIRTY
+    };
+
+    private InProcessSyncServer mServer;
+    private ProductSyncEngine mEngine;
+
+    public ProductSyncEngineTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new InProcessSyncServer();
+        mEngine = new ProductSyncEngine(getMockContentResolver(), mServer);
+    }
+
+    public void testPushesChangedProducts() throws Exception {
+        Uri uri = insertProduct("Tea", 5);
+        insertProduct("Coffee", 3);
+
+        ProductSyncEngine.Result result = mEngine.sync();
+        assertEquals(2, result.pushedCount);
+        assertEquals(0, result.pulledCount);
+        assertEquals(2, mServer.getProductCount());
+        ContentValues product = queryProduct(uri);
+        assertEquals(0, (int) product.getAsInteger(ProductEntry.DIRTY));
+        assertTrue(product.getAsLong(ProductEntry.SERVER_VERSION) > 0);
+
+        // A sale is a local change like any other.
+        sell(uri);
+        product = queryProduct(uri);
+        assertEquals(1, (int) product.getAsInteger(ProductEntry.DIRTY));
+        assertEquals(2, (int) product.getAsInteger(ProductEntry.VERSION));
+
+        assertEquals(1, mEngine.sync().pushedCount);
+        assertEquals(4, mServer.get(product.getAsString(ProductEntry.GLOBAL_ID)).quantity);
+    }
+
+    public void testPullsRemoteChanges() throws Exception {
+        mServer.put("remote", "Tea", 5);
+        assertEquals(1, mEngine.sync().pulledCount);
+        ContentValues product = queryProduct("remote");
+        assertEquals("Tea", product.getAsString(ProductEntry.NAME));
+        assertEquals(0, (int) product.getAsInteger(ProductEntry.DIRTY));
+
+        mServer.put("remote", "Tea", 8);
+        assertEquals(1, mEngine.sync().pulledCount);
+        product = queryProduct("remote");
+        assertEquals(8, (int) product.getAsInteger(ProductEntry.QUANTITY));
+        // A synced change is a new version, an edit based on the old one does not overwrite it.
+        assertEquals(2, (int) product.getAsInteger(ProductEntry.VERSION));
+        assertEquals(0, (int) product.getAsInteger(ProductEntry.DIRTY));
+
+        mServer.delete("remote");
+        assertEquals(1, mEngine.sync().pulledCount);
+        assertNull(queryProduct("remote"));
+        assertEquals(0, countTombstones());
+    }
+
+    public void testSyncWithoutChangesDoesNothing() throws Exception {
+        insertProduct("Tea", 5);
+        mServer.put("remote", "Coffee", 3);
+        mEngine.sync();
+
+        ProductSyncEngine.Result result = mEngine.sync();
+        assertEquals(0, result.pushedCount);
+        assertEquals(0, result.pulledCount);
+        assertEquals(0, result.conflictCount);
+    }
+
+    public void testPushesDeletions() throws Exception {
+        Uri uri = insertProduct("Tea", 5);
+        mEngine.sync();
+        String globalId = queryProduct(uri).getAsString(ProductEntry.GLOBAL_ID);
+
+        getProvider().delete(uri, null, null);
+        assertEquals(1, countTombstones());
+
+        assertEquals(1, mEngine.sync().pushedCount);
+        assertNull(mServer.get(globalId));
+        assertEquals(0, countTombstones());
+    }
+
+    public void testResumesAfterFailedExchange() throws Exception {
+        int productCount = ProductSyncEngine.BATCH_SIZE * 2 + 1;
+        for (int i = 0; i < productCount; i++) {
+            mServer.put("remote " + i, "Product " + i, i);
+        }
+
+        // The first two batches are pulled before the third exchange fails.
+        mServer.failAfter(2);
+        try {
+            mEngine.sync();
+            fail("Sync did not fail");
+        } catch (IOException expected) {
+        }
+        assertEquals(ProductSyncEngine.BATCH_SIZE * 2, countProducts());
+
+        mServer.failAfter(-1);
+        assertEquals(1, mEngine.sync().pulledCount);
+        assertEquals(productCount, countProducts());
+    }
+
+    public void testServerWinsConflicts() throws Exception {
+        Uri uri = insertProduct("Tea", 5);
+        mEngine.sync();
+        String globalId = queryProduct(uri).getAsString(ProductEntry.GLOBAL_ID);
+
+        mServer.put(globalId, "Green tea", 5);
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.NAME, "Black tea");
+        getProvider().update(uri, values, null, null);
+
+        ProductSyncEngine.Result result = mEngine.sync();
+        assertEquals(0, result.pushedCount);
+        assertEquals(1, result.conflictCount);
+        ContentValues product = queryProduct(uri);
+        assertEquals("Green tea", product.getAsString(ProductEntry.NAME));
+        assertEquals(0, (int) product.getAsInteger(ProductEntry.DIRTY));
+        assertEquals("Green tea", mServer.get(globalId).name);
+    }
+
+    private Uri insertProduct(String name, int quantity) {
+        return getProvider().insert(ProductEntry.CONTENT_URI,
+                ProductTestData.createProduct(name, 10, quantity));
+    }
+
+    private void sell(Uri uri) {
+        getProvider().call(ProductEntry.METHOD_SELL, String.valueOf(ContentUris.parseId(uri)),
+                null);
+    }
+
+    private ContentValues queryProduct(Uri uri) {
+        return queryProduct(getProvider().query(uri, PROJECTION, null, null, null));
+    }
+
+    private ContentValues queryProduct(String globalId) {
+        return queryProduct(getProvider().query(ProductEntry.CONTENT_URI, PROJECTION,
+                ProductEntry.GLOBAL_ID + "=?", new String[] { globalId }, null));
+    }
+
+    private static ContentValues queryProduct(Cursor cursor) {
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.GLOBAL_ID, cursor.getString(0));
+            values.put(ProductEntry.NAME, cursor.getString(1));
+            values.put(ProductEntry.QUANTITY, cursor.getInt(2));
+            values.put(ProductEntry.VERSION, cursor.getInt(3));
+            values.put(ProductEntry.SERVER_VERSION, cursor.getLong(4));
+            values.put(ProductEntry.DIRTY, cursor.getInt(5));
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countProducts() {
+        return count(ProductEntry.CONTENT_URI, ProductEntry._ID);
+    }
+
+    private int countTombstones() {
+        return count(TombstoneEntry.CONTENT_URI, TombstoneEntry._ID);
+    }
+
+    private int count(Uri uri, String column) {
+        Cursor cursor = getProvider().query(uri, new String[] { column }, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Products the instrumentation tests insert, valid for the checks of {@link ProductProvider}.
+ */
+public final class ProductTestData {
+
+    // Image bytes, the provider stores them without decoding.
+    public static final byte[] IMAGE = { 1, 2, 3 };
+
+    private ProductTestData() {}
+
+    /**
+     * Returns the values of a product without an image.
+     */
+    public static ContentValues createProduct(String name, int price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.NAME, name);
+        values.put(ProductEntry.PRICE, price);
+        values.put(ProductEntry.QUANTITY, quantity);
+        values.put(ProductEntry.SUPPLIER_PHONE, "+3670");
+        return values;
+    }
+
+    /**
+     * Returns the values of the product with the given index, without an image. Products of
+     * different indexes have different names and supplier phones.
+     */
+    public static ContentValues createProduct(int index) {
+        ContentValues values = createProduct("Product " + index, index % 100, index % 10);
+        values.put(ProductEntry.SUPPLIER_PHONE, "+3670" + index);
+        return values;
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+/**
+ * Instrumentation benchmark of the hot writes of {@link ProductProvider}. Every write runs in a
+ * transaction of its own, like a single provider call, once through SQLiteDatabase with
+ * ContentValues and once through a precompiled statement. The throughput of both is logged.
+ */
+public class ProductWriteThroughputTest extends AndroidTestCase {
+
+    private static final String LOG_TAG = ProductWriteThroughputTest.class.getSimpleName();
+
+    private static final int WRITE_COUNT = 5000;
+
+    private Context mContext;
+    private ProductDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), "test.");
+        mContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+        mDbHelper = new ProductDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(ProductDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testPriceUpdateThroughput() {
+        long id = mDatabase.insertOrThrow(ProductEntry.TABLE_NAME, null, createProduct(0));
+        String[] selectionArgs = new String[] { String.valueOf(id) };
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < WRITE_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.PRICE, i);
+            mDatabase.beginTransaction();
+            try {
+                assertEquals(1, mDatabase.update(ProductEntry.TABLE_NAME, values,
+                        ProductEntry._ID + "=?", selectionArgs));
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+        long contentValuesMillis = SystemClock.elapsedRealtime() - start;
+
+        SQLiteStatement statement = mDatabase.compileStatement("UPDATE " + ProductEntry.TABLE_NAME
+                + " SET " + ProductEntry.PRICE + " = ? WHERE " + ProductEntry._ID + " = ?");
+        start = SystemClock.elapsedRealtime();
+        try {
+            for (int i = 0; i < WRITE_COUNT; i++) {
+                mDatabase.beginTransaction();
+                try {
+                    statement.bindLong(1, i);
+                    statement.bindLong(2, id);
+                    assertEquals(1, statement.executeUpdateDelete());
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        long statementMillis = SystemClock.elapsedRealtime() - start;
+
+        logThroughput("price updates", contentValuesMillis, statementMillis);
+    }
+
+    public void testInsertThroughput() {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < WRITE_COUNT; i++) {
+            mDatabase.beginTransaction();
+            try {
+                assertTrue(mDatabase.insert(ProductEntry.TABLE_NAME, null, createProduct(i)) != -1);
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+        long contentValuesMillis = SystemClock.elapsedRealtime() - start;
+
+        SQLiteStatement statement = mDatabase.compileStatement("INSERT INTO "
+                + ProductEntry.TABLE_NAME + " (" + ProductEntry.NAME + ", " + ProductEntry.PRICE
+                + ", " + ProductEntry.QUANTITY + ", " + ProductEntry.SUPPLIER_PHONE + ", "
+                + ProductEntry.IMAGE_REF + ") VALUES (?, ?, ?, ?, ?)");
+        start = SystemClock.elapsedRealtime();
+        try {
+            for (int i = 0; i < WRITE_COUNT; i++) {
+                mDatabase.beginTransaction();
+                try {
+                    statement.bindString(1, "Product " + i);
+                    statement.bindLong(2, i % 100);
+                    statement.bindLong(3, i % 10);
+                    statement.bindString(4, "+3670" + i);
+                    statement.bindString(5, "ref" + i);
+                    assertTrue(statement.executeInsert() != -1);
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        long statementMillis = SystemClock.elapsedRealtime() - start;
+
+        logThroughput("inserts", contentValuesMillis, statementMillis);
+    }
+
+    private static void logThroughput(String operation, long contentValuesMillis,
+                                      long statementMillis) {
+        Log.i(LOG_TAG, WRITE_COUNT + " " + operation + ": ContentValues "
+                + WRITE_COUNT * 1000L / Math.max(contentValuesMillis, 1) + "/s, statement "
+                + WRITE_COUNT * 1000L / Math.max(statementMillis, 1) + "/s, speedup "
+                + ((float) contentValuesMillis / Math.max(statementMillis, 1)) + "x");
+    }
+
+    private static ContentValues createProduct(int index) {
+        ContentValues values = ProductTestData.createProduct(index);
+        values.put(ProductEntry.IMAGE_REF, "ref" + index);
+        return values;
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductContract.StockMovementEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Instrumentation test of the stock ledger written by {@link ProductProvider}, of the quantity
+ * lookups from snapshots and of the compaction of old movements.
+ */
+public class StockLedgerTest extends ProviderTestCase2<ProductProvider> {
+
+    private ProductDbHelper mDbHelper;
+
+    public StockLedgerTest() {
+        super(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new ProductDbHelper(getMockContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    public void testWritesAppendMovements() {
+        Uri uri = getProvider().insert(ProductEntry.CONTENT_URI, ProductTestData.createProduct("Product", 10, 5));
+        long id = ContentUris.parseId(uri);
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.QUANTITY, 8);
+        getProvider().update(uri.buildUpon()
+                .appendQueryParameter(ProductEntry.QUERY_PARAMETER_REASON, "delivery").build(),
+                values, null, null);
+        // Unchanged quantities are not recorded.
+        getProvider().update(uri, values, null, null);
+
+        Bundle extras = new Bundle();
+        extras.putInt(ProductEntry.EXTRA_AMOUNT, 3);
+        getProvider().call(ProductEntry.METHOD_SELL, String.valueOf(id), extras);
+        getProvider().delete(uri, null, null);
+
+        List<String> movements = new ArrayList<>();
+        Cursor cursor = getProvider().query(StockMovementEntry.CONTENT_URI,
+                new String[] { StockMovementEntry.CHANGE, StockMovementEntry.REASON },
+                StockMovementEntry.PRODUCT_ID + "=?", new String[] { String.valueOf(id) },
+                StockMovementEntry._ID + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                movements.add(cursor.getInt(0) + " " + cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(Arrays.asList("5 " + StockMovementEntry.REASON_CREATED, "3 delivery",
+                "-3 " + StockMovementEntry.REASON_SALE, "-5 " + StockMovementEntry.REASON_DELETED),
+                movements);
+    }
+
+    public void testSnapshotAfterInterval() {
+        long before = System.currentTimeMillis() - 1;
+        Uri uri = getProvider().insert(ProductEntry.CONTENT_URI, ProductTestData.createProduct("Product", 10, 1000));
+        long id = ContentUris.parseId(uri);
+        for (int i = 0; i < StockLedger.SNAPSHOT_INTERVAL; i++) {
+            getProvider().call(ProductEntry.METHOD_SELL, String.valueOf(id), null);
+        }
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, StockLedger.SNAPSHOTS_TABLE));
+        assertEquals(1000 - StockLedger.SNAPSHOT_INTERVAL,
+                getQuantityAsOf(id, System.currentTimeMillis()).intValue());
+        assertNull(getQuantityAsOf(id, before));
+    }
+
+    public void testQuantityAsOfReplaysFromSnapshot() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long id = insertProductRow(db, 5);
+        long first = insertMovement(db, id, 10, 100);
+        insertMovement(db, id, -3, 200);
+        insertSnapshot(db, id, 200, 7, first + 1);
+        insertMovement(db, id, -2, 300);
+
+        assertNull(getQuantityAsOf(id, 50));
+        assertEquals(10, getQuantityAsOf(id, 100).intValue());
+        assertEquals(7, getQuantityAsOf(id, 250).intValue());
+        assertEquals(5, getQuantityAsOf(id, 300).intValue());
+    }
+
+    public void testCompaction() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long id = insertProductRow(db, 5);
+        insertMovement(db, id, 10, 100);
+        insertMovement(db, id, -3, 200);
+        insertMovement(db, id, -2, 300);
+        // A deleted product whose whole history is older than the cutoff.
+        long deletedId = id + 1;
+        insertMovement(db, deletedId, 4, 100);
+        insertMovement(db, deletedId, -4, 200);
+
+        assertEquals(2, StockLedger.compact(db, 250));
+
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, StockMovementEntry.TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, StockLedger.SNAPSHOTS_TABLE));
+        assertNull(getQuantityAsOf(id, 100));
+        assertEquals(7, getQuantityAsOf(id, 250).intValue());
+        assertEquals(5, getQuantityAsOf(id, 300).intValue());
+        assertNull(getQuantityAsOf(deletedId, 250));
+
+        // Nothing older than the cutoff is left.
+        assertEquals(0, StockLedger.compact(db, 250));
+    }
+
+    private Integer getQuantityAsOf(long id, long timestamp) {
+        Bundle extras = new Bundle();
+        extras.putLong(ProductEntry.EXTRA_TIMESTAMP, timestamp);
+        Bundle result = getProvider().call(ProductEntry.METHOD_QUANTITY_AS_OF,
+                String.valueOf(id), extras);
+        return result == null ? null : result.getInt(ProductEntry.EXTRA_QUANTITY);
+    }
+
+    /*
+    * Inserts a product without going through the provider, so the ledger stays empty.
+    */
+    private static long insertProductRow(SQLiteDatabase db, int quantity) {
+        return db.insert(ProductEntry.TABLE_NAME, null,
+                ProductTestData.createProduct("Product", 10, quantity));
+    }
+
+    private static long insertMovement(SQLiteDatabase db, long productId, int change,
+                                       long timestamp) {
+        ContentValues values = new ContentValues();
+        values.put(StockMovementEntry.PRODUCT_ID, productId);
+        values.put(StockMovementEntry.CHANGE, change);
+        values.put(StockMovementEntry.REASON, StockMovementEntry.REASON_ADJUSTMENT);
+        values.put(StockMovementEntry.TIMESTAMP, timestamp);
+        return db.insert(StockMovementEntry.TABLE_NAME, null, values);
+    }
+
+    private static void insertSnapshot(SQLiteDatabase db, long productId, long timestamp,
+                                       int quantity, long movementId) {
+        ContentValues values = new ContentValues();
+        values.put(StockMovementEntry.PRODUCT_ID, productId);
+        values.put(StockMovementEntry.TIMESTAMP, timestamp);
+        values.put(StockLedger.COLUMN_QUANTITY, quantity);
+        values.put(StockLedger.COLUMN_MOVEMENT_ID, movementId);
+        db.insert(StockLedger.SNAPSHOTS_TABLE, null, values);
+    }
+}
@@ -1,32 +1,80 @@
 package com.example.android.inventoryapp;
 
-import android.app.LoaderManager;
+import android.app.ProgressDialog;
+import android.content.ContentResolver;
+import android.content.Context;
 import android.content.CursorLoader;
-import android.content.Loader;
 import android.content.Intent;
+import android.content.Loader;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.os.TraceCompat;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
-import com.example.android.inventoryapp.data.ProductDbHelper;
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+import com.example.android.inventoryapp.data.ProductContract.SummaryEntry;
+import com.example.android.inventoryapp.data.ProductCsvImporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class CatalogActivity extends AppCompatActivity
+        implements android.app.LoaderManager.LoaderCallbacks<Cursor> {
+
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
+    private static final int SUMMARY_LOADER = 0;
+
+    // Request code of the file picker returning the CSV file to import.
+    private static final int REQUEST_IMPORT_CSV = 1;
+
+    // Imports run one at a time and outlive the Activity that started them.
+    private static final ExecutorService sImportExecutor = Executors.newSingleThreadExecutor();
+
+    // Typing pause after which the search query is run, so not every keystroke queries.
+    static final long SEARCH_DELAY_MILLIS = 300;
 
-    // Unique ID used during initialization of the Loader.
-    private static final int PRODUCT_LOADER = 0;
-    ProductDbHelper mDbHelper;
-    ProductCursorAdapter mProductCursorAdapter;
+    CatalogDataSource mCatalogDataSource;
+    ProductAdapter mProductAdapter;
+    StockWriteBuffer mStockWriteBuffer;
+    View mEmptyView;
+    TextView mSummaryTextView;
+    final Handler mSearchHandler = new Handler();
+    String mPendingQuery;
+    // Progress of an import started by this Activity, null while none is running.
+    ProgressDialog mImportDialog;
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCatalogDataSource.setQuery(mPendingQuery);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        TraceCompat.beginSection("CatalogActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
-        mDbHelper = new ProductDbHelper(this);
-
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.add_product_fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -37,46 +85,307 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        ListView catalogListView = (ListView) findViewById(R.id.catalog_list_view);
+        final RecyclerView catalogListView = (RecyclerView) findViewById(R.id.catalog_list_view);
+        catalogListView.setLayoutManager(new LinearLayoutManager(this));
+        catalogListView.setHasFixedSize(true);
+
+        mEmptyView = findViewById(R.id.empty_view);
+        mSummaryTextView = (TextView) findViewById(R.id.summary_text_view);
+        // The summary is a single row maintained by the database, loading it scans nothing.
+        getLoaderManager().initLoader(SUMMARY_LOADER, null, this);
+
+        // Keep the loaded pages across configuration changes instead of querying them again.
+        mCatalogDataSource = (CatalogDataSource) getLastCustomNonConfigurationInstance();
+        boolean newDataSource = mCatalogDataSource == null;
+        if (newDataSource) {
+            mCatalogDataSource = new CatalogDataSource(getApplicationContext().getContentResolver());
+        }
 
-        View emptyView = findViewById(R.id.empty_view);
-        catalogListView.setEmptyView(emptyView);
+        mStockWriteBuffer = StockWriteBuffer.getInstance(this);
+        mProductAdapter = new ProductAdapter(this, mCatalogDataSource, mStockWriteBuffer);
+        // RecyclerView has no empty view, show it whenever the adapter runs empty.
+        mProductAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
 
-        mProductCursorAdapter = new ProductCursorAdapter(this, null, 0);
-        catalogListView.setAdapter(mProductCursorAdapter);
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
 
-        // Start loader to retrieve database table
-        getLoaderManager().initLoader(PRODUCT_LOADER, null, this);
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+        catalogListView.setAdapter(mProductAdapter);
+        mCatalogDataSource.setListener(mProductAdapter);
+        mStockWriteBuffer.addListener(mProductAdapter);
+
+        // Start loading the first page of the catalog
+        if (newDataSource) {
+            mCatalogDataSource.start();
+            catalogListView.getViewTreeObserver().addOnPreDrawListener(
+                    new ViewTreeObserver.OnPreDrawListener() {
+                        @Override
+                        public boolean onPreDraw() {
+                            if (mCatalogDataSource.isLoaded()) {
+                                catalogListView.getViewTreeObserver()
+                                        .removeOnPreDrawListener(this);
+                                onFirstCatalogFrame();
+                            }
+                            return true;
+                        }
+                    });
+        }
+        TraceCompat.endSection();
+    }
+
+    /*
+    * Marks the first frame showing the loaded catalog, the end of a cold start. The trace section
+    * finds the frame in a systrace, the fully drawn time is logged by the system and read by
+    * scripts/measure_cold_start.sh.
+    */
+    private void onFirstCatalogFrame() {
+        TraceCompat.beginSection("CatalogActivity.firstFrame");
+        try {
+            // Needs a permission the app does not hold on KitKat.
+            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.KITKAT) {
+                reportFullyDrawn();
+            }
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+
+        // Restore the search kept by the data source across configuration changes.
+        String query = mCatalogDataSource.getQuery();
+        if (query != null) {
+            MenuItemCompat.expandActionView(searchItem);
+            searchView.setQuery(query, false);
+        }
+
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query, 0);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText, SEARCH_DELAY_MILLIS);
+                return true;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem,
+                new MenuItemCompat.OnActionExpandListener() {
+                    @Override
+                    public boolean onMenuItemActionExpand(MenuItem item) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onMenuItemActionCollapse(MenuItem item) {
+                        search(null, 0);
+                        return true;
+                    }
+                });
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_import_csv:
+                Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                pickIntent.setType("text/*");
+                pickIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                if (pickIntent.resolveActivity(getPackageManager()) != null) {
+                    startActivityForResult(pickIntent, REQUEST_IMPORT_CSV);
+                } else {
+                    Toast.makeText(this, R.string.toast_message_no_file_picker,
+                            Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            case R.id.action_export_csv:
+                // The receiving app reads the export streamed by ProductProvider.
+                Intent shareIntent = new Intent(Intent.ACTION_SEND);
+                shareIntent.setType(ProductEntry.CSV_MIME_TYPE);
+                shareIntent.putExtra(Intent.EXTRA_STREAM, ProductEntry.EXPORT_URI);
+                shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                startActivity(Intent.createChooser(shareIntent,
+                        getString(R.string.action_export_csv)));
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT_CSV && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            importCsv(data.getData());
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /*
+    * Imports the products of the CSV file in the background. The catalog shows every imported
+    * chunk as soon as it has been committed, the dialog shows the progress.
+    */
+    private void importCsv(final Uri csvUri) {
+        mImportDialog = new ProgressDialog(this);
+        mImportDialog.setIndeterminate(true);
+        mImportDialog.setCancelable(false);
+        mImportDialog.setMessage(getString(R.string.import_progress, 0, 0));
+        mImportDialog.show();
+
+        final Context context = getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        sImportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentResolver contentResolver = context.getContentResolver();
+                ProductCsvImporter.Result result = null;
+                try {
+                    InputStream inputStream = contentResolver.openInputStream(csvUri);
+                    if (inputStream == null) {
+                        throw new IOException("Unable to open " + csvUri);
+                    }
+                    try {
+                        result = new ProductCsvImporter(contentResolver).importProducts(
+                                inputStream, new ProductCsvImporter.Listener() {
+                                    @Override
+                                    public void onProgress(final int importedCount,
+                                                           final int rejectedCount) {
+                                        mainHandler.post(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                onImportProgress(importedCount, rejectedCount);
+                                            }
+                                        });
+                                    }
+                                });
+                    } finally {
+                        inputStream.close();
+                    }
+                    for (ProductCsvImporter.Rejection rejection : result.rejections) {
+                        Log.w(LOG_TAG, "Rejected " + rejection);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Unable to import " + csvUri, e);
+                }
+
+                final ProductCsvImporter.Result finalResult = result;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onImportFinished(context, finalResult);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onImportProgress(int importedCount, int rejectedCount) {
+        if (mImportDialog != null) {
+            mImportDialog.setMessage(getString(R.string.import_progress, importedCount,
+                    rejectedCount));
+        }
+    }
+
+    /*
+    * The result is shown even if the Activity has been destroyed in the meantime.
+    */
+    private void onImportFinished(Context context, ProductCsvImporter.Result result) {
+        if (mImportDialog != null) {
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+        if (result == null) {
+            Toast.makeText(context, R.string.toast_message_import_failed, Toast.LENGTH_SHORT)
+                    .show();
+        } else {
+            Toast.makeText(context, context.getString(R.string.toast_message_import_finished,
+                    result.importedCount, result.rejectedCount), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /*
+    * Runs the search after the given delay, replacing a search still waiting for its delay.
+    */
+    private void search(String query, long delayMillis) {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        mPendingQuery = query;
+        if (delayMillis == 0) {
+            mSearchRunnable.run();
+        } else {
+            mSearchHandler.postDelayed(mSearchRunnable, delayMillis);
+        }
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                ProductEntry._ID,
-                ProductEntry.NAME,
-                ProductEntry.PRICE,
-                ProductEntry.QUANTITY
-        };
-
-        CursorLoader cursorLoader = new CursorLoader(
-                this,
-                ProductEntry.CONTENT_URI,
-                projection,
-                null,
-                null,
-                null
-        );
-
-        return cursorLoader;
+        return new CursorLoader(this, SummaryEntry.CONTENT_URI, null, null, null, null);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        mProductCursorAdapter.swapCursor(cursor);
+        if (cursor == null || !cursor.moveToFirst()) {
+            mSummaryTextView.setVisibility(View.GONE);
+            return;
+        }
+
+        int productCount = cursor.getInt(cursor.getColumnIndex(SummaryEntry.PRODUCT_COUNT));
+        mSummaryTextView.setText(getString(R.string.catalog_summary,
+                productCount,
+                cursor.getInt(cursor.getColumnIndex(SummaryEntry.UNITS_ON_HAND)),
+                cursor.getFloat(cursor.getColumnIndex(SummaryEntry.STOCK_VALUE)),
+                getString(R.string.currency),
+                cursor.getInt(cursor.getColumnIndex(SummaryEntry.OUT_OF_STOCK_COUNT))));
+        mSummaryTextView.setVisibility(productCount == 0 ? View.GONE : View.VISIBLE);
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mProductCursorAdapter.swapCursor(null);
+        mSummaryTextView.setVisibility(View.GONE);
+    }
+
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mProductAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mCatalogDataSource;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        if (mImportDialog != null) {
+            // The import goes on, its result is still shown.
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+        mStockWriteBuffer.removeListener(mProductAdapter);
+        if (isChangingConfigurations()) {
+            mCatalogDataSource.setListener(null);
+        } else {
+            mCatalogDataSource.stop();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,360 @@
+package com.example.android.inventoryapp;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.os.TraceCompat;
+import android.text.TextUtils;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the catalog page by page on a background thread. Only the first page is queried up
+ * front, the following pages are fetched as the list scrolls towards the end of the loaded rows.
+ * Change notifications naming the changed products only requery and patch those rows.
+ * While a search query is set, the search results are loaded in a single query instead.
+ * All public methods must be called on the main thread.
+ */
+public class CatalogDataSource {
+
+    /**
+     * Receives the loaded products on the main thread.
+     */
+    public interface Listener {
+        void onProductsChanged(List<Product> products);
+    }
+
+    static final int PAGE_SIZE = 50;
+
+    // Number of not yet displayed rows left when the next page is requested.
+    static final int PREFETCH_DISTANCE = 20;
+
+    // Largest number of search results loaded.
+    static final int SEARCH_LIMIT = 200;
+
+    static final String[] PROJECTION = {
+            ProductEntry._ID,
+            ProductEntry.NAME,
+            ProductEntry.PRICE,
+            ProductEntry.QUANTITY
+    };
+
+    private final ContentResolver mContentResolver;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long[] changedIds = ProductEntry.getChangedIds(uri);
+            // Search results are ordered by rank, so a changed row can move anywhere.
+            if (changedIds == null || mQuery != null) {
+                reload();
+            } else {
+                patch(changedIds);
+            }
+        }
+    };
+
+    private Listener mListener;
+    private List<Product> mProducts = Collections.emptyList();
+    private boolean mLoading;
+    private boolean mLoaded;
+    private boolean mEndReached;
+    // Search query whose results are listed, null while the whole catalog is listed.
+    private String mQuery;
+    // Incremented on every reload, so pages and patches requested before it are dropped.
+    private int mGeneration;
+
+    public CatalogDataSource(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+        if (mListener != null) {
+            mListener.onProductsChanged(mProducts);
+        }
+    }
+
+    public void start() {
+        mContentResolver.registerContentObserver(ProductEntry.CONTENT_URI, true, mObserver);
+        loadNextPage();
+    }
+
+    public void stop() {
+        mContentResolver.unregisterContentObserver(mObserver);
+        mExecutor.shutdownNow();
+        mListener = null;
+    }
+
+    public List<Product> getProducts() {
+        return mProducts;
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * Returns whether the first products have been delivered to the listener.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Lists the products matching the search query, or the whole catalog if the query is empty.
+     * The products listed so far stay until the new ones have been loaded.
+     */
+    public void setQuery(String query) {
+        if (query != null && query.trim().isEmpty()) {
+            query = null;
+        }
+        if (TextUtils.equals(query, mQuery)) {
+            return;
+        }
+        mQuery = query;
+        reload();
+    }
+
+    /**
+     * Requests the next page when the row at the given position gets close to the end of the
+     * loaded products.
+     */
+    public void onPositionBound(int position) {
+        if (!mLoading && !mEndReached && position >= mProducts.size() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Replaces the quantities of the loaded products with the given ones, without waiting for
+     * the reload triggered by the change of the database.
+     */
+    public void updateQuantities(Map<Long, Integer> quantities) {
+        if (quantities.isEmpty()) {
+            return;
+        }
+
+        List<Product> products = new ArrayList<>(mProducts.size());
+        for (Product product : mProducts) {
+            Integer quantity = quantities.get(product.getId());
+            if (quantity != null) {
+                product = new Product(product.getId(), product.getName(), product.getPrice(),
+                        quantity);
+            }
+            products.add(product);
+        }
+        mProducts = products;
+        if (mListener != null) {
+            mListener.onProductsChanged(mProducts);
+        }
+    }
+
+    private void loadNextPage() {
+        mLoading = true;
+        final int generation = mGeneration;
+        final long afterId = mProducts.isEmpty() ? 0 : mProducts.get(mProducts.size() - 1).getId();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The first page is the query a cold start of the catalog waits for.
+                if (afterId == 0) {
+                    TraceCompat.beginSection("CatalogDataSource.firstPage");
+                }
+                final List<Product> page;
+                try {
+                    page = query(ProductEntry.buildPageUri(afterId, PAGE_SIZE));
+                } finally {
+                    if (afterId == 0) {
+                        TraceCompat.endSection();
+                    }
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        List<Product> products = new ArrayList<>(mProducts.size() + page.size());
+                        products.addAll(mProducts);
+                        products.addAll(page);
+                        onLoaded(products, page.size() < PAGE_SIZE);
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+    * Reloads every row loaded so far in a single query, keeping the scroll range of the list.
+    */
+    private void reload() {
+        mLoading = true;
+        final int generation = ++mGeneration;
+        final Uri uri;
+        final int limit;
+        if (mQuery == null) {
+            limit = Math.max(mProducts.size(), PAGE_SIZE);
+            uri = ProductEntry.buildPageUri(0, limit);
+        } else {
+            // All search results are loaded at once, so no page follows.
+            limit = Integer.MAX_VALUE;
+            uri = ProductEntry.buildSearchUri(mQuery, SEARCH_LIMIT);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Product> products = query(uri);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            onLoaded(products, products.size() < limit);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+    * Requeries the changed products and replaces, inserts or removes just their rows.
+    */
+    private void patch(final long[] changedIds) {
+        final int generation = mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String[] selectionArgs = new String[changedIds.length];
+                for (int i = 0; i < changedIds.length; i++) {
+                    selectionArgs[i] = String.valueOf(changedIds[i]);
+                }
+                String selection = ProductEntry._ID + " IN ("
+                        + TextUtils.join(",", Collections.nCopies(changedIds.length, "?")) + ")";
+                final List<Product> changedProducts =
+                        query(ProductEntry.CONTENT_URI, selection, selectionArgs);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            applyPatch(changedIds, changedProducts);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void applyPatch(long[] changedIds, List<Product> changedProducts) {
+        Map<Long, Product> productsById = new HashMap<>();
+        for (Product product : changedProducts) {
+            productsById.put(product.getId(), product);
+        }
+
+        List<Product> products = new ArrayList<>(mProducts);
+        for (long id : changedIds) {
+            int position = findPosition(products, id);
+            Product product = productsById.get(id);
+            if (position >= 0) {
+                if (product == null) {
+                    products.remove(position);
+                } else {
+                    products.set(position, product);
+                }
+            } else if (product != null && (mEndReached || -position - 1 < products.size())) {
+                // New rows behind the last loaded one are left to the page that covers them.
+                products.add(-position - 1, product);
+            }
+        }
+
+        mProducts = products;
+        if (mListener != null) {
+            mListener.onProductsChanged(mProducts);
+        }
+    }
+
+    /*
+    * Binary search of the product in the list ordered by _ID. Returns its position, or
+    * (-(insertion point) - 1) if it is not in the list.
+    */
+    private static int findPosition(List<Product> products, long id) {
+        int low = 0;
+        int high = products.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = products.get(middle).getId();
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void onLoaded(List<Product> products, boolean endReached) {
+        mProducts = products;
+        mEndReached = endReached;
+        mLoading = false;
+        mLoaded = true;
+        if (mListener != null) {
+            mListener.onProductsChanged(mProducts);
+        }
+    }
+
+    /*
+    * Runs on the background thread.
+    */
+    private List<Product> query(Uri uri) {
+        return query(uri, null, null);
+    }
+
+    /*
+    * Runs on the background thread.
+    */
+    private List<Product> query(Uri uri, String selection, String[] selectionArgs) {
+        List<Product> products = new ArrayList<>();
+        Cursor cursor = mContentResolver.query(uri, PROJECTION, selection, selectionArgs, null);
+        if (cursor == null) {
+            return products;
+        }
+
+        try {
+            int idColumnIndex = cursor.getColumnIndex(ProductEntry._ID);
+            int nameColumnIndex = cursor.getColumnIndex(ProductEntry.NAME);
+            int priceColumnIndex = cursor.getColumnIndex(ProductEntry.PRICE);
+            int quantityColumnIndex = cursor.getColumnIndex(ProductEntry.QUANTITY);
+
+            while (cursor.moveToNext()) {
+                products.add(new Product(
+                        cursor.getLong(idColumnIndex),
+                        cursor.getString(nameColumnIndex),
+                        cursor.getFloat(priceColumnIndex),
+                        cursor.getInt(quantityColumnIndex)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return products;
+    }
+}
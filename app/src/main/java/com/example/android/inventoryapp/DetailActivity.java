@@ -1,5 +1,6 @@
 package com.example.android.inventoryapp;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
@@ -7,7 +8,6 @@ import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Bundle;
@@ -25,8 +25,8 @@ import android.widget.ImageView;
 import android.widget.Toast;
 
 import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
-
-import java.io.ByteArrayOutputStream;
+import com.example.android.inventoryapp.data.ProductImageCache;
+import com.example.android.inventoryapp.data.ProductImagePipeline;
 
 /**
  * Adds a new product entry into the products table.
@@ -56,6 +56,23 @@ public class DetailActivity extends AppCompatActivity
     // activity.
     private boolean mProductModified = false;
 
+    // Writes the product off the main thread. Set while a save or delete is in progress, so
+    // repeated taps do not queue the same write twice.
+    private ProductWriter mProductWriter;
+    private boolean mWriteInProgress = false;
+
+    // Loads the stored image at the size it is displayed at, from the cache or decoded in the
+    // background. Cached bitmaps are shared and must not be recycled.
+    private ProductImageCache mImageCache;
+    private ProductImagePipeline.Request mImageRequest;
+    // Whether the user has taken a new photo, only then the image is written on update.
+    private boolean mImageChanged = false;
+
+    // The values and version of the product the edits are based on. An update only writes the
+    // columns the user changed, the provider merges them with concurrent changes like sales.
+    private ContentValues mLoadedValues;
+    private long mLoadedVersion;
+
     // Attach listener to view that tracks whether product data has been changed by the user.
     private View.OnTouchListener mOnTouchListener = new View.OnTouchListener() {
         @Override
@@ -94,6 +111,20 @@ public class DetailActivity extends AppCompatActivity
         priceEditText.setOnTouchListener(mOnTouchListener);
         quantityEditText.setOnTouchListener(mOnTouchListener);
         supplierPhoneEditText.setOnTouchListener(mOnTouchListener);
+
+        mProductWriter = new ProductWriter(getContentResolver());
+        mImageCache = ProductImageCache.getInstance(this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Drop the results of pending writes, the Activity is not around to show them anymore.
+        // The writes themselves still complete, also when the Activity is only recreated.
+        mProductWriter.cancel();
+        if (mImageRequest != null) {
+            mImageRequest.cancel();
+        }
     }
 
     @Override
@@ -127,11 +158,8 @@ public class DetailActivity extends AppCompatActivity
         super.onOptionsItemSelected(item);
         switch (item.getItemId()) {
             case R.id.action_save:
-                // Check whether saving was successful or not.
-                // If yes, then finish current Activity, if no, then stay in the current Activity.
-                if (saveProduct()) {
-                    finish();
-                }
+                // The Activity is finished once the product has been saved successfully.
+                saveProduct();
                 return true;
             case R.id.action_delete:
                 // Show confirmation dialog in order to prevent accidental removal of Product.
@@ -152,43 +180,105 @@ public class DetailActivity extends AppCompatActivity
     }
 
     /*
-    * Logic for inserting or updating the Product Entry
+    * Logic for inserting or updating the Product Entry. The write runs in the background and the
+    * Activity is finished once it has succeeded.
     */
-    private boolean saveProduct() {
-        boolean productSaved = true;
-
-        if (isValidProduct()) {
-            ContentValues contentValues = getContentValues();
-            // Check whether it is a new Product to insert or an existing Product to update.
-            if (mCurrentProductUri == null) {
-                Uri newUri = getContentResolver().insert(ProductEntry.CONTENT_URI, contentValues);
-                // If newUri is not null then insertion was successful else unsuccessful.
-                if (newUri == null) {
-                    Toast.makeText(this, getString(R.string.toast_message_product_not_saved),
-                            Toast.LENGTH_SHORT).show();
-                } else {
-                    Toast.makeText(this, getString(R.string.toast_message_product_saved),
-                            Toast.LENGTH_SHORT).show();
+    private void saveProduct() {
+        if (mWriteInProgress) {
+            return;
+        }
+
+        if (!isValidProduct()) {
+            Toast.makeText(this, getString(R.string.toast_message_fill_in_all_fields),
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        ContentValues contentValues = getContentValues();
+        // An unchanged photo is not encoded again, the stored image is kept as it is.
+        Bitmap image = null;
+        if (mCurrentProductUri == null || mImageChanged) {
+            image = ((BitmapDrawable) productImageView.getDrawable()).getBitmap();
+        }
+        mWriteInProgress = true;
+        // Check whether it is a new Product to insert or an existing Product to update.
+        if (mCurrentProductUri == null) {
+            mProductWriter.insert(contentValues, image, new ProductWriter.Callback<Uri>() {
+                @Override
+                public void onComplete(Uri newUri) {
+                    mWriteInProgress = false;
+                    // If newUri is not null then insertion was successful else unsuccessful.
+                    if (newUri == null) {
+                        Toast.makeText(DetailActivity.this,
+                                getString(R.string.toast_message_product_not_saved),
+                                Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(DetailActivity.this,
+                                getString(R.string.toast_message_product_saved),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                    finish();
                 }
-            } else {
-                int rowsUpdated = getContentResolver().update(mCurrentProductUri, contentValues,
-                        null, null);
-                // If there were no rows updated then the update failed.
-                if (rowsUpdated == 0) {
-                    Toast.makeText(this, getString(R.string.toast_message_product_update_failed),
-                            Toast.LENGTH_SHORT).show();
-                    productSaved = false;
-                } else {
-                    Toast.makeText(this, getString(R.string.toast_message_product_updated),
-                            Toast.LENGTH_SHORT).show();
+            });
+        } else {
+            ContentValues changedValues = new ContentValues();
+            ContentValues baseValues = new ContentValues();
+            for (String column : contentValues.keySet()) {
+                String value = contentValues.getAsString(column);
+                String loadedValue = mLoadedValues == null ? null
+                        : mLoadedValues.getAsString(column);
+                if (!value.equals(loadedValue)) {
+                    changedValues.put(column, value);
+                    baseValues.put(column, loadedValue);
                 }
             }
-        } else {
-            Toast.makeText(this, getString(R.string.toast_message_fill_in_all_fields),
-                    Toast.LENGTH_SHORT).show();
-            productSaved = false;
+            if (changedValues.size() == 0 && image == null) {
+                mWriteInProgress = false;
+                finish();
+                return;
+            }
+            mProductWriter.update(mCurrentProductUri, changedValues, baseValues, mLoadedVersion,
+                    image, new ProductWriter.Callback<Bundle>() {
+                        @Override
+                        public void onComplete(Bundle result) {
+                            mWriteInProgress = false;
+                            onUpdateComplete(result);
+                        }
+                    });
+        }
+    }
+
+    /*
+    * Shows the result of an update. After a conflict the user's edits stay in place, based on
+    * the current version of the product, so saving again overwrites the conflicting changes.
+    */
+    private void onUpdateComplete(Bundle result) {
+        int updateResult = result == null ? ProductEntry.UPDATE_RESULT_NOT_FOUND
+                : result.getInt(ProductEntry.EXTRA_RESULT);
+        switch (updateResult) {
+            case ProductEntry.UPDATE_RESULT_UPDATED:
+            case ProductEntry.UPDATE_RESULT_MERGED:
+                Toast.makeText(this, getString(R.string.toast_message_product_updated),
+                        Toast.LENGTH_SHORT).show();
+                finish();
+                break;
+            case ProductEntry.UPDATE_RESULT_CONFLICT:
+                ContentValues currentValues =
+                        result.getParcelable(ProductEntry.EXTRA_BASE_VALUES);
+                if (mLoadedValues == null) {
+                    mLoadedValues = new ContentValues();
+                }
+                if (currentValues != null) {
+                    mLoadedValues.putAll(currentValues);
+                }
+                mLoadedVersion = result.getLong(ProductEntry.EXTRA_VERSION);
+                Toast.makeText(this, getString(R.string.toast_message_product_update_conflict),
+                        Toast.LENGTH_LONG).show();
+                break;
+            default:
+                Toast.makeText(this, getString(R.string.toast_message_product_update_failed),
+                        Toast.LENGTH_SHORT).show();
         }
-        return productSaved;
     }
 
     /*
@@ -204,15 +294,16 @@ public class DetailActivity extends AppCompatActivity
             isValidProduct = false;
         }
 
-        // Checking the imageView whether it contains a Drawable taken by the user.
-        if (productImageView.getDrawable() == null) {
+        // Checking the imageView whether it contains a Drawable taken by the user. An existing
+        // product keeps its stored image, which may still be decoding.
+        if (mCurrentProductUri == null && productImageView.getDrawable() == null) {
             isValidProduct = false;
         }
         return isValidProduct;
     }
 
     /*
-    * Extracts the EditText fields and taken photo from the UI.
+    * Extracts the EditText fields from the UI. The photo is encoded by the ProductWriter.
     */
     private ContentValues getContentValues() {
         ContentValues contentValues = new ContentValues();
@@ -229,17 +320,6 @@ public class DetailActivity extends AppCompatActivity
         String supplierPhone = supplierPhoneEditText.getText().toString().trim();
         contentValues.put(ProductEntry.SUPPLIER_PHONE, supplierPhone);
 
-        /*
-        * Retrieve bitmap from ImageView user has taken, compress and convert it into a byte array.
-        */
-        BitmapDrawable productBitmapDrawable = (BitmapDrawable) productImageView.getDrawable();
-        Bitmap bitmapProductImage = productBitmapDrawable.getBitmap();
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmapProductImage.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        byte[] image = stream.toByteArray();
-        // Put the byte array into the contentValuse that will be store as BLOB in the database.
-        contentValues.put(ProductEntry.IMAGE, image);
-
         return contentValues;
     }
 
@@ -286,16 +366,28 @@ public class DetailActivity extends AppCompatActivity
     * Indicates a delete operation and shows its success in Toast messages.
     */
     private void deleteProduct() {
-        int rowsAffected = getContentResolver().delete(mCurrentProductUri, null, null);
-        // If now rows were affected by the delete operation then it failed.
-        if (rowsAffected == 0) {
-            Toast.makeText(this, getString(R.string.toast_message_product_not_deleted),
-                    Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, getString(R.string.toast_message_product_deleted),
-                    Toast.LENGTH_SHORT).show();
-            finish();
+        if (mWriteInProgress) {
+            return;
         }
+
+        mWriteInProgress = true;
+        mProductWriter.delete(mCurrentProductUri, new ProductWriter.Callback<Integer>() {
+            @Override
+            public void onComplete(Integer rowsAffected) {
+                mWriteInProgress = false;
+                // If now rows were affected by the delete operation then it failed.
+                if (rowsAffected == null || rowsAffected == 0) {
+                    Toast.makeText(DetailActivity.this,
+                            getString(R.string.toast_message_product_not_deleted),
+                            Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(DetailActivity.this,
+                            getString(R.string.toast_message_product_deleted),
+                            Toast.LENGTH_SHORT).show();
+                    finish();
+                }
+            }
+        });
     }
 
     /*
@@ -320,6 +412,7 @@ public class DetailActivity extends AppCompatActivity
             productImageView.setImageBitmap(imageBitmap);
             // Indicate that product has been modified since last state
             mProductModified = true;
+            mImageChanged = true;
         }
     }
 
@@ -331,7 +424,8 @@ public class DetailActivity extends AppCompatActivity
                 ProductEntry.PRICE,
                 ProductEntry.QUANTITY,
                 ProductEntry.SUPPLIER_PHONE,
-                ProductEntry.IMAGE
+                ProductEntry.IMAGE_REF,
+                ProductEntry.VERSION
         };
 
         return new CursorLoader(this, mCurrentProductUri, projection, null, null, null);
@@ -342,22 +436,30 @@ public class DetailActivity extends AppCompatActivity
         if (cursor == null || cursor.getCount() < 1) {
             return;
         }
+        // The product changed while the user is editing it, by a sale or a sync. The edits are
+        // kept, the update merges them with the change.
+        if (mLoadedValues != null && mProductModified) {
+            return;
+        }
 
         if (cursor.moveToFirst()) {
             int nameColumnIndex = cursor.getColumnIndex(ProductEntry.NAME);
             int priceColumnIndex = cursor.getColumnIndex(ProductEntry.PRICE);
             int quantityColumnIndex = cursor.getColumnIndex(ProductEntry.QUANTITY);
             int supplierPhoneColumnIndex = cursor.getColumnIndex(ProductEntry.SUPPLIER_PHONE);
-            int imageColumnIndex = cursor.getColumnIndex(ProductEntry.IMAGE);
+            int imageRefColumnIndex = cursor.getColumnIndex(ProductEntry.IMAGE_REF);
 
             nameEditText.setText(cursor.getString(nameColumnIndex));
             priceEditText.setText(cursor.getString(priceColumnIndex));
             quantityEditText.setText(cursor.getString(quantityColumnIndex));
             supplierPhoneEditText.setText(cursor.getString(supplierPhoneColumnIndex));
 
-            byte[] imageBytes = cursor.getBlob(imageColumnIndex);
-            Bitmap bitmapImage = BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
-            productImageView.setImageBitmap(bitmapImage);
+            mLoadedValues = getContentValues();
+            mLoadedVersion = cursor.getLong(cursor.getColumnIndex(ProductEntry.VERSION));
+
+            // The text is shown right away. The row only holds a reference, the image itself is
+            // streamed from the image Uri of the product and decoded in the background.
+            loadImage(cursor.getString(imageRefColumnIndex));
         }
     }
 
@@ -370,6 +472,33 @@ public class DetailActivity extends AppCompatActivity
         productImageView.setImageBitmap(null);
     }
 
+    /*
+    * Loads the stored image subsampled to the size of the image view.
+    */
+    private void loadImage(String imageRef) {
+        if (mImageRequest != null) {
+            mImageRequest.cancel();
+            mImageRequest = null;
+        }
+        // Keep a photo taken by the user instead of the stored one.
+        if (imageRef == null || mImageChanged) {
+            return;
+        }
+
+        int width = getResources().getDisplayMetrics().widthPixels;
+        int height = productImageView.getLayoutParams().height;
+        mImageRequest = mImageCache.load(ContentUris.parseId(mCurrentProductUri), imageRef,
+                width, height, new ProductImagePipeline.Callback() {
+                    @Override
+                    public void onDecoded(Bitmap bitmap) {
+                        mImageRequest = null;
+                        if (bitmap != null && !mImageChanged) {
+                            productImageView.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+    }
+
     /*
     * Decreases the quantity by one
     */
@@ -0,0 +1,45 @@
+package com.example.android.inventoryapp;
+
+/**
+ * Single row of the catalog list.
+ */
+public class Product {
+
+    private final long mId;
+    private final String mName;
+    private final float mPrice;
+    private final int mQuantity;
+
+    public Product(long id, String name, float price, int quantity) {
+        mId = id;
+        mName = name;
+        mPrice = price;
+        mQuantity = quantity;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public float getPrice() {
+        return mPrice;
+    }
+
+    public int getQuantity() {
+        return mQuantity;
+    }
+
+    /**
+     * Returns whether the displayed values of both products are the same.
+     */
+    public boolean hasSameContents(Product other) {
+        return mId == other.mId
+                && mPrice == other.mPrice
+                && mQuantity == other.mQuantity
+                && (mName == null ? other.mName == null : mName.equals(other.mName));
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.android.inventoryapp;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * RecyclerView adapter of the catalog. Lists received from {@link CatalogDataSource} are diffed
+ * against the displayed one on a background thread, so only the rows that actually changed are
+ * bound again.
+ */
+public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ProductViewHolder>
+        implements CatalogDataSource.Listener, StockWriteBuffer.Listener {
+
+    // Payload of a change that only affects the displayed quantity of a row.
+    private static final Object PAYLOAD_QUANTITY = new Object();
+
+    private static final ExecutorService sDiffExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+    private final CatalogDataSource mDataSource;
+    private final StockWriteBuffer mStockWriteBuffer;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private List<Product> mProducts = Collections.emptyList();
+    // Adapter position of every displayed product ID.
+    private Map<Long, Integer> mPositions = Collections.emptyMap();
+    // Incremented by every new list, so only the diff of the latest one is applied.
+    private int mGeneration;
+
+    /*
+    * Listeners shared by all rows, the row is found through the view holder stored as tag.
+    */
+    private final View.OnClickListener mItemClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            Product product = getProduct((ProductViewHolder) view.getTag());
+            if (product == null) {
+                return;
+            }
+            Intent intent = new Intent(mContext, DetailActivity.class);
+            intent.setData(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, product.getId()));
+            mContext.startActivity(intent);
+        }
+    };
+
+    /*
+    * Sells one piece of the product. The sale is buffered and written to the database together
+    * with the following ones, the buffer refuses it if the pending sales already used up the
+    * quantity.
+    */
+    private final View.OnClickListener mSaleClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View button) {
+            Product product = getProduct((ProductViewHolder) button.getTag());
+            if (product != null) {
+                mStockWriteBuffer.sell(product.getId(), product.getQuantity());
+            }
+        }
+    };
+
+    public ProductAdapter(Context context, CatalogDataSource dataSource,
+                          StockWriteBuffer stockWriteBuffer) {
+        mContext = context;
+        mDataSource = dataSource;
+        mStockWriteBuffer = stockWriteBuffer;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public void onProductsChanged(final List<Product> products) {
+        final int generation = ++mGeneration;
+        final List<Product> oldProducts = mProducts;
+        if (oldProducts.isEmpty() || products.isEmpty()) {
+            apply(products, buildPositions(products), null);
+            return;
+        }
+
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diffResult =
+                        DiffUtil.calculateDiff(new ProductDiffCallback(oldProducts, products));
+                final Map<Long, Integer> positions = buildPositions(products);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            apply(products, positions, diffResult);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onPendingSalesChanged(Set<Long> ids) {
+        for (Long id : ids) {
+            Integer position = mPositions.get(id);
+            if (position != null) {
+                notifyItemChanged(position, PAYLOAD_QUANTITY);
+            }
+        }
+    }
+
+    @Override
+    public void onSalesFlushed(Map<Long, Integer> quantities) {
+        mDataSource.updateQuantities(quantities);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mProducts.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mProducts.get(position).getId();
+    }
+
+    @Override
+    public ProductViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        ProductViewHolder holder = new ProductViewHolder(view);
+        view.setTag(holder);
+        view.setOnClickListener(mItemClickListener);
+        holder.saleButton.setTag(holder);
+        holder.saleButton.setOnClickListener(mSaleClickListener);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(ProductViewHolder holder, int position, List<Object> payloads) {
+        // The only partial change is PAYLOAD_QUANTITY, everything else binds the whole row.
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        bindQuantity(holder, mProducts.get(position));
+    }
+
+    @Override
+    public void onBindViewHolder(ProductViewHolder holder, int position) {
+        Product product = mProducts.get(position);
+        holder.nameTextView.setText(product.getName());
+        holder.priceTextView.setText(String.valueOf(product.getPrice()));
+        bindQuantity(holder, product);
+        mDataSource.onPositionBound(position);
+    }
+
+    private void bindQuantity(ProductViewHolder holder, Product product) {
+        // Sales still waiting in the write buffer are already taken off the displayed quantity.
+        int quantity = product.getQuantity() - mStockWriteBuffer.getPendingSales(product.getId());
+        holder.quantityTextView.setText(String.valueOf(quantity));
+    }
+
+    private void apply(List<Product> products, Map<Long, Integer> positions,
+                       DiffUtil.DiffResult diffResult) {
+        mProducts = products;
+        mPositions = positions;
+        if (diffResult == null) {
+            notifyDataSetChanged();
+        } else {
+            diffResult.dispatchUpdatesTo(this);
+        }
+    }
+
+    private Product getProduct(ProductViewHolder holder) {
+        int position = holder.getAdapterPosition();
+        if (position == RecyclerView.NO_POSITION) {
+            return null;
+        }
+        return mProducts.get(position);
+    }
+
+    private static Map<Long, Integer> buildPositions(List<Product> products) {
+        Map<Long, Integer> positions = new HashMap<>(products.size() * 2);
+        for (int i = 0; i < products.size(); i++) {
+            positions.put(products.get(i).getId(), i);
+        }
+        return positions;
+    }
+
+    /**
+     * Caches the views of a row.
+     */
+    static class ProductViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView nameTextView;
+        final TextView priceTextView;
+        final TextView quantityTextView;
+        final Button saleButton;
+
+        ProductViewHolder(View view) {
+            super(view);
+            nameTextView = (TextView) view.findViewById(R.id.name_edit_text);
+            priceTextView = (TextView) view.findViewById(R.id.price_text_view);
+            quantityTextView = (TextView) view.findViewById(R.id.quantity_text_view);
+            saleButton = (Button) view.findViewById(R.id.sale_button);
+        }
+    }
+
+    private static class ProductDiffCallback extends DiffUtil.Callback {
+
+        private final List<Product> mOldProducts;
+        private final List<Product> mNewProducts;
+
+        ProductDiffCallback(List<Product> oldProducts, List<Product> newProducts) {
+            mOldProducts = oldProducts;
+            mNewProducts = newProducts;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldProducts.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewProducts.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldProducts.get(oldItemPosition).getId()
+                    == mNewProducts.get(newItemPosition).getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldProducts.get(oldItemPosition).hasSameContents(
+                    mNewProducts.get(newItemPosition));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.android.inventoryapp;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductImagePipeline;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes products to the provider off the main thread. All writes of the process go through a
+ * single writer thread, so they are applied in the order they were requested. The callbacks run
+ * on the main thread and are dropped once the writer has been cancelled, the writes themselves
+ * are always completed.
+ */
+public class ProductWriter {
+
+    /**
+     * Receives the result of a write on the main thread.
+     */
+    public interface Callback<T> {
+        void onComplete(T result);
+    }
+
+    private static final String LOG_TAG = ProductWriter.class.getSimpleName();
+
+    private static final ExecutorService sWriterExecutor = Executors.newSingleThreadExecutor();
+
+    private final ContentResolver mContentResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Writes requested but not completed yet. Only accessed on the main thread.
+    private final Set<Write<?>> mWrites = new HashSet<>();
+
+    public ProductWriter(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Inserts a new product. The image is encoded on the writer thread. The callback receives
+     * the Uri of the new product, or null if the insertion failed.
+     */
+    public void insert(final ContentValues contentValues, final Bitmap image,
+                       Callback<Uri> callback) {
+        submit(new Write<Uri>(callback) {
+            @Override
+            Uri write() {
+                putImage(contentValues, image);
+                return mContentResolver.insert(ProductEntry.CONTENT_URI, contentValues);
+            }
+        });
+    }
+
+    /**
+     * Updates the changed columns of an existing product with {@link ProductEntry#METHOD_UPDATE},
+     * so changes made to the product since it was loaded at the given version are kept. The base
+     * values are the loaded values of the changed columns. The image is encoded on the writer
+     * thread, a null image keeps the stored one. The callback receives the result of the method,
+     * null if the update failed.
+     */
+    public void update(final Uri productUri, final ContentValues contentValues,
+                       final ContentValues baseValues, final long version, final Bitmap image,
+                       Callback<Bundle> callback) {
+        submit(new Write<Bundle>(callback) {
+            @Override
+            Bundle write() {
+                if (image != null) {
+                    putImage(contentValues, image);
+                }
+                Bundle extras = new Bundle();
+                extras.putParcelable(ProductEntry.EXTRA_VALUES, contentValues);
+                extras.putParcelable(ProductEntry.EXTRA_BASE_VALUES, baseValues);
+                extras.putLong(ProductEntry.EXTRA_VERSION, version);
+                return mContentResolver.call(ProductEntry.CONTENT_URI, ProductEntry.METHOD_UPDATE,
+                        String.valueOf(ContentUris.parseId(productUri)), extras);
+            }
+        });
+    }
+
+    /**
+     * Deletes a product. The callback receives the number of rows deleted.
+     */
+    public void delete(final Uri productUri, Callback<Integer> callback) {
+        submit(new Write<Integer>(callback) {
+            @Override
+            Integer write() {
+                return mContentResolver.delete(productUri, null, null);
+            }
+        });
+    }
+
+    /**
+     * Drops the callbacks of the writes requested so far. The writes are still applied, a save
+     * the user has confirmed is never lost. Must be called on the main thread.
+     */
+    public void cancel() {
+        for (Write<?> write : mWrites) {
+            write.cancel();
+        }
+        mWrites.clear();
+    }
+
+    private void submit(Write<?> write) {
+        mWrites.add(write);
+        sWriterExecutor.execute(write);
+    }
+
+    /*
+    * Encodes the bitmap and puts it into the values as the image of the product.
+    * Runs on the writer thread.
+    */
+    private static void putImage(ContentValues contentValues, Bitmap image) {
+        contentValues.put(ProductEntry.IMAGE, ProductImagePipeline.getDefault().encode(image));
+    }
+
+    private abstract class Write<T> implements Runnable {
+
+        private final Callback<T> mCallback;
+        // Only accessed on the main thread.
+        private boolean mCancelled;
+
+        Write(Callback<T> callback) {
+            mCallback = callback;
+        }
+
+        abstract T write();
+
+        @Override
+        public void run() {
+            T result;
+            try {
+                result = write();
+            } catch (RuntimeException e) {
+                // Rejected values are reported like any other failed write.
+                Log.e(LOG_TAG, "Unable to write product", e);
+                result = null;
+            }
+
+            final T finalResult = result;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled) {
+                        return;
+                    }
+                    mWrites.remove(Write.this);
+                    mCallback.onComplete(finalResult);
+                }
+            });
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.example.android.inventoryapp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Write-behind buffer for the sale button of the catalog. Sales are collected per product in
+ * memory and written to the provider in a single transaction, either after a short delay or once
+ * enough pieces are pending. Until then the catalog displays the quantity reduced by the pending
+ * sales.
+ *
+ * Every sale is also appended to a journal before it is buffered, so sales that were not written
+ * to the database yet are recovered after the process has been killed. The journal is split into
+ * numbered segments: a flush seals the current segment and deletes the segments it wrote once the
+ * transaction has been committed. A failed flush puts its sales back and is retried later, its
+ * segments are kept until a flush writes them.
+ *
+ * The provider records the last segment it has written in the transaction of the sales, and
+ * skips the sales of segments up to it. A segment left behind by a crash right after the commit,
+ * or sent again after a call that committed and then failed, is therefore written once only.
+ * Segment numbers are never given out twice, the last one is kept in a sequence file.
+ */
+public class StockWriteBuffer {
+
+    /**
+     * Receives the changes of the buffer on the main thread.
+     */
+    public interface Listener {
+        /**
+         * The number of pending sales of the products with the given IDs has changed.
+         */
+        void onPendingSalesChanged(Set<Long> ids);
+
+        /**
+         * Pending sales have been written to the database, the map holds the new quantities of
+         * the products sold.
+         */
+        void onSalesFlushed(Map<Long, Integer> quantities);
+    }
+
+    private static final String LOG_TAG = StockWriteBuffer.class.getSimpleName();
+
+    static final long FLUSH_DELAY_MILLIS = 500;
+
+    // Number of pending pieces that triggers a flush without waiting for the delay.
+    static final int FLUSH_THRESHOLD = 20;
+
+    // Delay before the sales of a failed flush are written again.
+    static final long FLUSH_RETRY_DELAY_MILLIS = 2000;
+
+    private static final String JOURNAL_DIRECTORY = "stock_journal";
+    private static final String SEQUENCE_FILE = "sequence";
+
+    private static StockWriteBuffer sInstance;
+
+    public static synchronized StockWriteBuffer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockWriteBuffer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final ContentResolver mContentResolver;
+    private final File mJournalDirectory;
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    /*
+    * Sales not written yet and sales currently being written, per product ID, the sales not
+    * written yet per journal segment and product ID, and the open journal segment. Guarded by
+    * mLock.
+    */
+    private final Object mLock = new Object();
+    private final Map<Long, Integer> mPendingSales = new HashMap<>();
+    private final Map<Long, Integer> mFlushingSales = new HashMap<>();
+    private final TreeMap<Long, Map<Long, Integer>> mSegmentSales = new TreeMap<>();
+    private int mPendingCount;
+    private boolean mFlushScheduled;
+    private long mJournalSegment;
+    private FileOutputStream mJournalStream;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private StockWriteBuffer(Context context) {
+        this(context.getContentResolver(), new File(context.getFilesDir(), JOURNAL_DIRECTORY));
+    }
+
+    StockWriteBuffer(ContentResolver contentResolver, File journalDirectory) {
+        mContentResolver = contentResolver;
+        mJournalDirectory = journalDirectory;
+        if (!mJournalDirectory.isDirectory() && !mJournalDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Unable to create the stock journal directory");
+        }
+
+        // Segments left by a previous process are recovered, new sales go to a new segment.
+        final List<File> unflushedSegments = new ArrayList<>();
+        long lastSegment = readSequence();
+        File[] segments = mJournalDirectory.listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                long number = parseSegmentNumber(segment);
+                if (number != -1) {
+                    unflushedSegments.add(segment);
+                    lastSegment = Math.max(lastSegment, number);
+                }
+            }
+        }
+        mJournalSegment = lastSegment + 1;
+
+        HandlerThread workerThread = new HandlerThread(LOG_TAG);
+        workerThread.start();
+        mWorkerHandler = new Handler(workerThread.getLooper());
+        if (!unflushedSegments.isEmpty()) {
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    recover(unflushedSegments);
+                }
+            });
+        }
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns the number of pieces of the product sold but not written to the database yet.
+     */
+    public int getPendingSales(long id) {
+        synchronized (mLock) {
+            return get(mPendingSales, id) + get(mFlushingSales, id);
+        }
+    }
+
+    /**
+     * Sells one piece of the product, given its quantity last read from the database.
+     * Returns false if the pending sales already used up the quantity. Must be called on the
+     * main thread.
+     */
+    public boolean sell(long id, int quantity) {
+        boolean flushNow;
+        boolean scheduleFlush;
+        synchronized (mLock) {
+            if (quantity - get(mPendingSales, id) - get(mFlushingSales, id) < 1) {
+                return false;
+            }
+            // The journal line is a single small write to an open file, cheap enough for the
+            // main thread, and appending it under the lock keeps it in the segment of the flush
+            // that writes the sale.
+            appendToJournal(id, 1);
+            addPendingSale(mJournalSegment, id, 1);
+            flushNow = mPendingCount >= FLUSH_THRESHOLD;
+            scheduleFlush = !mFlushScheduled;
+            mFlushScheduled = true;
+        }
+
+        if (flushNow) {
+            mWorkerHandler.removeCallbacks(mFlushRunnable);
+            mWorkerHandler.post(mFlushRunnable);
+        } else if (scheduleFlush) {
+            mWorkerHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+        }
+
+        Set<Long> ids = Collections.singleton(id);
+        for (Listener listener : mListeners) {
+            listener.onPendingSalesChanged(ids);
+        }
+        return true;
+    }
+
+    /*
+    * Writes the pending sales to the database. Runs on the worker thread.
+    */
+    private void flush() {
+        final long[] ids;
+        final int[] amounts;
+        final List<Long> sealedSegments;
+        final long[] segments;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (mSegmentSales.isEmpty()) {
+                return;
+            }
+            // Every flush writes all segments not written yet, so the segments of the sales the
+            // provider skips are always the ones up to the last segment it has written.
+            int count = 0;
+            for (Map<Long, Integer> sales : mSegmentSales.values()) {
+                count += sales.size();
+            }
+            ids = new long[count];
+            amounts = new int[count];
+            segments = new long[count];
+            int i = 0;
+            for (Map.Entry<Long, Map<Long, Integer>> segment : mSegmentSales.entrySet()) {
+                for (Map.Entry<Long, Integer> entry : segment.getValue().entrySet()) {
+                    ids[i] = entry.getKey();
+                    amounts[i] = entry.getValue();
+                    segments[i] = segment.getKey();
+                    mFlushingSales.put(ids[i], get(mFlushingSales, ids[i]) + amounts[i]);
+                    i++;
+                }
+            }
+            sealedSegments = new ArrayList<>(mSegmentSales.keySet());
+            mSegmentSales.clear();
+            mPendingSales.clear();
+            mPendingCount = 0;
+
+            // Sales made during the flush go to the next segment.
+            closeJournal();
+            mJournalSegment++;
+        }
+
+        final Map<Long, Integer> quantities = new HashMap<>();
+        try {
+            Bundle extras = new Bundle();
+            extras.putLongArray(ProductEntry.EXTRA_IDS, ids);
+            extras.putIntArray(ProductEntry.EXTRA_AMOUNTS, amounts);
+            extras.putLongArray(ProductEntry.EXTRA_JOURNAL_SEGMENTS, segments);
+            Bundle result = mContentResolver.call(ProductEntry.CONTENT_URI,
+                    ProductEntry.METHOD_SELL_ALL, null, extras);
+            int[] newQuantities = result.getIntArray(ProductEntry.EXTRA_QUANTITIES);
+            for (int i = 0; i < ids.length; i++) {
+                // Sales of products that ran out of stock in the meantime are dropped, sales
+                // written before are skipped.
+                if (newQuantities[i] != -1) {
+                    quantities.put(ids[i], newQuantities[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Unable to write the pending sales", e);
+            retry(ids, amounts, segments);
+            return;
+        }
+
+        // A crash between the commit above and the removal of the segments leaves them for the
+        // next start, which finds them written already.
+        deleteSegments(sealedSegments);
+        postFlushed(ids, amounts, quantities);
+    }
+
+    /*
+    * Puts the sales of a failed flush back to the pending sales of their segments, and schedules
+    * another flush. The number of sales displayed does not change. If the failed call committed
+    * nevertheless, the provider skips the sales the next time. Runs on the worker thread.
+    */
+    private void retry(long[] ids, int[] amounts, long[] segments) {
+        boolean scheduleFlush;
+        synchronized (mLock) {
+            for (int i = 0; i < ids.length; i++) {
+                int flushing = get(mFlushingSales, ids[i]) - amounts[i];
+                if (flushing > 0) {
+                    mFlushingSales.put(ids[i], flushing);
+                } else {
+                    mFlushingSales.remove(ids[i]);
+                }
+                addPendingSale(segments[i], ids[i], amounts[i]);
+            }
+            scheduleFlush = !mFlushScheduled;
+            mFlushScheduled = true;
+        }
+        if (scheduleFlush) {
+            mWorkerHandler.postDelayed(mFlushRunnable, FLUSH_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    private void postFlushed(final long[] ids, final int[] amounts,
+                             final Map<Long, Integer> quantities) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Set<Long> changedIds = new HashSet<>(ids.length);
+                synchronized (mLock) {
+                    for (int i = 0; i < ids.length; i++) {
+                        int flushing = get(mFlushingSales, ids[i]) - amounts[i];
+                        if (flushing > 0) {
+                            mFlushingSales.put(ids[i], flushing);
+                        } else {
+                            mFlushingSales.remove(ids[i]);
+                        }
+                        changedIds.add(ids[i]);
+                    }
+                }
+                for (Listener listener : mListeners) {
+                    listener.onSalesFlushed(quantities);
+                }
+                for (Listener listener : mListeners) {
+                    listener.onPendingSalesChanged(changedIds);
+                }
+            }
+        });
+    }
+
+    /*
+    * Loads the sales of a previous process that were not written to the database and flushes
+    * them. The segments are deleted by the flush. Runs on the worker thread.
+    */
+    private void recover(List<File> segments) {
+        int recovered = 0;
+        for (File segment : segments) {
+            recovered += readSegment(segment);
+        }
+        Log.i(LOG_TAG, "Recovered " + recovered + " pending sales from the stock journal");
+        flush();
+    }
+
+    private int readSegment(File segment) {
+        long number = parseSegmentNumber(segment);
+        synchronized (mLock) {
+            // A segment without a readable sale is deleted by the flush all the same.
+            if (!mSegmentSales.containsKey(number)) {
+                mSegmentSales.put(number, new HashMap<Long, Integer>());
+            }
+        }
+        int recovered = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(segment));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    // A line cut short by the death of the process is skipped.
+                    if (fields.length != 2) {
+                        continue;
+                    }
+                    long id = Long.parseLong(fields[0]);
+                    int amount = Integer.parseInt(fields[1]);
+                    synchronized (mLock) {
+                        addPendingSale(number, id, amount);
+                    }
+                    recovered += amount;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(LOG_TAG, "Unable to read the stock journal segment " + segment, e);
+        }
+        return recovered;
+    }
+
+    /*
+    * Called with mLock held.
+    */
+    private void addPendingSale(long segment, long id, int amount) {
+        Map<Long, Integer> sales = mSegmentSales.get(segment);
+        if (sales == null) {
+            sales = new HashMap<>();
+            mSegmentSales.put(segment, sales);
+        }
+        sales.put(id, get(sales, id) + amount);
+        mPendingSales.put(id, get(mPendingSales, id) + amount);
+        mPendingCount += amount;
+    }
+
+    /*
+    * Appends a sale to the current segment. The unbuffered write reaches the kernel before it
+    * returns, which is enough to survive the death of the process. Called with mLock held.
+    */
+    private void appendToJournal(long id, int amount) {
+        try {
+            if (mJournalStream == null) {
+                // The number is taken before the segment exists, so it is never used again.
+                writeSequence(mJournalSegment);
+                mJournalStream = new FileOutputStream(
+                        new File(mJournalDirectory, String.valueOf(mJournalSegment)), true);
+            }
+            mJournalStream.write((id + " " + amount + "\n").getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to append to the stock journal", e);
+        }
+    }
+
+    /*
+    * Called with mLock held.
+    */
+    private void closeJournal() {
+        if (mJournalStream == null) {
+            return;
+        }
+        try {
+            mJournalStream.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to close the stock journal", e);
+        }
+        mJournalStream = null;
+    }
+
+    /*
+    * Returns the last segment number given out, 0 if there is none.
+    */
+    private long readSequence() {
+        File sequenceFile = new File(mJournalDirectory, SEQUENCE_FILE);
+        if (!sequenceFile.exists()) {
+            return 0;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(sequenceFile));
+            try {
+                return Long.parseLong(reader.readLine());
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(LOG_TAG, "Unable to read the stock journal sequence", e);
+            return 0;
+        }
+    }
+
+    /*
+    * Replaces the sequence file through a temporary file, so a crash leaves either number.
+    * Called with mLock held.
+    */
+    private void writeSequence(long segment) throws IOException {
+        File temporaryFile = new File(mJournalDirectory, SEQUENCE_FILE + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(String.valueOf(segment).getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+        if (!temporaryFile.renameTo(new File(mJournalDirectory, SEQUENCE_FILE))) {
+            throw new IOException("Unable to replace the stock journal sequence");
+        }
+    }
+
+    private void deleteSegments(List<Long> numbers) {
+        for (long number : numbers) {
+            // The segment of a flush without a sale in it was never created.
+            File segment = new File(mJournalDirectory, String.valueOf(number));
+            if (segment.exists() && !segment.delete()) {
+                Log.w(LOG_TAG, "Unable to delete the stock journal segment " + segment);
+            }
+        }
+    }
+
+    private static long parseSegmentNumber(File segment) {
+        try {
+            return Long.parseLong(segment.getName());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int get(Map<Long, Integer> sales, long id) {
+        Integer amount = sales.get(id);
+        return amount == null ? 0 : amount;
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Data migration that runs in small batches in the background once the database has been
+ * opened. Every batch runs in a transaction of its own and must leave the data in a state the
+ * app can work with, so the migration resumes with the next batch after the process has been
+ * killed.
+ */
+abstract class BackgroundMigration {
+
+    final String name;
+
+    BackgroundMigration(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Migrates the next batch inside the caller's transaction. Returns false once nothing is
+     * left to migrate.
+     */
+    abstract boolean migrateBatch(SQLiteDatabase db);
+}
@@ -0,0 +1,20 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Step of the schema upgrade of the product database from the previous version to
+ * {@link #version}. Steps run inside the upgrade transaction while the database is being opened,
+ * so they only change the schema. Rewriting existing rows is left to a {@link BackgroundMigration}
+ * the step schedules.
+ */
+abstract class Migration {
+
+    final int version;
+
+    Migration(int version) {
+        this.version = version;
+    }
+
+    abstract void migrate(SQLiteDatabase db);
+}
@@ -1,9 +1,12 @@
 package com.example.android.inventoryapp.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.List;
+
 
 public final class ProductContract {
 
@@ -13,6 +16,22 @@ public final class ProductContract {
 
     static final String PATH_PRODUCT = "productions";
 
+    static final String PATH_SEARCH = "search";
+
+    static final String PATH_EXPORT = "export";
+
+    static final String PATH_IMAGE = "image";
+
+    static final String PATH_SUMMARY = "summary";
+
+    static final String PATH_STOCK_MOVEMENTS = "stock_movements";
+
+    static final String PATH_DIAGNOSTICS = "diagnostics";
+
+    static final String PATH_TOMBSTONES = "tombstones";
+
+    static final String PATH_SYNC_STATE = "sync_state";
+
     // Empty constructor in order to prevent someone to instantiate this class
     private ProductContract() {}
 
@@ -23,6 +42,61 @@ public final class ProductContract {
     public static final class ProductEntry implements BaseColumns {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRODUCT);
 
+        /**
+         * Full-text search of the products by name and supplier phone, see
+         * {@link #buildSearchUri}. Every word of {@link #QUERY_PARAMETER_QUERY} has to match the
+         * beginning of a word of the product. Products matching all words in their name come
+         * first, ties are ordered by name. {@link #QUERY_PARAMETER_LIMIT} is optional.
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+        public static final String QUERY_PARAMETER_QUERY = "query";
+
+        /**
+         * CSV file of the whole catalog, opened with ContentResolver.openInputStream. The rows
+         * are streamed from the database as they are read, the first row names the
+         * {@link #CSV_COLUMNS}. The file can be imported again with ProductCsvImporter.
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+        public static final String CSV_MIME_TYPE = "text/csv";
+
+        /**
+         * Type of the images read from {@link #buildImageUri}, as encoded by
+         * ProductImagePipeline.
+         */
+        public static final String IMAGE_MIME_TYPE = "image/jpeg";
+
+        /**
+         * Query parameters of a keyset paginated product query. A page holds at most
+         * {@link #QUERY_PARAMETER_LIMIT} products whose _ID is greater than
+         * {@link #QUERY_PARAMETER_AFTER}, in ascending _ID order.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameters filtering a product query. {@link #QUERY_PARAMETER_MIN_PRICE} and
+         * {@link #QUERY_PARAMETER_MAX_PRICE} bound the price range, both inclusive,
+         * {@link #QUERY_PARAMETER_MAX_QUANTITY} selects the products low on stock. Every filter is
+         * backed by an index, see {@link #buildPriceRangeUri} and {@link #buildLowStockUri}.
+         */
+        public static final String QUERY_PARAMETER_MIN_PRICE = "min_price";
+        public static final String QUERY_PARAMETER_MAX_PRICE = "max_price";
+        public static final String QUERY_PARAMETER_MAX_QUANTITY = "max_quantity";
+
+        /**
+         * Sort orders of a product query that are served by an index instead of sorting the
+         * results. Paged queries are always ordered by _ID and accept no sort order.
+         */
+        public static final String SORT_BY_NAME = "name COLLATE NOCASE ASC";
+        public static final String SORT_BY_PRICE = "price ASC";
+        public static final String SORT_BY_QUANTITY = "quantity ASC";
+
+        /**
+         * Query parameter of a change notification Uri listing the comma separated _IDs of the
+         * products that changed, see {@link #getChangedIds}.
+         */
+        public static final String QUERY_PARAMETER_CHANGED_IDS = "changed_ids";
+
         /**
          * list of products .
          */
@@ -36,12 +110,381 @@ public final class ProductContract {
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
                         PATH_PRODUCT + "/" + PATH_PRODUCT;
 
+        /**
+         * Provider method selling an amount of a single product, see
+         * {@link android.content.ContentResolver#call}. The argument is the _ID of the product,
+         * the extras hold the {@link #EXTRA_AMOUNT} to sell (one by default). The quantity is only
+         * decremented if enough is on stock. The result holds the new {@link #EXTRA_QUANTITY},
+         * or is null if nothing was sold.
+         */
+        public static final String METHOD_SELL = "sell";
+        public static final String EXTRA_AMOUNT = "amount";
+        public static final String EXTRA_QUANTITY = "quantity";
+
+        /**
+         * Provider method selling several products in a single transaction. The extras hold the
+         * _IDs of the products in {@link #EXTRA_IDS} and the amounts to sell in
+         * {@link #EXTRA_AMOUNTS}. Every sale follows the rules of {@link #METHOD_SELL}. The result
+         * holds the new {@link #EXTRA_QUANTITIES} in the same order, -1 for a product not sold.
+         * The optional {@link #EXTRA_JOURNAL_SEGMENTS} name the journal segment of every sale,
+         * sales of segments up to the last one written before are skipped, so a batch sent
+         * again is sold once only.
+         */
+        public static final String METHOD_SELL_ALL = "sell_all";
+        public static final String EXTRA_IDS = "ids";
+        public static final String EXTRA_AMOUNTS = "amounts";
+        public static final String EXTRA_JOURNAL_SEGMENTS = "journal_segments";
+        public static final String EXTRA_QUANTITIES = "quantities";
+
+        /**
+         * Provider method returning the quantity a product had at a point in time, see
+         * {@link StockMovementEntry}. The argument is the _ID of the product, the extras hold the
+         * {@link #EXTRA_TIMESTAMP} in milliseconds since the epoch. The result holds the
+         * {@link #EXTRA_QUANTITY}, or is null if the quantity at that time is not known.
+         */
+        public static final String METHOD_QUANTITY_AS_OF = "quantity_as_of";
+        public static final String EXTRA_TIMESTAMP = "timestamp";
+
+        /**
+         * Query parameter of an update Uri giving the {@link StockMovementEntry#REASON} of the
+         * quantity change, {@link StockMovementEntry#REASON_ADJUSTMENT} by default.
+         */
+        public static final String QUERY_PARAMETER_REASON = "reason";
+
+        /**
+         * Query parameter of the update Uri of a single product giving the {@link #VERSION} the
+         * changes are based on. The product is only updated if it still has that version,
+         * otherwise no row is updated.
+         */
+        public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Provider method updating a single product without losing concurrent changes. The
+         * argument is the _ID of the product, the extras hold the changed columns in
+         * {@link #EXTRA_VALUES}, the values they had when the product was loaded in
+         * {@link #EXTRA_BASE_VALUES}, and the {@link #EXTRA_VERSION} it was loaded at. If the
+         * product has changed since, the changes are merged into it unless one of the changed
+         * columns was changed to another value meanwhile. Columns without a base value, like the
+         * {@link #IMAGE}, are written as they are. The result holds the {@link #EXTRA_RESULT},
+         * one of the UPDATE_RESULT values, and the current {@link #EXTRA_VERSION}. On a conflict
+         * the {@link #EXTRA_BASE_VALUES} of the result hold the current values of the
+         * conflicting columns, nothing has been updated.
+         */
+        public static final String METHOD_UPDATE = "update";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_BASE_VALUES = "base_values";
+        public static final String EXTRA_VERSION = "version";
+        public static final String EXTRA_RESULT = "result";
+        public static final int UPDATE_RESULT_UPDATED = 1;
+        public static final int UPDATE_RESULT_MERGED = 2;
+        public static final int UPDATE_RESULT_CONFLICT = 3;
+        public static final int UPDATE_RESULT_NOT_FOUND = 4;
+
         public static final String TABLE_NAME = "Products";
+        /**
+         * FTS4 index of the {@link #NAME} and {@link #SUPPLIER_PHONE} columns, keyed by _ID.
+         */
+        public static final String SEARCH_TABLE_NAME = "products_fts";
         public final static String _ID = BaseColumns._ID;
         public final static String NAME = "name";
         public final static String PRICE = "price";
         public final static String QUANTITY = "quantity";
         public final static String SUPPLIER_PHONE = "supplier_phone";
+        /**
+         * Raw image bytes. Only accepted as an input value of insert and update, the provider
+         * moves the image into {@link ProductImageStore} and stores its reference instead.
+         */
         public final static String IMAGE = "image";
+        /**
+         * Reference (content hash) of the product image in {@link ProductImageStore}.
+         */
+        public final static String IMAGE_REF = "image_ref";
+
+        /**
+         * Identifier of the product shared by every device it is synced to, assigned on insert.
+         */
+        public final static String GLOBAL_ID = "global_id";
+        /**
+         * Number of the revision of the product, incremented by every change of its name, price,
+         * quantity or supplier phone, local or synced. Checked by the updates of
+         * {@link #METHOD_UPDATE} and {@link #QUERY_PARAMETER_EXPECTED_VERSION}.
+         */
+        public final static String VERSION = "version";
+        /**
+         * Time of the latest change, in milliseconds since the epoch.
+         */
+        public final static String UPDATED_AT = "updated_at";
+        /**
+         * Version of the product on the sync server the local row is based on, 0 for a product
+         * that has never been synced. Writes changing it are sync writes and leave
+         * {@link #DIRTY} alone.
+         */
+        public final static String SERVER_VERSION = "server_version";
+        /**
+         * 1 while the product has local changes the sync server has not received yet, else 0.
+         */
+        public final static String DIRTY = "dirty";
+
+        /**
+         * Columns of the CSV files of the catalog, in the order they are exported.
+         */
+        public static final String[] CSV_COLUMNS = { NAME, PRICE, QUANTITY, SUPPLIER_PHONE };
+
+        /**
+         * Returns the _IDs of the products that changed according to a change notification Uri,
+         * or null if any product may have changed. A single changed product is notified with
+         * its item Uri, several ones with {@link #QUERY_PARAMETER_CHANGED_IDS}.
+         */
+        public static long[] getChangedIds(Uri uri) {
+            if (uri == null) {
+                return null;
+            }
+
+            try {
+                List<String> pathSegments = uri.getPathSegments();
+                if (pathSegments.size() == 2 && PATH_PRODUCT.equals(pathSegments.get(0))) {
+                    return new long[] { Long.parseLong(pathSegments.get(1)) };
+                }
+
+                String changedIds = uri.getQueryParameter(QUERY_PARAMETER_CHANGED_IDS);
+                if (changedIds == null) {
+                    return null;
+                }
+                String[] values = changedIds.split(",");
+                long[] ids = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    ids[i] = Long.parseLong(values[i]);
+                }
+                return ids;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Builds the Uri of the page following the product with the given ID.
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Builds the Uri of the products whose price lies within the given range.
+         */
+        public static Uri buildPriceRangeUri(float minPrice, float maxPrice) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_MIN_PRICE, String.valueOf(minPrice))
+                    .appendQueryParameter(QUERY_PARAMETER_MAX_PRICE, String.valueOf(maxPrice))
+                    .build();
+        }
+
+        /**
+         * Builds the Uri of the products with at most the given quantity on stock.
+         */
+        public static Uri buildLowStockUri(int maxQuantity) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_MAX_QUANTITY, String.valueOf(maxQuantity))
+                    .build();
+        }
+
+        /**
+         * Builds the Uri of the image of the product, opened with
+         * ContentResolver.openInputStream. The image is streamed from the image store instead of
+         * passing through a cursor, so it is not bound by the size of a cursor window. Opening it
+         * fails with a FileNotFoundException if the product has no image.
+         */
+        public static Uri buildImageUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_IMAGE)
+                    .build();
+        }
+
+        /**
+         * Builds the Uri searching the products for the given text.
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+    }
+
+    /**
+     * Inventory totals over all products, a single row kept current by triggers on the Products
+     * table, so reading it never scans the products.
+     */
+    public static final class SummaryEntry implements BaseColumns {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUMMARY);
+
+        /**
+         * The summary row.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUMMARY;
+
+        public static final String TABLE_NAME = "product_summary";
+        public final static String _ID = BaseColumns._ID;
+        public final static String PRODUCT_COUNT = "product_count";
+        /**
+         * Sum of the quantities of all products.
+         */
+        public final static String UNITS_ON_HAND = "units_on_hand";
+        /**
+         * Sum of price times quantity of all products.
+         */
+        public final static String STOCK_VALUE = "stock_value";
+        /**
+         * Number of products with a quantity of zero.
+         */
+        public final static String OUT_OF_STOCK_COUNT = "out_of_stock_count";
+    }
+
+    /**
+     * Append-only ledger of the quantity changes of the products, written in the same
+     * transaction as the change. Entries older than the retention period of the provider are
+     * compacted into a snapshot of the quantity, so the history before it is no longer known.
+     */
+    public static final class StockMovementEntry implements BaseColumns {
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STOCK_MOVEMENTS);
+
+        /**
+         * list of stock movements.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_STOCK_MOVEMENTS;
+
+        public static final String TABLE_NAME = "stock_movements";
+        public final static String _ID = BaseColumns._ID;
+        public final static String PRODUCT_ID = "product_id";
+        /**
+         * Change of the quantity, negative if it decreased.
+         */
+        public final static String CHANGE = "change";
+        public final static String REASON = "reason";
+        /**
+         * Time of the change in milliseconds since the epoch.
+         */
+        public final static String TIMESTAMP = "timestamp";
+
+        public static final String REASON_CREATED = "created";
+        public static final String REASON_SALE = "sale";
+        public static final String REASON_ADJUSTMENT = "adjustment";
+        public static final String REASON_DELETED = "deleted";
+        public static final String REASON_SYNC = "sync";
+    }
+
+    /**
+     * Latency and row count statistics ProductProvider collects per operation and Uri while
+     * diagnostics are enabled with {@link #METHOD_SET_DIAGNOSTICS_ENABLED}. Each row covers one
+     * operation on one kind of Uri, the notifications sent are counted in rows of the
+     * {@link #OPERATION_NOTIFY} operation. While enabled, the counters of the query result cache
+     * and the image cache, which are always kept, are listed in rows of the
+     * {@link #OPERATION_QUERY_CACHE} and {@link #OPERATION_IMAGE_CACHE} operations.
+     * The same statistics are printed by
+     * {@code adb shell dumpsys activity provider ProductProvider}.
+     */
+    public static final class DiagnosticsEntry {
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_DIAGNOSTICS);
+
+        /**
+         * Provider method turning the collection of the statistics on or off, as given by the
+         * {@link #EXTRA_ENABLED} extra. Turning it on starts from empty statistics.
+         */
+        public static final String METHOD_SET_DIAGNOSTICS_ENABLED = "set_diagnostics_enabled";
+        public static final String EXTRA_ENABLED = "enabled";
+
+        /**
+         * query, insert, bulk_insert, update, delete, call, notify, query_cache or image_cache.
+         */
+        public final static String OPERATION = "operation";
+        public static final String OPERATION_NOTIFY = "notify";
+        /**
+         * Rows of this operation name a counter of the query result cache in {@link #URI_MATCH},
+         * hits, misses, evictions, invalidations, entries or bytes, and give its value in
+         * {@link #COUNT}.
+         */
+        public static final String OPERATION_QUERY_CACHE = "query_cache";
+        /**
+         * Rows of this operation name a counter of the image cache in {@link #URI_MATCH},
+         * memory_hits, disk_hits or misses, and give its value in {@link #COUNT}.
+         */
+        public static final String OPERATION_IMAGE_CACHE = "image_cache";
+        /**
+         * Kind of the Uri, like products or product_id. The method of a call, and the kind of
+         * notification: item, ids or list.
+         */
+        public final static String URI_MATCH = "uri_match";
+        public final static String COUNT = "count";
+        public final static String TOTAL_MICROS = "total_micros";
+        /**
+         * Percentiles of the latency, given as the upper bound of the histogram bucket they
+         * fall into.
+         */
+        public final static String P50_MICROS = "p50_micros";
+        public final static String P95_MICROS = "p95_micros";
+        public final static String P99_MICROS = "p99_micros";
+        /**
+         * Rows returned by queries, inserted, updated or deleted by writes.
+         */
+        public final static String ROWS = "rows";
+        public final static String MAX_ROWS = "max_rows";
+        /**
+         * Comma separated counts of the latency histogram, bucket i counting the calls faster
+         * than 2^(i + 6) microseconds, the last one all slower calls.
+         */
+        public final static String HISTOGRAM = "histogram";
+    }
+
+    /**
+     * Deleted products the sync server has not been told about yet. A tombstone is written by
+     * the deletion of a product that has been synced before, and removed once the server has
+     * received it.
+     */
+    public static final class TombstoneEntry implements BaseColumns {
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_TOMBSTONES);
+
+        /**
+         * list of tombstones.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_TOMBSTONES;
+
+        public static final String TABLE_NAME = "product_tombstones";
+        public final static String _ID = BaseColumns._ID;
+        public final static String GLOBAL_ID = "global_id";
+        /**
+         * Server version of the product when it was deleted.
+         */
+        public final static String SERVER_VERSION = "server_version";
+        /**
+         * Time of the deletion, in milliseconds since the epoch.
+         */
+        public final static String DELETED_AT = "deleted_at";
+    }
+
+    /**
+     * Named values the sync engine keeps in the database, so they are written in the same
+     * transaction as the changes they describe. Inserting a name that exists replaces its value.
+     */
+    public static final class SyncStateEntry {
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SYNC_STATE);
+
+        /**
+         * list of named values.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_SYNC_STATE;
+
+        public static final String TABLE_NAME = "sync_state";
+        public final static String NAME = "name";
+        public final static String VALUE = "value";
     }
 }
@@ -0,0 +1,136 @@
+package com.example.android.inventoryapp.data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CSV format of the catalog files, as in RFC 4180: comma separated fields, quoted if they contain
+ * a comma, a quote or a line break, quotes doubled inside a quoted field. Records are read and
+ * written one at a time, so a file of any size is streamed.
+ */
+final class ProductCsv {
+
+    private ProductCsv() {}
+
+    /**
+     * Writes a record terminated by CRLF.
+     */
+    static void writeRecord(Writer writer, String[] fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            String field = fields[i];
+            if (field == null) {
+                continue;
+            }
+            if (field.indexOf(',') == -1 && field.indexOf('"') == -1
+                    && field.indexOf('\n') == -1 && field.indexOf('\r') == -1) {
+                writer.write(field);
+            } else {
+                writer.write('"');
+                writer.write(field.replace("\"", "\"\""));
+                writer.write('"');
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Reads the records of a CSV stream one at a time. Accepts LF and CRLF line ends.
+     */
+    static final class RecordReader {
+
+        private final Reader mReader;
+        // Character read ahead, -2 if none.
+        private int mPeeked = -2;
+        private int mLineNumber = 1;
+        private int mRecordLineNumber;
+
+        /**
+         * The reader should be buffered, it is read one character at a time.
+         */
+        RecordReader(Reader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Returns the fields of the next record, or null at the end of the stream. A blank line
+         * is a record with a single empty field.
+         */
+        String[] readRecord() throws IOException {
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+            mRecordLineNumber = mLineNumber;
+
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted field in line "
+                                + mRecordLineNumber);
+                    }
+                    if (c == '"') {
+                        if (peek() == '"') {
+                            read();
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        if (c == '\n') {
+                            mLineNumber++;
+                        }
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\r' && peek() == '\n') {
+                    // Ends the record with the following LF.
+                } else if (c == '\n' || c == -1) {
+                    if (c == '\n') {
+                        mLineNumber++;
+                    }
+                    fields.add(field.toString());
+                    return fields.toArray(new String[fields.size()]);
+                } else {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        /**
+         * Returns the line number the last record read started in, counted from 1.
+         */
+        int getLineNumber() {
+            return mRecordLineNumber;
+        }
+
+        private int read() throws IOException {
+            if (mPeeked != -2) {
+                int c = mPeeked;
+                mPeeked = -2;
+                return c;
+            }
+            return mReader.read();
+        }
+
+        private int peek() throws IOException {
+            if (mPeeked == -2) {
+                mPeeked = mReader.read();
+            }
+            return mPeeked;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Imports products from a CSV file with a header row naming the {@link ProductEntry#CSV_COLUMNS},
+ * in any order, like the files of {@link ProductEntry#EXPORT_URI}. The file is parsed as it is
+ * read and the products are inserted in chunks, every chunk in a single transaction of
+ * ProductProvider, so memory use does not grow with the size of the file. Rows that are not
+ * valid products are rejected and reported with their line number, the others are imported.
+ * The imported products have no image.
+ */
+public class ProductCsvImporter {
+
+    /**
+     * Receives the progress of an import on the importing thread, after every chunk.
+     */
+    public interface Listener {
+        void onProgress(int importedCount, int rejectedCount);
+    }
+
+    /**
+     * A row that was not imported.
+     */
+    public static final class Rejection {
+        public final int lineNumber;
+        public final String reason;
+
+        Rejection(int lineNumber, String reason) {
+            this.lineNumber = lineNumber;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + lineNumber + ": " + reason;
+        }
+    }
+
+    public static final class Result {
+        public final int importedCount;
+        public final int rejectedCount;
+        /**
+         * The first MAX_REPORTED_REJECTIONS rejected rows.
+         */
+        public final List<Rejection> rejections;
+
+        Result(int importedCount, int rejectedCount, List<Rejection> rejections) {
+            this.importedCount = importedCount;
+            this.rejectedCount = rejectedCount;
+            this.rejections = Collections.unmodifiableList(rejections);
+        }
+    }
+
+    // Products inserted per transaction.
+    static final int CHUNK_SIZE = 500;
+
+    static final int MAX_REPORTED_REJECTIONS = 100;
+
+    private final ContentResolver mContentResolver;
+
+    public ProductCsvImporter(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Imports the products of the UTF-8 encoded CSV stream, which is left open. Blocks, must not
+     * be called on the main thread. Chunks inserted before an IOException stay imported.
+     */
+    public Result importProducts(InputStream inputStream, Listener listener) throws IOException {
+        ProductCsv.RecordReader reader = new ProductCsv.RecordReader(
+                new BufferedReader(new InputStreamReader(inputStream, "UTF-8")));
+        String[] header = reader.readRecord();
+        if (header == null) {
+            return new Result(0, 0, new ArrayList<Rejection>());
+        }
+        int[] columnIndexes = getColumnIndexes(header);
+
+        List<ContentValues> chunk = new ArrayList<>(CHUNK_SIZE);
+        List<Rejection> rejections = new ArrayList<>();
+        int importedCount = 0;
+        int rejectedCount = 0;
+        String[] record;
+        while ((record = reader.readRecord()) != null) {
+            if (record.length == 1 && record[0].trim().isEmpty()) {
+                continue;
+            }
+            try {
+                chunk.add(toContentValues(record, columnIndexes, header.length));
+            } catch (IllegalArgumentException e) {
+                rejectedCount++;
+                if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+                    rejections.add(new Rejection(reader.getLineNumber(), e.getMessage()));
+                }
+            }
+
+            if (chunk.size() == CHUNK_SIZE) {
+                int inserted = insert(chunk);
+                importedCount += inserted;
+                rejectedCount += chunk.size() - inserted;
+                chunk.clear();
+                if (listener != null) {
+                    listener.onProgress(importedCount, rejectedCount);
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            int inserted = insert(chunk);
+            importedCount += inserted;
+            rejectedCount += chunk.size() - inserted;
+        }
+        if (listener != null) {
+            listener.onProgress(importedCount, rejectedCount);
+        }
+        return new Result(importedCount, rejectedCount, rejections);
+    }
+
+    private int insert(List<ContentValues> chunk) {
+        return mContentResolver.bulkInsert(ProductEntry.CONTENT_URI,
+                chunk.toArray(new ContentValues[chunk.size()]));
+    }
+
+    /*
+    * Returns the index of every CSV column in the header, in the order of CSV_COLUMNS.
+    */
+    private static int[] getColumnIndexes(String[] header) throws IOException {
+        int[] columnIndexes = new int[ProductEntry.CSV_COLUMNS.length];
+        for (int i = 0; i < columnIndexes.length; i++) {
+            columnIndexes[i] = -1;
+            for (int j = 0; j < header.length; j++) {
+                if (ProductEntry.CSV_COLUMNS[i].equalsIgnoreCase(header[j].trim())) {
+                    columnIndexes[i] = j;
+                    break;
+                }
+            }
+            if (columnIndexes[i] == -1) {
+                throw new IOException("Missing column " + ProductEntry.CSV_COLUMNS[i]
+                        + " in the header row");
+            }
+        }
+        return columnIndexes;
+    }
+
+    /*
+    * Validates a row the way ProductProvider validates an insert, and returns its values.
+    */
+    private static ContentValues toContentValues(String[] record, int[] columnIndexes,
+                                                 int columnCount) {
+        if (record.length != columnCount) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Expected %d fields, found %d", columnCount, record.length));
+        }
+
+        String name = record[columnIndexes[0]].trim();
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("No name");
+        }
+        String price = record[columnIndexes[1]].trim();
+        try {
+            // Unlike Float.parseFloat, BigDecimal takes plain decimals only, no NaN, Infinity,
+            // hexadecimal or type suffixes the provider would store as text.
+            if (new BigDecimal(price).signum() < 0) {
+                throw new IllegalArgumentException("Negative price " + price);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid price " + price);
+        }
+        String quantity = record[columnIndexes[2]].trim();
+        try {
+            if (Integer.parseInt(quantity) < 0) {
+                throw new IllegalArgumentException("Negative quantity " + quantity);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid quantity " + quantity);
+        }
+        String supplierPhone = record[columnIndexes[3]].trim();
+        if (supplierPhone.isEmpty()) {
+            throw new IllegalArgumentException("No supplier phone");
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.NAME, name);
+        values.put(ProductEntry.PRICE, price);
+        values.put(ProductEntry.QUANTITY, quantity);
+        values.put(ProductEntry.SUPPLIER_PHONE, supplierPhone);
+        return values;
+    }
+}
@@ -2,38 +2,293 @@ package com.example.android.inventoryapp.data;
 
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductContract.SummaryEntry;
+import com.example.android.inventoryapp.data.ProductContract.SyncStateEntry;
+import com.example.android.inventoryapp.data.ProductContract.TombstoneEntry;
 
 public class ProductDbHelper extends SQLiteOpenHelper {
 
-    private static final String DATABASE_NAME = "product_inventory.db";
+    static final String DATABASE_NAME = "product_inventory.db";
 
-    private static final int DATABASE_VERSION = 1;
+    /*
+    * Version 2 moved the product images out of the Products table into ProductImageStore.
+    * Version 3 added the full-text search index of the products.
+    * Version 4 added the indexes of the sort orders and filters.
+    * Version 5 added the inventory summary.
+    * Version 6 added the stock ledger.
+    * Version 7 added the sync columns, tombstones and sync state.
+    * Version 8 made sync writes increment the version of the products.
+    * Version 9 added the last stock journal segment written.
+    * Version 10 made image changes increment the version of the products.
+    * The upgrade steps are defined in ProductMigrations.
+    */
+    private static final int DATABASE_VERSION = 10;
+
+    static final String NAME_INDEX = ProductEntry.TABLE_NAME + "_name_index";
+    static final String PRICE_INDEX = ProductEntry.TABLE_NAME + "_price_index";
+    static final String QUANTITY_INDEX = ProductEntry.TABLE_NAME + "_quantity_index";
+    static final String GLOBAL_ID_INDEX = ProductEntry.TABLE_NAME + "_global_id_index";
+    static final String CHANGE_TRIGGER = ProductEntry.TABLE_NAME + "_after_change";
+
+    // Single row table holding the last segment of the StockWriteBuffer journal sold.
+    static final String JOURNAL_STATE_TABLE = "stock_journal_state";
+    static final String LAST_SEGMENT = "last_segment";
+
+    // Current time in milliseconds since the epoch, in SQL.
+    static final String NOW_MILLIS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+    // A random global ID, in SQL.
+    static final String RANDOM_GLOBAL_ID = "lower(hex(randomblob(16)))";
+
+    /*
+    * Checkpoint policy of the write-ahead log: the committing writer copies the log back into the
+    * database once it holds this many pages (about 4 MB), and a log that grew beyond the size
+    * limit during a large transaction is truncated again after the checkpoint.
+    */
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    static final long JOURNAL_SIZE_LIMIT_BYTES = 4 * 1024 * 1024;
 
     public ProductDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Readers get connections of their own and no longer wait for a writer, and a commit
+        // appends to the log instead of syncing a rollback journal.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /*
+    * Configures the primary connection, the only one that writes.
+    */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (!db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        // In WAL mode NORMAL only skips the sync of every commit. A commit still survives the
+        // death of the process, only a power loss can undo the latest ones, which matches the
+        // guarantee of the stock journal of StockWriteBuffer.
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES,
+                null);
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT_BYTES,
+                null);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createProductsTable(db);
+        createSearchIndex(db);
+        createIndexes(db);
+        createSummary(db);
+        StockLedger.createTables(db);
+        createSyncTables(db);
+        createJournalState(db);
+        ProductMigrations.createBackgroundMigrationsTable(db);
+    }
 
+    /*
+    * Runs the upgrade steps from the old version on, inside the upgrade transaction. The steps
+    * only change the schema and schedule the rewriting of existing rows as background
+    * migrations, so opening the database stays fast.
+    */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        ProductMigrations.createBackgroundMigrationsTable(db);
+        for (Migration migration : ProductMigrations.getMigrations()) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                migration.migrate(db);
+            }
+        }
+    }
+
+    private static void createProductsTable(SQLiteDatabase db) {
         final String SQL_CREATE_PRODUCTS_TABLE = "CREATE TABLE " + ProductEntry.TABLE_NAME + " (" +
                 ProductEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                 ProductEntry.NAME + " TEXT NOT NULL, " +
                 ProductEntry.PRICE + " INTEGER NOT NULL DEFAULT 0, " +
                 ProductEntry.QUANTITY + " INTEGER NOT NULL DEFAULT 0, " +
                 ProductEntry.SUPPLIER_PHONE + " TEXT NOT NULL, " +
-                ProductEntry.IMAGE + " BLOB NOT NULL);";
+                ProductEntry.IMAGE_REF + " TEXT, " +
+                ProductEntry.GLOBAL_ID + " TEXT, " +
+                ProductEntry.VERSION + " INTEGER NOT NULL DEFAULT 1, " +
+                ProductEntry.UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, " +
+                ProductEntry.SERVER_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                ProductEntry.DIRTY + " INTEGER NOT NULL DEFAULT 1);";
 
         db.execSQL(SQL_CREATE_PRODUCTS_TABLE);
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(" DROP TABLE IF EXISTS " + ProductEntry.TABLE_NAME);
-        onCreate(db);
+    /*
+    * Creates the indexes serving the sort orders and filters of ProductContract, so neither
+    * scans the table nor sorts the results in a temporary B-tree.
+    */
+    static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + NAME_INDEX + " ON " + ProductEntry.TABLE_NAME + " ("
+                + ProductEntry.NAME + " COLLATE NOCASE)");
+        db.execSQL("CREATE INDEX " + PRICE_INDEX + " ON " + ProductEntry.TABLE_NAME + " ("
+                + ProductEntry.PRICE + ")");
+        db.execSQL("CREATE INDEX " + QUANTITY_INDEX + " ON " + ProductEntry.TABLE_NAME + " ("
+                + ProductEntry.QUANTITY + ")");
+    }
+
+    /*
+    * Creates the index of the global IDs, the tombstone and sync state tables, and the triggers
+    * keeping the sync columns of the products current:
+    * - an insert that brings no global ID, which ProductProvider always assigns, gets a random
+    *   one,
+    * - a change of the synced columns increments the version, and marks the product dirty
+    *   unless it is a sync write, which changes the server version,
+    * - deleting a product the server knows leaves a tombstone.
+    */
+    static void createSyncTables(SQLiteDatabase db) {
+        final String products = ProductEntry.TABLE_NAME;
+        db.execSQL("CREATE UNIQUE INDEX " + GLOBAL_ID_INDEX + " ON " + products + " ("
+                + ProductEntry.GLOBAL_ID + ")");
+
+        db.execSQL("CREATE TABLE " + TombstoneEntry.TABLE_NAME + " ("
+                + TombstoneEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + TombstoneEntry.GLOBAL_ID + " TEXT NOT NULL UNIQUE, "
+                + TombstoneEntry.SERVER_VERSION + " INTEGER NOT NULL, "
+                + TombstoneEntry.DELETED_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + SyncStateEntry.TABLE_NAME + " ("
+                + SyncStateEntry.NAME + " TEXT PRIMARY KEY, "
+                + SyncStateEntry.VALUE + " TEXT)");
+
+        db.execSQL("CREATE TRIGGER " + products + "_assign_global_id AFTER INSERT ON " + products
+                + " WHEN new." + ProductEntry.GLOBAL_ID + " IS NULL BEGIN UPDATE " + products
+                + " SET " + ProductEntry.GLOBAL_ID + " = " + RANDOM_GLOBAL_ID + ", "
+                + ProductEntry.UPDATED_AT + " = " + NOW_MILLIS + " WHERE " + ProductEntry._ID
+                + " = new." + ProductEntry._ID + "; END");
+        createChangeTrigger(db);
+        db.execSQL("CREATE TRIGGER " + TombstoneEntry.TABLE_NAME + "_after_delete AFTER DELETE ON "
+                + products + " WHEN old." + ProductEntry.SERVER_VERSION + " > 0 BEGIN "
+                + "INSERT OR REPLACE INTO " + TombstoneEntry.TABLE_NAME + " ("
+                + TombstoneEntry.GLOBAL_ID + ", " + TombstoneEntry.SERVER_VERSION + ", "
+                + TombstoneEntry.DELETED_AT + ") VALUES (old." + ProductEntry.GLOBAL_ID
+                + ", old." + ProductEntry.SERVER_VERSION + ", " + NOW_MILLIS + "); END");
+    }
+
+    /*
+    * Creates the trigger versioning the changes of the name, price, quantity, supplier phone and
+    * image of a product. Every change increments the version, the one optimistic updates check, a
+    * local change also takes the current time and marks the product dirty. A sync write keeps
+    * the update time and dirty flag it sets.
+    */
+    static void createChangeTrigger(SQLiteDatabase db) {
+        final String products = ProductEntry.TABLE_NAME;
+        final String localChange = "new." + ProductEntry.SERVER_VERSION + " = old."
+                + ProductEntry.SERVER_VERSION;
+        db.execSQL("CREATE TRIGGER " + CHANGE_TRIGGER + " AFTER UPDATE OF "
+                + ProductEntry.NAME + ", " + ProductEntry.PRICE + ", " + ProductEntry.QUANTITY
+                + ", " + ProductEntry.SUPPLIER_PHONE + ", " + ProductEntry.IMAGE_REF + " ON "
+                + products
+                + " BEGIN UPDATE " + products + " SET "
+                + ProductEntry.VERSION + " = old." + ProductEntry.VERSION + " + 1, "
+                + ProductEntry.UPDATED_AT + " = CASE WHEN " + localChange + " THEN "
+                + NOW_MILLIS + " ELSE new." + ProductEntry.UPDATED_AT + " END, "
+                + ProductEntry.DIRTY + " = CASE WHEN " + localChange + " THEN 1 ELSE new."
+                + ProductEntry.DIRTY + " END WHERE " + ProductEntry._ID + " = new."
+                + ProductEntry._ID + "; END");
+    }
+
+    /*
+    * Creates the journal state table, no segment has been written yet.
+    */
+    static void createJournalState(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + JOURNAL_STATE_TABLE + " ("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + LAST_SEGMENT + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + JOURNAL_STATE_TABLE + " VALUES (1, 0)");
+    }
+
+    /*
+    * Creates the FTS4 index of the product names and supplier phones. The index is an external
+    * content table, so it holds no copy of the text, and the triggers keep it in sync with the
+    * Products table. Updates that touch neither column, like sales, leave the index alone.
+    */
+    static void createSearchIndex(SQLiteDatabase db) {
+        final String searchTable = ProductEntry.SEARCH_TABLE_NAME;
+        final String indexedColumns = ProductEntry.NAME + ", " + ProductEntry.SUPPLIER_PHONE;
+        final String newRow = "new." + ProductEntry._ID + ", new." + ProductEntry.NAME + ", new."
+                + ProductEntry.SUPPLIER_PHONE;
+        final String deleteOldRow = "DELETE FROM " + searchTable + " WHERE docid = old."
+                + ProductEntry._ID + ";";
+        final String insertNewRow = "INSERT INTO " + searchTable + "(docid, " + indexedColumns
+                + ") VALUES(" + newRow + ");";
+
+        db.execSQL("CREATE VIRTUAL TABLE " + searchTable + " USING fts4(" + indexedColumns
+                + ", content=\"" + ProductEntry.TABLE_NAME + "\")");
+
+        db.execSQL("CREATE TRIGGER " + searchTable + "_after_insert AFTER INSERT ON "
+                + ProductEntry.TABLE_NAME + " BEGIN " + insertNewRow + " END");
+        db.execSQL("CREATE TRIGGER " + searchTable + "_before_update BEFORE UPDATE OF "
+                + indexedColumns + " ON " + ProductEntry.TABLE_NAME + " BEGIN " + deleteOldRow
+                + " END");
+        db.execSQL("CREATE TRIGGER " + searchTable + "_after_update AFTER UPDATE OF "
+                + indexedColumns + " ON " + ProductEntry.TABLE_NAME + " BEGIN " + insertNewRow
+                + " END");
+        db.execSQL("CREATE TRIGGER " + searchTable + "_before_delete BEFORE DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN " + deleteOldRow + " END");
+    }
+
+    /*
+    * Creates the single row summary table, initialized from the current products, and the
+    * triggers applying the difference of every written product to it. Updates that change
+    * neither price nor quantity leave the summary alone.
+    */
+    static void createSummary(SQLiteDatabase db) {
+        final String summaryTable = SummaryEntry.TABLE_NAME;
+        final String price = ProductEntry.PRICE;
+        final String quantity = ProductEntry.QUANTITY;
+
+        db.execSQL("CREATE TABLE " + summaryTable + " ("
+                + SummaryEntry._ID + " INTEGER PRIMARY KEY CHECK (" + SummaryEntry._ID + " = 1), "
+                + SummaryEntry.PRODUCT_COUNT + " INTEGER NOT NULL, "
+                + SummaryEntry.UNITS_ON_HAND + " INTEGER NOT NULL, "
+                + SummaryEntry.STOCK_VALUE + " REAL NOT NULL, "
+                + SummaryEntry.OUT_OF_STOCK_COUNT + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + summaryTable + " SELECT 1, count(*), total(" + quantity
+                + "), total(" + price + " * " + quantity + "), total(" + quantity + " = 0) FROM "
+                + ProductEntry.TABLE_NAME);
+
+        db.execSQL("CREATE TRIGGER " + summaryTable + "_after_insert AFTER INSERT ON "
+                + ProductEntry.TABLE_NAME + " BEGIN " + updateSummary(1, "new", null) + " END");
+        db.execSQL("CREATE TRIGGER " + summaryTable + "_after_update AFTER UPDATE OF "
+                + price + ", " + quantity + " ON " + ProductEntry.TABLE_NAME + " BEGIN "
+                + updateSummary(0, "new", "old") + " END");
+        db.execSQL("CREATE TRIGGER " + summaryTable + "_after_delete AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN " + updateSummary(-1, null, "old") + " END");
+    }
+
+    /*
+    * Builds the statement of a summary trigger, adding the totals of the added product row and
+    * subtracting those of the removed one. Either row may be null.
+    */
+    private static String updateSummary(int productCountChange, String addedRow,
+                                        String removedRow) {
+        return "UPDATE " + SummaryEntry.TABLE_NAME + " SET "
+                + SummaryEntry.PRODUCT_COUNT + " = " + SummaryEntry.PRODUCT_COUNT + " + "
+                + productCountChange + ", "
+                + SummaryEntry.UNITS_ON_HAND + " = " + SummaryEntry.UNITS_ON_HAND
+                + change(addedRow, removedRow, "%1$s." + ProductEntry.QUANTITY) + ", "
+                + SummaryEntry.STOCK_VALUE + " = " + SummaryEntry.STOCK_VALUE
+                + change(addedRow, removedRow,
+                        "%1$s." + ProductEntry.PRICE + " * %1$s." + ProductEntry.QUANTITY) + ", "
+                + SummaryEntry.OUT_OF_STOCK_COUNT + " = " + SummaryEntry.OUT_OF_STOCK_COUNT
+                + change(addedRow, removedRow, "(%1$s." + ProductEntry.QUANTITY + " = 0)") + ";";
+    }
+
+    private static String change(String addedRow, String removedRow, String term) {
+        String change = "";
+        if (addedRow != null) {
+            change += " + " + String.format(term, addedRow);
+        }
+        if (removedRow != null) {
+            change += " - " + String.format(term, removedRow);
+        }
+        return change;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,284 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.android.inventoryapp.data.ProductContract.DiagnosticsEntry;
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-level cache of decoded product images. Bitmaps are kept in an in-memory LRU sized to a
+ * fraction of the heap, backed by a bounded disk cache of the images downscaled to the size they
+ * were requested at. Misses are decoded from the image Uri of the product, streamed by
+ * ProductProvider. Entries are keyed by product ID and image reference, the reference being the
+ * content hash of the stored image, so a changed image never hits an outdated entry.
+ * ProductProvider invalidates the entries of a product when its image changes.
+ */
+public class ProductImageCache {
+
+    private static final String LOG_TAG = ProductImageCache.class.getSimpleName();
+
+    // Share of the maximum heap used by the memory cache.
+    static final int MEMORY_CACHE_HEAP_FRACTION = 8;
+
+    static final long DISK_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final String DISK_CACHE_DIRECTORY = "product_image_cache";
+
+    private static ProductImageCache sInstance;
+
+    public static synchronized ProductImageCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProductImageCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final ContentResolver mContentResolver;
+    private final ProductImagePipeline mImagePipeline;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDiskCacheDirectory;
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    // Size of the disk cache, -1 until it has been measured. Guarded by this.
+    private long mDiskCacheBytes = -1;
+
+    private ProductImageCache(Context context) {
+        mContentResolver = context.getContentResolver();
+        mImagePipeline = ProductImagePipeline.getDefault();
+        mDiskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+
+        int maxKilobytes = (int) (Runtime.getRuntime().maxMemory() / 1024);
+        mMemoryCache = new LruCache<String, Bitmap>(maxKilobytes / MEMORY_CACHE_HEAP_FRACTION) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+    }
+
+    /**
+     * Loads the image of the product at the requested size. A bitmap in the memory cache is
+     * delivered right away, otherwise it is read from the disk cache or streamed from the image
+     * Uri and decoded in the background. Returns null if the callback has already been called.
+     * Must be called on the main thread.
+     */
+    public ProductImagePipeline.Request load(final long id, final String imageRef,
+                                             final int width, final int height,
+                                             final ProductImagePipeline.Callback callback) {
+        final String key = getKey(id, imageRef, width, height);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+            callback.onDecoded(bitmap);
+            return null;
+        }
+
+        return mImagePipeline.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return loadFromDisk(id, imageRef, width, height);
+            }
+        }, new ProductImagePipeline.Callback() {
+            @Override
+            public void onDecoded(Bitmap bitmap) {
+                // Cached on the main thread, so a cancelled load never leaves a bitmap in the
+                // cache that the pipeline may reuse.
+                if (bitmap != null) {
+                    mMemoryCache.put(key, bitmap);
+                }
+                callback.onDecoded(bitmap);
+            }
+        });
+    }
+
+    /**
+     * Removes all cached images of the products. The memory cache and the disk cache are scanned
+     * once for all of them, so the cost does not grow with the number of products times the
+     * number of cached images.
+     */
+    public void invalidate(Collection<Long> ids) {
+        Set<Long> idSet = new HashSet<>(ids);
+        for (String key : mMemoryCache.snapshot().keySet()) {
+            if (idSet.contains(parseId(key))) {
+                mMemoryCache.remove(key);
+            }
+        }
+
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (idSet.contains(parseId(file.getName()))) {
+                long length = file.length();
+                if (file.delete()) {
+                    addDiskCacheBytes(-length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the counters as rows of the {@link DiagnosticsEntry#OPERATION_IMAGE_CACHE} operation
+     * to the diagnostics.
+     */
+    void addDiagnostics(MatrixCursor cursor) {
+        addCounter(cursor, "memory_hits", mMemoryHits.get());
+        addCounter(cursor, "disk_hits", mDiskHits.get());
+        addCounter(cursor, "misses", mMisses.get());
+    }
+
+    private static void addCounter(MatrixCursor cursor, String name, long value) {
+        cursor.newRow()
+                .add(DiagnosticsEntry.OPERATION_IMAGE_CACHE)
+                .add(name)
+                .add(value);
+    }
+
+    void resetCounters() {
+        mMemoryHits.set(0);
+        mDiskHits.set(0);
+        mMisses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ProductImageCache[memoryHits=" + mMemoryHits + ", diskHits=" + mDiskHits
+                + ", misses=" + mMisses + ", memoryKilobytes=" + mMemoryCache.size() + "/"
+                + mMemoryCache.maxSize() + "]";
+    }
+
+    /*
+    * Runs on the pipeline's background executor.
+    */
+    private Bitmap loadFromDisk(long id, String imageRef, int width, int height) {
+        File cachedFile = new File(mDiskCacheDirectory, getKey(id, imageRef, width, height));
+        if (cachedFile.exists()) {
+            Bitmap bitmap = mImagePipeline.decode(cachedFile, width, height);
+            if (bitmap != null) {
+                mDiskHits.incrementAndGet();
+                // Keeps the least recently used order of the disk cache.
+                cachedFile.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        mMisses.incrementAndGet();
+        Bitmap bitmap = mImagePipeline.decode(mContentResolver, ProductEntry.buildImageUri(id),
+                width, height);
+        if (bitmap != null) {
+            writeToDisk(cachedFile, bitmap);
+        }
+        return bitmap;
+    }
+
+    private void writeToDisk(File cachedFile, Bitmap bitmap) {
+        if (!mDiskCacheDirectory.isDirectory() && !mDiskCacheDirectory.mkdirs()) {
+            Log.w(LOG_TAG, "Unable to create the disk cache directory");
+            return;
+        }
+
+        byte[] image = mImagePipeline.encode(bitmap);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(cachedFile);
+            try {
+                outputStream.write(image);
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to write " + cachedFile + " to the disk cache", e);
+            cachedFile.delete();
+            return;
+        }
+
+        addDiskCacheBytes(image.length);
+        trimDiskCache();
+    }
+
+    /*
+    * Deletes the least recently used files until the disk cache fits its maximum size.
+    */
+    private synchronized void trimDiskCache() {
+        if (mDiskCacheBytes <= DISK_CACHE_MAX_BYTES) {
+            return;
+        }
+
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long firstModified = first.lastModified();
+                long secondModified = second.lastModified();
+                return firstModified < secondModified ? -1
+                        : (firstModified == secondModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (mDiskCacheBytes <= DISK_CACHE_MAX_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                mDiskCacheBytes -= length;
+            }
+        }
+    }
+
+    private synchronized void addDiskCacheBytes(long bytes) {
+        if (mDiskCacheBytes == -1) {
+            // Measured once per process, the cache directory only holds a bounded number of files.
+            mDiskCacheBytes = 0;
+            File[] files = mDiskCacheDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    mDiskCacheBytes += file.length();
+                }
+            }
+            // The measurement already includes a file that has just been written.
+            return;
+        }
+        mDiskCacheBytes += bytes;
+    }
+
+    private static String getKey(long id, String imageRef, int width, int height) {
+        return id + "_" + imageRef + "_" + width + "x" + height;
+    }
+
+    /*
+    * Returns the product ID of a key, or -1 for a file that is not a cached image.
+    */
+    private static long parseId(String key) {
+        int end = key.indexOf('_');
+        if (end == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(key.substring(0, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
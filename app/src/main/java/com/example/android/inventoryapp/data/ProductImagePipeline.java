@@ -0,0 +1,283 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes and decodes product images with bounded sizes. Images are stored in a lossy format no
+ * larger than the maximum dimension, and decoded subsampled to the size they are displayed at,
+ * reusing the memory of a previously decoded bitmap where possible.
+ */
+public class ProductImagePipeline {
+
+    /**
+     * Receives a decoded bitmap on the main thread, or null if the image could not be decoded.
+     */
+    public interface Callback {
+        void onDecoded(Bitmap bitmap);
+    }
+
+    /*
+    * Encoded image that can be read more than once, first for its bounds, then for its pixels.
+    */
+    private interface Source {
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    /**
+     * Pending asynchronous decode.
+     */
+    public static class Request {
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        /**
+         * Cancels the decode if it has not started yet and drops its callback.
+         */
+        public void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+    }
+
+    private static final String LOG_TAG = ProductImagePipeline.class.getSimpleName();
+
+    static final Bitmap.CompressFormat DEFAULT_FORMAT = Bitmap.CompressFormat.JPEG;
+    static final int DEFAULT_QUALITY = 85;
+    static final int DEFAULT_MAX_DIMENSION = 1024;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private static ProductImagePipeline sDefault;
+
+    public static synchronized ProductImagePipeline getDefault() {
+        if (sDefault == null) {
+            sDefault = new ProductImagePipeline(DEFAULT_FORMAT, DEFAULT_QUALITY,
+                    DEFAULT_MAX_DIMENSION);
+        }
+        return sDefault;
+    }
+
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+    private final int mMaxDimension;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // A bitmap no longer displayed whose memory the next decode may reuse. Guarded by this.
+    private Bitmap mReusableBitmap;
+
+    public ProductImagePipeline(Bitmap.CompressFormat format, int quality, int maxDimension) {
+        mFormat = format;
+        mQuality = quality;
+        mMaxDimension = maxDimension;
+    }
+
+    /**
+     * Scales the bitmap down to the maximum dimension and compresses it into the storage format.
+     * Must not be called on the main thread.
+     */
+    public byte[] encode(Bitmap bitmap) {
+        long start = SystemClock.elapsedRealtime();
+
+        Bitmap scaledBitmap = bitmap;
+        int largestDimension = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (largestDimension > mMaxDimension) {
+            float scale = (float) mMaxDimension / largestDimension;
+            scaledBitmap = Bitmap.createScaledBitmap(bitmap,
+                    Math.round(bitmap.getWidth() * scale),
+                    Math.round(bitmap.getHeight() * scale), true);
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        scaledBitmap.compress(mFormat, mQuality, stream);
+        if (scaledBitmap != bitmap) {
+            scaledBitmap.recycle();
+        }
+
+        byte[] image = stream.toByteArray();
+        Log.v(LOG_TAG, "Encoded " + bitmap.getWidth() + "x" + bitmap.getHeight() + " image into "
+                + image.length + " bytes in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return image;
+    }
+
+    /**
+     * Decodes the image file subsampled to at least the requested size. Must not be called on
+     * the main thread.
+     */
+    public Bitmap decode(File file, int requestedWidth, int requestedHeight) {
+        final String path = file.getAbsolutePath();
+        return decode(new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFile(path, options);
+            }
+        }, file.getName(), requestedWidth, requestedHeight);
+    }
+
+    /**
+     * Decodes the image streamed from the content Uri subsampled to at least the requested size,
+     * or returns null if it cannot be opened. Must not be called on the main thread.
+     */
+    public Bitmap decode(final ContentResolver contentResolver, final Uri uri,
+                         int requestedWidth, int requestedHeight) {
+        return decode(new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) throws IOException {
+                InputStream inputStream = contentResolver.openInputStream(uri);
+                if (inputStream == null) {
+                    throw new IOException("No stream for " + uri);
+                }
+                try {
+                    return BitmapFactory.decodeStream(inputStream, null, options);
+                } finally {
+                    inputStream.close();
+                }
+            }
+        }, uri.toString(), requestedWidth, requestedHeight);
+    }
+
+    private Bitmap decode(Source source, String name, int requestedWidth, int requestedHeight) {
+        long start = SystemClock.elapsedRealtime();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try {
+            source.decode(options);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to read " + name, e);
+            return null;
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                requestedWidth, requestedHeight);
+        options.inMutable = true;
+        Bitmap reusableBitmap = takeReusableBitmap(options);
+        if (reusableBitmap != null) {
+            options.inBitmap = reusableBitmap;
+        }
+
+        Bitmap bitmap;
+        try {
+            try {
+                bitmap = source.decode(options);
+            } catch (IllegalArgumentException e) {
+                // The reusable bitmap did not fit after all, decode into new memory.
+                options.inBitmap = null;
+                bitmap = source.decode(options);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to read " + name, e);
+            return null;
+        }
+
+        Log.v(LOG_TAG, "Decoded " + name + " with sample size " + options.inSampleSize
+                + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return bitmap;
+    }
+
+    /*
+    * Runs the decode on the background executor and delivers its bitmap to the callback.
+    */
+    Request submit(final Callable<Bitmap> decode, final Callback callback) {
+        final Request request = new Request();
+        request.mFuture = sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (request.mCancelled) {
+                    return;
+                }
+                Bitmap decodedBitmap;
+                try {
+                    decodedBitmap = decode.call();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Unable to decode image", e);
+                    decodedBitmap = null;
+                }
+                final Bitmap bitmap = decodedBitmap;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request.mCancelled) {
+                            recycle(bitmap);
+                        } else {
+                            callback.onDecoded(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Offers a decoded bitmap that is no longer displayed for reuse by the next decode.
+     */
+    public synchronized void recycle(Bitmap bitmap) {
+        if (bitmap != null && bitmap.isMutable()) {
+            mReusableBitmap = bitmap;
+        }
+    }
+
+    private synchronized Bitmap takeReusableBitmap(BitmapFactory.Options options) {
+        Bitmap bitmap = mReusableBitmap;
+        if (bitmap == null || bitmap.isRecycled()) {
+            return null;
+        }
+
+        int width = options.outWidth / options.inSampleSize;
+        int height = options.outHeight / options.inSampleSize;
+        boolean fits;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Any bitmap with enough memory can be reused, 4 bytes per ARGB_8888 pixel.
+            fits = bitmap.getAllocationByteCount() >= width * height * 4;
+        } else {
+            // Older versions only reuse bitmaps of exactly the same size without subsampling.
+            fits = options.inSampleSize == 1
+                    && bitmap.getWidth() == options.outWidth
+                    && bitmap.getHeight() == options.outHeight;
+        }
+        if (!fits) {
+            return null;
+        }
+        mReusableBitmap = null;
+        return bitmap;
+    }
+
+    /*
+    * Largest power of two that keeps both dimensions at least as large as requested.
+    */
+    static int calculateInSampleSize(int width, int height, int requestedWidth,
+                                     int requestedHeight) {
+        int inSampleSize = 1;
+        if (requestedWidth <= 0 || requestedHeight <= 0) {
+            return inSampleSize;
+        }
+        while (width / (inSampleSize * 2) >= requestedWidth
+                && height / (inSampleSize * 2) >= requestedHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed file store for product images.
+ * Every image is saved once under the SHA-1 hash of its bytes, so products sharing the same
+ * photo share the same file and the Products table only keeps the hash as a reference.
+ */
+public final class ProductImageStore {
+
+    private static final String LOG_TAG = ProductImageStore.class.getSimpleName();
+
+    private static final String IMAGE_DIRECTORY = "product_images";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File mDirectory;
+
+    public ProductImageStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), IMAGE_DIRECTORY);
+    }
+
+    /**
+     * Stores the image and returns its reference. If an image with the same content is already
+     * stored, nothing is written.
+     */
+    public String put(byte[] image) throws IOException {
+        String reference = hash(image);
+        File file = getFile(reference);
+        if (file.exists()) {
+            return reference;
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create image directory " + mDirectory);
+        }
+
+        // Write into a temporary file first, so a crash never leaves a truncated image behind
+        // a valid reference.
+        File temporaryFile = new File(mDirectory, reference + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(image);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Unable to store image " + reference);
+        }
+        return reference;
+    }
+
+    /**
+     * Removes the image file. Callers are responsible for checking that no product refers to it.
+     */
+    public void delete(String reference) {
+        if (reference != null && !getFile(reference).delete()) {
+            Log.w(LOG_TAG, "Unable to delete image " + reference);
+        }
+    }
+
+    public File getFile(String reference) {
+        return new File(mDirectory, reference);
+    }
+
+    static String hash(byte[] image) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(image);
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+                hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0f];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android platform ships SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ordered upgrade steps of the product database and the background migrations they schedule.
+ *
+ * A step that creates or rebuilds a table spells out the SQL of its version, so later changes of
+ * the current schema in ProductDbHelper cannot change what an old upgrade does. Steps that only
+ * add a new object share its DDL with ProductDbHelper, changing that object later takes a step of
+ * its own.
+ */
+final class ProductMigrations {
+
+    private static final String LOG_TAG = ProductMigrations.class.getSimpleName();
+
+    /*
+    * Names of the scheduled background migrations, in the order they were scheduled.
+    */
+    static final String BACKGROUND_MIGRATIONS_TABLE = "background_migrations";
+    private static final String COLUMN_NAME = "name";
+
+    static final String MOVE_LEGACY_IMAGES = "move_legacy_images";
+    static final String REBUILD_SEARCH_INDEX = "rebuild_search_index";
+    static final String ASSIGN_GLOBAL_IDS = "assign_global_ids";
+    static final String SNAPSHOT_STOCK = "snapshot_stock";
+
+    // Version 1 table keeping the images that have not been moved to ProductImageStore yet.
+    static final String LEGACY_IMAGES_TABLE = "legacy_product_images";
+
+    // Number of images moved per transaction, small enough to never hold up a write of the UI.
+    static final int IMAGE_BATCH_SIZE = 20;
+
+    // Number of products given a global ID per transaction.
+    static final int GLOBAL_ID_BATCH_SIZE = 500;
+
+    // Number of products given their first stock snapshot per transaction.
+    static final int SNAPSHOT_BATCH_SIZE = 500;
+
+    private ProductMigrations() {}
+
+    /**
+     * Returns the upgrade steps in ascending version order.
+     */
+    static Migration[] getMigrations() {
+        return new Migration[] {
+                new MoveImagesToStore(),
+                new CreateSearchIndex(),
+                new CreateSortIndexes(),
+                new CreateSummary(),
+                new CreateStockLedger(),
+                new AddSyncColumns(),
+                new VersionSyncWrites(),
+                new CreateJournalState(),
+                new VersionImageChanges()
+        };
+    }
+
+    static Map<String, BackgroundMigration> getBackgroundMigrations(Context context) {
+        Map<String, BackgroundMigration> migrations = new HashMap<>();
+        migrations.put(MOVE_LEGACY_IMAGES, new MoveLegacyImages(context));
+        migrations.put(REBUILD_SEARCH_INDEX, new RebuildSearchIndex());
+        migrations.put(ASSIGN_GLOBAL_IDS, new AssignGlobalIds());
+        migrations.put(SNAPSHOT_STOCK, new SnapshotStock());
+        return migrations;
+    }
+
+    static void createBackgroundMigrationsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + BACKGROUND_MIGRATIONS_TABLE + " ("
+                + COLUMN_NAME + " TEXT PRIMARY KEY)");
+    }
+
+    static void schedule(SQLiteDatabase db, String name) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, name);
+        db.insertWithOnConflict(BACKGROUND_MIGRATIONS_TABLE, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Runs the scheduled background migrations to completion, each batch in a transaction of its
+     * own. Opens the database, which runs the pending upgrade steps first. Blocks, must not be
+     * called on the main thread. Returns the number of migrations completed.
+     */
+    static int runBackgroundMigrations(ProductDbHelper dbHelper, Context context) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Map<String, BackgroundMigration> migrations = getBackgroundMigrations(context);
+
+        int completed = 0;
+        String name;
+        while ((name = getNextScheduled(db)) != null) {
+            BackgroundMigration migration = migrations.get(name);
+            if (migration == null) {
+                Log.w(LOG_TAG, "Dropping unknown background migration " + name);
+                unschedule(db, name);
+                continue;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            int batches = 0;
+            boolean remaining;
+            do {
+                db.beginTransaction();
+                try {
+                    remaining = migration.migrateBatch(db);
+                    if (!remaining) {
+                        unschedule(db, name);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                batches++;
+            } while (remaining);
+
+            completed++;
+            Log.i(LOG_TAG, "Background migration " + name + " completed in " + batches
+                    + " batches, " + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+        return completed;
+    }
+
+    private static String getNextScheduled(SQLiteDatabase db) {
+        Cursor cursor = db.query(BACKGROUND_MIGRATIONS_TABLE, new String[] { COLUMN_NAME },
+                null, null, null, null, "rowid", "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void unschedule(SQLiteDatabase db, String name) {
+        db.delete(BACKGROUND_MIGRATIONS_TABLE, COLUMN_NAME + "=?", new String[] { name });
+    }
+
+    /*
+    * Version 2: the product images move out of the Products table into ProductImageStore.
+    * The version 1 table is renamed and keeps the images, the new Products table receives all
+    * other columns at once, so every product is available right after the upgrade. The images
+    * are moved by MoveLegacyImages.
+    */
+    private static final class MoveImagesToStore extends Migration {
+
+        MoveImagesToStore() {
+            super(2);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE Products RENAME TO " + LEGACY_IMAGES_TABLE);
+            db.execSQL("CREATE TABLE Products ("
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "name TEXT NOT NULL, "
+                    + "price INTEGER NOT NULL DEFAULT 0, "
+                    + "quantity INTEGER NOT NULL DEFAULT 0, "
+                    + "supplier_phone TEXT NOT NULL, "
+                    + "image_ref TEXT)");
+            db.execSQL("INSERT INTO Products (_id, name, price, quantity, supplier_phone) "
+                    + "SELECT _id, name, price, quantity, supplier_phone FROM "
+                    + LEGACY_IMAGES_TABLE);
+            // The _IDs of deleted products are not given out again.
+            db.execSQL("UPDATE sqlite_sequence SET seq = (SELECT seq FROM sqlite_sequence "
+                    + "WHERE name = '" + LEGACY_IMAGES_TABLE + "') WHERE name = 'Products'");
+            schedule(db, MOVE_LEGACY_IMAGES);
+        }
+    }
+
+    /*
+    * Version 3: the full-text search index. The triggers index every product written from now
+    * on, RebuildSearchIndex indexes the existing ones.
+    */
+    private static final class CreateSearchIndex extends Migration {
+
+        CreateSearchIndex() {
+            super(3);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            ProductDbHelper.createSearchIndex(db);
+            schedule(db, REBUILD_SEARCH_INDEX);
+        }
+    }
+
+    /*
+    * Version 4: the indexes of the sort orders and filters.
+    */
+    private static final class CreateSortIndexes extends Migration {
+
+        CreateSortIndexes() {
+            super(4);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            ProductDbHelper.createIndexes(db);
+        }
+    }
+
+    /*
+    * Version 5: the inventory summary. Initializing it reads every product once, but writes a
+    * single row only.
+    */
+    private static final class CreateSummary extends Migration {
+
+        CreateSummary() {
+            super(5);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            ProductDbHelper.createSummary(db);
+        }
+    }
+
+    /*
+    * Version 6: the stock ledger. Every change from now on is appended to it, SnapshotStock
+    * takes the first snapshot of the existing products.
+    */
+    private static final class CreateStockLedger extends Migration {
+
+        CreateStockLedger() {
+            super(6);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            StockLedger.createTables(db);
+            schedule(db, SNAPSHOT_STOCK);
+        }
+    }
+
+    /*
+    * Version 7: the sync columns, tombstones and sync state. Every existing product starts out
+    * dirty, so it is sent by the first sync. AssignGlobalIds gives the existing products their
+    * global IDs, the sync engine leaves products without one for a later sync.
+    */
+    private static final class AddSyncColumns extends Migration {
+
+        AddSyncColumns() {
+            super(7);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE Products ADD COLUMN global_id TEXT");
+            db.execSQL("ALTER TABLE Products ADD COLUMN version INTEGER NOT NULL DEFAULT 1");
+            db.execSQL("ALTER TABLE Products ADD COLUMN updated_at INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE Products ADD COLUMN server_version INTEGER NOT NULL "
+                    + "DEFAULT 0");
+            db.execSQL("ALTER TABLE Products ADD COLUMN dirty INTEGER NOT NULL DEFAULT 1");
+            ProductDbHelper.createSyncTables(db);
+            schedule(db, ASSIGN_GLOBAL_IDS);
+        }
+    }
+
+    /*
+    * Version 8: sync writes increment the version of a product like local changes do, so an
+    * optimistic update based on the product before the sync fails instead of overwriting it.
+    */
+    private static final class VersionSyncWrites extends Migration {
+
+        VersionSyncWrites() {
+            super(8);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + ProductDbHelper.CHANGE_TRIGGER);
+            ProductDbHelper.createChangeTrigger(db);
+        }
+    }
+
+    /*
+    * Version 9: the last stock journal segment written, so a segment sent again after its sales
+    * have been committed is not sold twice.
+    */
+    private static final class CreateJournalState extends Migration {
+
+        CreateJournalState() {
+            super(9);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            ProductDbHelper.createJournalState(db);
+        }
+    }
+
+    /*
+    * Version 10: image changes increment the version of a product and mark it dirty, so an
+    * optimistic update based on the old image no longer passes the version check.
+    */
+    private static final class VersionImageChanges extends Migration {
+
+        VersionImageChanges() {
+            super(10);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + ProductDbHelper.CHANGE_TRIGGER);
+            ProductDbHelper.createChangeTrigger(db);
+        }
+    }
+
+    /*
+    * Moves the next batch of version 1 images into ProductImageStore and removes them from the
+    * legacy table, which is dropped once it is empty. Products deleted or given a new image in
+    * the meantime keep their state. An image written before its batch is rolled back is stored
+    * again, under the same reference, by the next attempt. Like any image change, moving an
+    * image increments the version of the product.
+    */
+    private static final class MoveLegacyImages extends BackgroundMigration {
+
+        private final ProductImageStore mImageStore;
+
+        MoveLegacyImages(Context context) {
+            super(MOVE_LEGACY_IMAGES);
+            mImageStore = new ProductImageStore(context);
+        }
+
+        @Override
+        boolean migrateBatch(SQLiteDatabase db) {
+            long lastId = -1;
+            Cursor cursor = db.query(LEGACY_IMAGES_TABLE, new String[] { "_id", "image" },
+                    null, null, null, null, "_id ASC", String.valueOf(IMAGE_BATCH_SIZE));
+            try {
+                ContentValues values = new ContentValues();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    String[] selectionArgs = new String[] { String.valueOf(lastId) };
+                    byte[] image = cursor.getBlob(1);
+                    if (image == null || image.length == 0
+                            || DatabaseUtils.queryNumEntries(db, "Products",
+                                    "_id=? AND image_ref IS NULL", selectionArgs) == 0) {
+                        continue;
+                    }
+                    values.put("image_ref", mImageStore.put(image));
+                    db.update("Products", values, "_id=?", selectionArgs);
+                }
+            } catch (IOException e) {
+                // The batch is rolled back and tried again on the next start.
+                throw new IllegalStateException("Unable to move product images to the file store",
+                        e);
+            } finally {
+                cursor.close();
+            }
+
+            if (lastId == -1) {
+                db.execSQL("DROP TABLE " + LEGACY_IMAGES_TABLE);
+                return false;
+            }
+            db.delete(LEGACY_IMAGES_TABLE, "_id<=?", new String[] { String.valueOf(lastId) });
+            return true;
+        }
+    }
+
+    /*
+    * Rebuilds the search index from the Products table in a single statement. It also repairs
+    * the entries the update triggers removed for products that were not indexed yet.
+    */
+    private static final class RebuildSearchIndex extends BackgroundMigration {
+
+        RebuildSearchIndex() {
+            super(REBUILD_SEARCH_INDEX);
+        }
+
+        @Override
+        boolean migrateBatch(SQLiteDatabase db) {
+            db.execSQL("INSERT INTO products_fts(products_fts) VALUES('rebuild')");
+            return false;
+        }
+    }
+
+    /*
+    * Takes the first stock snapshot of the next batch of products created before version 6.
+    * Sales and other changes of those products made before their batch are already in the
+    * ledger, the snapshot is taken of the quantity before them.
+    */
+    private static final class SnapshotStock extends BackgroundMigration {
+
+        SnapshotStock() {
+            super(SNAPSHOT_STOCK);
+        }
+
+        @Override
+        boolean migrateBatch(SQLiteDatabase db) {
+            return StockLedger.snapshotUntracked(db, SNAPSHOT_BATCH_SIZE) == SNAPSHOT_BATCH_SIZE;
+        }
+    }
+
+    /*
+    * Gives the next batch of products created before version 7 a random global ID. Only the
+    * sync columns are written, so the products are neither changed nor marked dirty again.
+    */
+    private static final class AssignGlobalIds extends BackgroundMigration {
+
+        AssignGlobalIds() {
+            super(ASSIGN_GLOBAL_IDS);
+        }
+
+        @Override
+        boolean migrateBatch(SQLiteDatabase db) {
+            db.execSQL("UPDATE Products SET global_id = " + ProductDbHelper.RANDOM_GLOBAL_ID
+                    + ", updated_at = " + ProductDbHelper.NOW_MILLIS + " WHERE _id IN (SELECT _id"
+                    + " FROM Products WHERE global_id IS NULL LIMIT " + GLOBAL_ID_BATCH_SIZE
+                    + ")");
+            return DatabaseUtils.queryNumEntries(db, "Products", "global_id IS NULL") > 0;
+        }
+    }
+}
@@ -1,24 +1,79 @@
 package com.example.android.inventoryapp.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.os.TraceCompat;
+import android.text.TextUtils;
+import android.util.Log;
 
+import com.example.android.inventoryapp.data.ProductContract.DiagnosticsEntry;
 import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductContract.StockMovementEntry;
+import com.example.android.inventoryapp.data.ProductContract.SummaryEntry;
+import com.example.android.inventoryapp.data.ProductContract.SyncStateEntry;
+import com.example.android.inventoryapp.data.ProductContract.TombstoneEntry;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
 
 /**
  * Content Provider that manages CRUD methods in product_inventory database.
  */
 public class ProductProvider extends ContentProvider {
 
+    private static final String LOG_TAG = ProductProvider.class.getSimpleName();
+
+    // Selects a single product if it still has the version an update is based on.
+    private static final String VERSION_SELECTION =
+            ProductEntry._ID + "=? AND " + ProductEntry.VERSION + "=?";
+
     private final static int PRODUCTS = 100;
     private final static int PRODUCT_ID = 101;
+    private final static int SEARCH = 102;
+    private final static int SUMMARY = 103;
+    private final static int STOCK_MOVEMENTS = 104;
+    private final static int DIAGNOSTICS = 105;
+    private final static int EXPORT = 106;
+    private final static int PRODUCT_IMAGE = 107;
+    private final static int TOMBSTONES = 108;
+    private final static int SYNC_STATE = 109;
+
+    // Largest number of changed _IDs listed in a single change notification Uri. Larger changes
+    // are notified with the Uri of the whole product list.
+    private static final int MAX_NOTIFIED_IDS = 100;
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -27,55 +82,514 @@ public class ProductProvider extends ContentProvider {
 
         sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCT + "/#",
                 PRODUCT_ID);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCT + "/" + ProductContract.PATH_SEARCH, SEARCH);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_SUMMARY,
+                SUMMARY);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_STOCK_MOVEMENTS, STOCK_MOVEMENTS);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_DIAGNOSTICS,
+                DIAGNOSTICS);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCT + "/" + ProductContract.PATH_EXPORT, EXPORT);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCT + "/#/" + ProductContract.PATH_IMAGE, PRODUCT_IMAGE);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_TOMBSTONES,
+                TOMBSTONES);
+
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_SYNC_STATE,
+                SYNC_STATE);
     }
 
     private ProductDbHelper mDbHelper;
+    private ProductImageStore mImageStore;
+    private final ProductProviderStats mStats = new ProductProviderStats();
+    private final ProductQueryCache mQueryCache = new ProductQueryCache();
+
+    /*
+    * Every write runs in a transaction. Change notifications and the removal of images that are
+    * no longer referenced are collected per thread and published once the outermost transaction
+    * has been committed, so a batch notifies its listeners only once and a rolled back write
+    * never loses an image. The notification carries the _IDs of the changed products, so
+    * observers can refresh just those rows, and the cached query results holding them are
+    * dropped.
+    */
+    private static class PendingChanges {
+        final Set<Long> changedIds = new TreeSet<>();
+        // Whether products were inserted, which may extend the cached results of the list.
+        boolean inserted;
+        final Set<String> staleImageRefs = new HashSet<>();
+        // Products whose image was replaced or removed, their cached bitmaps are dropped.
+        final Set<Long> imageChangedIds = new HashSet<>();
+    }
+
+    private final ThreadLocal<PendingChanges> mPendingChanges = new ThreadLocal<PendingChanges>() {
+        @Override
+        protected PendingChanges initialValue() {
+            return new PendingChanges();
+        }
+    };
+
+    /*
+    * Precompiled statements of the hot writes, bound with the typed values directly instead of
+    * building the SQL from ContentValues on every call. They are only executed inside a write
+    * transaction, which lets a single thread at a time bind and run them. The bindings are cleared
+    * after every execution, so the statements do not hold on to the values of the last write.
+    */
+    private static final class WriteStatements {
+
+        // Columns of an insert that takes the precompiled statement, in binding order.
+        static final String[] INSERT_COLUMNS = {
+                ProductEntry.NAME,
+                ProductEntry.PRICE,
+                ProductEntry.QUANTITY,
+                ProductEntry.SUPPLIER_PHONE,
+                ProductEntry.IMAGE_REF,
+                ProductEntry.GLOBAL_ID,
+                ProductEntry.UPDATED_AT
+        };
+
+        final SQLiteDatabase database;
+        final SQLiteStatement insert;
+        final SQLiteStatement updatePrice;
+        final SQLiteStatement updateQuantity;
+        final SQLiteStatement sell;
+        final SQLiteStatement selectQuantity;
+        final StockLedger ledger;
+
+        WriteStatements(SQLiteDatabase database) {
+            this.database = database;
+            ledger = new StockLedger(database);
+            insert = database.compileStatement("INSERT INTO " + ProductEntry.TABLE_NAME + " ("
+                    + TextUtils.join(", ", INSERT_COLUMNS) + ") VALUES ("
+                    + TextUtils.join(", ", Collections.nCopies(INSERT_COLUMNS.length, "?")) + ")");
+            updatePrice = compileUpdate(database, ProductEntry.PRICE);
+            updateQuantity = compileUpdate(database, ProductEntry.QUANTITY);
+            // Decrements the quantity with a single conditional update, so concurrent sales can
+            // neither get lost nor push the quantity below zero.
+            sell = database.compileStatement("UPDATE " + ProductEntry.TABLE_NAME + " SET "
+                    + ProductEntry.QUANTITY + " = " + ProductEntry.QUANTITY + " - ? WHERE "
+                    + ProductEntry._ID + " = ? AND " + ProductEntry.QUANTITY + " >= ?");
+            selectQuantity = database.compileStatement("SELECT " + ProductEntry.QUANTITY
+                    + " FROM " + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + " = ?");
+        }
+
+        private static SQLiteStatement compileUpdate(SQLiteDatabase database, String column) {
+            return database.compileStatement("UPDATE " + ProductEntry.TABLE_NAME + " SET "
+                    + column + " = ? WHERE " + ProductEntry._ID + " = ?");
+        }
+
+        /*
+        * Returns the update statement of the single column the values change, or null if there
+        * is no precompiled statement for them.
+        */
+        SQLiteStatement getUpdate(ContentValues contentValues) {
+            if (contentValues.size() != 1) {
+                return null;
+            }
+            if (contentValues.containsKey(ProductEntry.PRICE)) {
+                return updatePrice;
+            }
+            if (contentValues.containsKey(ProductEntry.QUANTITY)) {
+                return updateQuantity;
+            }
+            return null;
+        }
+
+        void close() {
+            insert.close();
+            updatePrice.close();
+            updateQuantity.close();
+            sell.close();
+            selectQuantity.close();
+            ledger.close();
+        }
+
+        static boolean canInsert(ContentValues contentValues) {
+            if (contentValues.size() != INSERT_COLUMNS.length) {
+                return false;
+            }
+            for (String column : INSERT_COLUMNS) {
+                if (!contentValues.containsKey(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Compiled on the first write. Only accessed inside a write transaction.
+    private WriteStatements mWriteStatements;
 
     @Override
     public boolean onCreate() {
         mDbHelper = new ProductDbHelper(getContext());
+        mImageStore = new ProductImageStore(getContext());
+        startBackgroundWork();
         return true;
     }
 
+    /*
+    * Opens the database off the main thread, which runs a pending schema upgrade, continues the
+    * data migrations scheduled by upgrades and compacts the stock ledger. Products being migrated
+    * stay usable meanwhile. The database is opened at the default priority, the first catalog
+    * query of a cold start waits for it.
+    */
+    private void startBackgroundWork() {
+        final Context context = getContext();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TraceCompat.beginSection("ProductProvider.openDatabase");
+                try {
+                    mDbHelper.getWritableDatabase();
+                } catch (RuntimeException e) {
+                    // Left to the first query, which reports the failure to its caller.
+                    Log.e(LOG_TAG, "Unable to open the database", e);
+                    return;
+                } finally {
+                    TraceCompat.endSection();
+                }
+
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    if (ProductMigrations.runBackgroundMigrations(mDbHelper, context) > 0) {
+                        mQueryCache.clear();
+                        context.getContentResolver().notifyChange(ProductEntry.CONTENT_URI, null);
+                    }
+                } catch (RuntimeException e) {
+                    // The failed batch has been rolled back and is tried again on the next start.
+                    Log.e(LOG_TAG, "Unable to complete the background migrations", e);
+                    return;
+                }
+                try {
+                    StockLedger.compact(mDbHelper.getWritableDatabase(),
+                            System.currentTimeMillis() - StockLedger.RETENTION_MILLIS);
+                } catch (RuntimeException e) {
+                    // Compacted batches are kept, the rest is compacted on the next start.
+                    Log.e(LOG_TAG, "Unable to compact the stock ledger", e);
+                }
+            }
+        }, ProductMigrations.class.getSimpleName());
+        thread.start();
+    }
+
     @Nullable
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
                         @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        long start = mStats.start();
+        final int match = sUriMatcher.match(uri);
+        Cursor cursor = query(match, uri, projection, selection, selectionArgs, sortOrder);
+        if (start != 0) {
+            // Counting the rows fills the cursor window, so the time taken includes reading them.
+            mStats.record("query", getMatchName(match), start, cursor.getCount());
+        }
+        return cursor;
+    }
+
+    private Cursor query(int match, Uri uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder) {
+        if (match == DIAGNOSTICS) {
+            MatrixCursor cursor = mStats.toCursor();
+            if (mStats.isEnabled()) {
+                mQueryCache.addDiagnostics(cursor);
+                ProductImageCache.getInstance(getContext()).addDiagnostics(cursor);
+            }
+            return cursor;
+        }
+
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         Cursor cursor;
-        final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
-                cursor = database.query(ProductEntry.TABLE_NAME, projection, selection,
-                        selectionArgs, null, null, null);
-                break;
             case PRODUCT_ID:
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                cursor = database.query(ProductEntry.TABLE_NAME, projection,
-                        ProductEntry._ID + "=?", selectionArgs, null, null, null);
-                break;
+                return queryProducts(database, match, uri, projection, selection, selectionArgs,
+                        sortOrder);
+            case SEARCH:
+                cursor = querySearch(database, uri, projection, selection, selectionArgs,
+                        sortOrder);
+                // Search results are invalidated by any change of the product list.
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ProductEntry.CONTENT_URI);
+                return cursor;
+            case SUMMARY:
+                cursor = database.query(SummaryEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                // The summary changes with every change of the product list.
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ProductEntry.CONTENT_URI);
+                return cursor;
+            case STOCK_MOVEMENTS:
+                cursor = database.query(StockMovementEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                // Movements are appended by the writes of the products.
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ProductEntry.CONTENT_URI);
+                return cursor;
+            case TOMBSTONES:
+                // Read by the sync engine in batches of the given limit.
+                return database.query(TombstoneEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder,
+                        uri.getQueryParameter(ProductEntry.QUERY_PARAMETER_LIMIT));
+            case SYNC_STATE:
+                return database.query(SyncStateEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
             default:
                 throw new IllegalArgumentException("Cannot query unknown Uri " + uri.toString());
         }
+    }
+
+    /*
+    * Queries the product list, a page of it or a single product, answering repeated queries from
+    * the result cache. A result read from the database is cached along with what decides which
+    * writes drop it.
+    */
+    private Cursor queryProducts(SQLiteDatabase database, int match, Uri uri,
+                                 String[] projection, String selection, String[] selectionArgs,
+                                 String sortOrder) {
+        String limit = match == PRODUCTS
+                ? uri.getQueryParameter(ProductEntry.QUERY_PARAMETER_LIMIT) : null;
+        if (limit != null && sortOrder != null) {
+            throw new IllegalArgumentException("Pages are ordered by _ID, cannot sort "
+                    + uri + " by " + sortOrder);
+        }
 
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        String key = ProductQueryCache.getKey(uri.toString(), projection, selection,
+                selectionArgs, sortOrder);
+        Cursor cursor = mQueryCache.get(key);
+        if (cursor == null) {
+            long generation = mQueryCache.getGeneration();
+            boolean filtered;
+            boolean open;
+            if (match == PRODUCT_ID) {
+                cursor = database.query(ProductEntry.TABLE_NAME, projection,
+                        ProductEntry._ID + "=?",
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) },
+                        null, null, null);
+                filtered = false;
+                // A product that is not found yet may still be inserted.
+                open = cursor.getCount() == 0;
+            } else {
+                FilteredSelection filteredSelection =
+                        new FilteredSelection(uri, selection, selectionArgs);
+                filtered = filteredSelection.selection != null;
+                if (limit != null) {
+                    cursor = queryPage(database, uri, projection, filteredSelection.selection,
+                            filteredSelection.selectionArgs);
+                    // Inserted products get the largest _IDs, only a page that is not full
+                    // reaches them.
+                    open = cursor.getCount() < Integer.parseInt(limit);
+                } else {
+                    cursor = database.query(ProductEntry.TABLE_NAME, projection,
+                            filteredSelection.selection, filteredSelection.selectionArgs, null,
+                            null, sortOrder);
+                    open = true;
+                }
+            }
+            cursor = mQueryCache.put(key, generation, cursor, filtered, open);
+        }
 
+        // Pages are invalidated by any change of the product list.
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                limit != null ? ProductEntry.CONTENT_URI : uri);
         return cursor;
     }
 
+    /*
+    * Returns a single page of products keyed on _ID, so the cost of the query depends on the page
+    * size only and not on the size of the table.
+    */
+    private Cursor queryPage(SQLiteDatabase database, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs) {
+        long afterId;
+        int limit;
+        try {
+            String after = uri.getQueryParameter(ProductEntry.QUERY_PARAMETER_AFTER);
+            afterId = after == null ? 0 : Long.parseLong(after);
+            limit = Integer.parseInt(uri.getQueryParameter(ProductEntry.QUERY_PARAMETER_LIMIT));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page parameters in Uri " + uri, e);
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("Invalid page limit in Uri " + uri);
+        }
+
+        String pageSelection = ProductEntry._ID + ">?";
+        String[] pageSelectionArgs = new String[] { String.valueOf(afterId) };
+        if (selection != null) {
+            pageSelection = "(" + selection + ") AND " + pageSelection;
+            pageSelectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, pageSelectionArgs);
+        }
+
+        return database.query(ProductEntry.TABLE_NAME, projection, pageSelection,
+                pageSelectionArgs, null, null, ProductEntry._ID + " ASC", String.valueOf(limit));
+    }
+
+    /*
+    * Selection of a product query combined with the filters given as query parameters of its Uri.
+    * Each filter is a range on an indexed column.
+    */
+    static final class FilteredSelection {
+
+        final String selection;
+        final String[] selectionArgs;
+
+        FilteredSelection(Uri uri, String selection, String[] selectionArgs) {
+            List<String> filters = new ArrayList<>();
+            List<String> filterArgs = new ArrayList<>();
+            addFilter(uri, ProductEntry.QUERY_PARAMETER_MIN_PRICE, ProductEntry.PRICE + ">=?",
+                    filters, filterArgs);
+            addFilter(uri, ProductEntry.QUERY_PARAMETER_MAX_PRICE, ProductEntry.PRICE + "<=?",
+                    filters, filterArgs);
+            addFilter(uri, ProductEntry.QUERY_PARAMETER_MAX_QUANTITY,
+                    ProductEntry.QUANTITY + "<=?", filters, filterArgs);
+
+            if (filters.isEmpty()) {
+                this.selection = selection;
+                this.selectionArgs = selectionArgs;
+                return;
+            }
+            String filterSelection = TextUtils.join(" AND ", filters);
+            this.selection = selection == null ? filterSelection
+                    : "(" + selection + ") AND " + filterSelection;
+            this.selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    filterArgs.toArray(new String[filterArgs.size()]));
+        }
+
+        private static void addFilter(Uri uri, String parameter, String filter,
+                                      List<String> filters, List<String> filterArgs) {
+            String value = uri.getQueryParameter(parameter);
+            if (value == null) {
+                return;
+            }
+            try {
+                Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + parameter + " in Uri " + uri, e);
+            }
+            // Bound as text, SQLite converts it to the numeric affinity of the column.
+            filters.add(filter);
+            filterArgs.add(value);
+        }
+    }
+
+    /*
+    * Searches the FTS index for products matching every word of the query as a prefix. The
+    * index lookup returns the matching _IDs, so the Products table is only read for the results.
+    */
+    private Cursor querySearch(SQLiteDatabase database, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder) {
+        String limit = uri.getQueryParameter(ProductEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                if (Integer.parseInt(limit) < 1) {
+                    throw new IllegalArgumentException("Invalid search limit in Uri " + uri);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid search limit in Uri " + uri, e);
+            }
+        }
+
+        List<String> words = new ArrayList<>();
+        String query = uri.getQueryParameter(ProductEntry.QUERY_PARAMETER_QUERY);
+        if (query != null) {
+            // The simple tokenizer of the index splits on everything but letters and digits.
+            for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+                if (!word.isEmpty()) {
+                    words.add(word);
+                }
+            }
+        }
+        if (words.isEmpty()) {
+            // Nothing to search for, nothing matches.
+            return database.query(ProductEntry.TABLE_NAME, projection, "0", null,
+                    null, null, null);
+        }
+
+        // Quoted prefix terms, so words like OR or NEAR are not taken as operators.
+        StringBuilder matchQuery = new StringBuilder();
+        StringBuilder nameMatchQuery = new StringBuilder();
+        for (String word : words) {
+            matchQuery.append(" \"").append(word).append("*\"");
+            nameMatchQuery.append(' ').append(ProductEntry.NAME).append(":\"").append(word)
+                    .append("*\"");
+        }
+
+        String matchingIds = ProductEntry._ID + " IN (SELECT docid FROM "
+                + ProductEntry.SEARCH_TABLE_NAME + " WHERE " + ProductEntry.SEARCH_TABLE_NAME
+                + " MATCH ?)";
+        String searchSelection = matchingIds;
+        if (selection != null) {
+            searchSelection = matchingIds + " AND (" + selection + ")";
+        }
+        // The placeholders of the selection are bound before the one of the sort order.
+        String[] searchSelectionArgs = DatabaseUtils.appendSelectionArgs(
+                new String[] { matchQuery.toString().trim() }, selectionArgs);
+        searchSelectionArgs = DatabaseUtils.appendSelectionArgs(searchSelectionArgs,
+                new String[] { nameMatchQuery.toString().trim() });
+
+        // The same lookup bound to the words restricted to the name column ranks products whose
+        // name matches before those found by their supplier phone only.
+        String orderBy = matchingIds + " DESC, " + ProductEntry.SORT_BY_NAME;
+        if (sortOrder != null) {
+            // A sort order of the caller replaces the ranking.
+            orderBy = sortOrder;
+            searchSelectionArgs = Arrays.copyOf(searchSelectionArgs,
+                    searchSelectionArgs.length - 1);
+        }
+        return database.query(ProductEntry.TABLE_NAME, projection, searchSelection,
+                searchSelectionArgs, null, null, orderBy, limit);
+    }
+
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues contentValues) {
+        long start = mStats.start();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
-                return insertProduct(uri, contentValues);
+                Uri newUri = insertProduct(uri, contentValues);
+                mStats.record("insert", getMatchName(match), start, newUri == null ? 0 : 1);
+                return newUri;
+            case SYNC_STATE:
+                putSyncState(contentValues);
+                mStats.record("insert", getMatchName(match), start, 1);
+                return uri;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
 
+    /*
+    * Sets a named value of the sync state, replacing its previous value.
+    */
+    private void putSyncState(ContentValues contentValues) {
+        if (contentValues.getAsString(SyncStateEntry.NAME) == null) {
+            throw new IllegalArgumentException("No name of the sync state value.");
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            database.insertWithOnConflict(SyncStateEntry.TABLE_NAME, null, contentValues,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
+        }
+    }
+
     private Uri insertProduct(Uri uri, ContentValues contentValues) {
         String name = contentValues.getAsString(ProductEntry.NAME);
         if (name == null) {
@@ -97,27 +611,117 @@ public class ProductProvider extends ContentProvider {
             throw new IllegalArgumentException("No supplier added to product.");
         }
 
-        byte[] image = contentValues.getAsByteArray(ProductEntry.IMAGE);
-        if (image.length == 0) {
-            throw new IllegalArgumentException("No image added to product.");
+        // A product may come without an image, like the ones created before images were
+        // stored, but an image given must not be empty.
+        boolean hasImage = contentValues.containsKey(ProductEntry.IMAGE);
+        if (hasImage) {
+            byte[] image = contentValues.getAsByteArray(ProductEntry.IMAGE);
+            if (image == null || image.length == 0) {
+                throw new IllegalArgumentException("No image added to product.");
+            }
+        }
+
+        // Work on a copy, the provider adds the sync columns and replaces the image bytes of the
+        // caller's values by a reference. Products inserted by a sync bring their own.
+        contentValues = new ContentValues(contentValues);
+        if (!contentValues.containsKey(ProductEntry.GLOBAL_ID)) {
+            contentValues.put(ProductEntry.GLOBAL_ID, UUID.randomUUID().toString());
+        }
+        if (!contentValues.containsKey(ProductEntry.UPDATED_AT)) {
+            contentValues.put(ProductEntry.UPDATED_AT, System.currentTimeMillis());
         }
 
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        long newProductID = database.insert(ProductEntry.TABLE_NAME, null, contentValues);
+        long newProductID = -1;
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            if (hasImage && !storeImage(contentValues)) {
+                newProductID = -1;
+            } else if (WriteStatements.canInsert(contentValues)) {
+                newProductID = insert(getWriteStatements(database).insert, contentValues);
+            } else {
+                newProductID = database.insert(ProductEntry.TABLE_NAME, null, contentValues);
+            }
+            if (newProductID != -1) {
+                int initialQuantity = quantity == null ? 0 : quantity;
+                getWriteStatements(database).ledger.append(newProductID, initialQuantity,
+                        initialQuantity, StockMovementEntry.REASON_CREATED);
+                mPendingChanges.get().changedIds.add(newProductID);
+                mPendingChanges.get().inserted = true;
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
+        }
 
         if (newProductID == -1) {
             return null;
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
-
         return ContentUris.withAppendedId(uri, newProductID);
     }
 
+    /*
+    * Inserts all products in a single transaction and notifies the listeners once.
+    */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match != PRODUCTS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        long start = mStats.start();
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int rowsInserted = 0;
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            for (ContentValues contentValues : values) {
+                if (insertProduct(uri, contentValues) != null) {
+                    rowsInserted++;
+                }
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
+        }
+        mStats.record("bulk_insert", getMatchName(match), start, rowsInserted);
+        return rowsInserted;
+    }
+
+    /*
+    * Applies all operations in a single transaction, either all of them take effect or none.
+    * The listeners are notified once after the transaction has been committed.
+    */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        ContentProviderResult[] results;
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
+        }
+        return results;
+    }
+
 
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        long start = mStats.start();
         int rowsAffected;
 
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
@@ -125,20 +729,59 @@ public class ProductProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
-                rowsAffected = database.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case PRODUCT_ID:
+                selection = ProductEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsAffected = database.delete(ProductEntry.TABLE_NAME, ProductEntry._ID + "=?", selectionArgs);
                 break;
+            case TOMBSTONES:
+                rowsAffected = deleteTombstones(database, selection, selectionArgs);
+                mStats.record("delete", getMatchName(match), start, rowsAffected);
+                return rowsAffected;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
 
-        if (rowsAffected != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            Set<String> imageRefs = queryImageRefs(database, selection, selectionArgs);
+            Map<Long, Integer> quantities = queryQuantities(database, selection, selectionArgs);
+            Set<Long> ids = quantities.keySet();
+            rowsAffected = database.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
+            if (rowsAffected != 0) {
+                StockLedger ledger = getWriteStatements(database).ledger;
+                for (Map.Entry<Long, Integer> entry : quantities.entrySet()) {
+                    ledger.append(entry.getKey(), -entry.getValue(), 0,
+                            StockMovementEntry.REASON_DELETED);
+                }
+                PendingChanges pendingChanges = mPendingChanges.get();
+                pendingChanges.staleImageRefs.addAll(imageRefs);
+                pendingChanges.changedIds.addAll(ids);
+                pendingChanges.imageChangedIds.addAll(ids);
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
         }
 
+        mStats.record("delete", getMatchName(match), start, rowsAffected);
+        return rowsAffected;
+    }
+
+    private int deleteTombstones(SQLiteDatabase database, String selection,
+                                 String[] selectionArgs) {
+        int rowsAffected;
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            rowsAffected = database.delete(TombstoneEntry.TABLE_NAME, selection, selectionArgs);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
+        }
         return rowsAffected;
     }
 
@@ -146,21 +789,47 @@ public class ProductProvider extends ContentProvider {
     public int update(@NonNull Uri uri, @Nullable ContentValues contentValues, @Nullable String selection,
                       @Nullable String[] selectionArgs) {
 
+        long start = mStats.start();
+        int rowsAffected;
         int match = sUriMatcher.match(uri);
         switch (match) {
             // Update the full list of products based on the specified selection
             case PRODUCTS:
-                return updateProduct(uri, contentValues, selection, selectionArgs);
+                rowsAffected = updateProduct(uri, contentValues, selection, selectionArgs);
+                break;
             // Update certain rows of the table based on selected IDs (or commonly single ID).
             case PRODUCT_ID:
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateProduct(uri, contentValues, ProductEntry._ID + "=?", selectionArgs);
+                long id = ContentUris.parseId(uri);
+                String expectedVersion =
+                        uri.getQueryParameter(ProductEntry.QUERY_PARAMETER_EXPECTED_VERSION);
+                if (expectedVersion != null) {
+                    // The product is not known to match, which rules out the single product
+                    // statements.
+                    rowsAffected = updateProduct(uri, contentValues, VERSION_SELECTION,
+                            new String[] { String.valueOf(id), expectedVersion });
+                } else {
+                    selectionArgs = new String[] { String.valueOf(id) };
+                    rowsAffected = updateProduct(uri, contentValues, ProductEntry._ID + "=?",
+                            selectionArgs, id);
+                }
+                break;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
+        mStats.record("update", getMatchName(match), start, rowsAffected);
+        return rowsAffected;
     }
 
     private int updateProduct(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        return updateProduct(uri, contentValues, selection, selectionArgs, -1);
+    }
+
+    /*
+    * Updates the products matching the selection. The id is the _ID of the single product the
+    * selection matches, -1 for any other selection.
+    */
+    private int updateProduct(Uri uri, ContentValues contentValues, String selection,
+                              String[] selectionArgs, long id) {
         if (contentValues.size() == 0) {
             return 0;
         }
@@ -179,8 +848,9 @@ public class ProductProvider extends ContentProvider {
             }
         }
 
+        Integer quantity = null;
         if (contentValues.containsKey(ProductEntry.QUANTITY)) {
-            Integer quantity = contentValues.getAsInteger(ProductEntry.QUANTITY);
+            quantity = contentValues.getAsInteger(ProductEntry.QUANTITY);
             if (quantity != null && quantity < 0) {
                 throw new IllegalArgumentException("No valid quantity added to product.");
             }
@@ -193,29 +863,538 @@ public class ProductProvider extends ContentProvider {
             }
         }
 
-        if (contentValues.containsKey(ProductEntry.IMAGE)) {
+        boolean imageChanged = contentValues.containsKey(ProductEntry.IMAGE);
+        if (imageChanged) {
             byte[] image = contentValues.getAsByteArray(ProductEntry.IMAGE);
-            if (image.length == 0) {
+            if (image == null || image.length == 0) {
                 throw new IllegalArgumentException("No image added to product.");
             }
+            // Work on a copy, the image bytes of the caller's values are replaced by a reference.
+            contentValues = new ContentValues(contentValues);
         }
 
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        int rowsAffected = database.update(
-                ProductEntry.TABLE_NAME,
-                contentValues,
-                selection,
-                selectionArgs
-        );
-
-        if (rowsAffected != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        int rowsAffected = 0;
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            // The quantities before the update are needed for the stock ledger.
+            Map<Long, Integer> oldQuantities = quantity == null ? null
+                    : queryQuantities(database, selection, selectionArgs);
+            // The _ID of a single product is known, the others are looked up before the update.
+            Set<Long> ids;
+            if (oldQuantities != null) {
+                ids = oldQuantities.keySet();
+            } else {
+                ids = id == -1 ? queryIds(database, selection, selectionArgs)
+                        : Collections.singleton(id);
+            }
+            SQLiteStatement statement = id == -1 || imageChanged ? null
+                    : getWriteStatements(database).getUpdate(contentValues);
+            if (statement != null) {
+                // Price and quantity changes of a single product skip building the SQL.
+                DatabaseUtils.bindObjectToProgram(statement, 1,
+                        contentValues.valueSet().iterator().next().getValue());
+                statement.bindLong(2, id);
+                try {
+                    rowsAffected = statement.executeUpdateDelete();
+                } finally {
+                    statement.clearBindings();
+                }
+            } else if (!imageChanged) {
+                rowsAffected = database.update(ProductEntry.TABLE_NAME, contentValues, selection,
+                        selectionArgs);
+            } else if (storeImage(contentValues)) {
+                Set<String> imageRefs = queryImageRefs(database, selection, selectionArgs);
+                rowsAffected = database.update(ProductEntry.TABLE_NAME, contentValues, selection,
+                        selectionArgs);
+                mPendingChanges.get().staleImageRefs.addAll(imageRefs);
+                if (rowsAffected == 0) {
+                    // An update of an outdated version stored the image nobody refers to.
+                    mPendingChanges.get().staleImageRefs.add(
+                            contentValues.getAsString(ProductEntry.IMAGE_REF));
+                }
+                mPendingChanges.get().imageChangedIds.addAll(ids);
+            }
+            if (rowsAffected != 0) {
+                if (oldQuantities != null) {
+                    appendQuantityChanges(database, uri, oldQuantities, quantity);
+                }
+                mPendingChanges.get().changedIds.addAll(ids);
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
         }
 
         return rowsAffected;
     }
 
+    /*
+    * Updates a product with changes made to the version given in the extras, see
+    * ProductEntry#METHOD_UPDATE. If the product has changed since, the changed columns are
+    * compared with their base values and the changes are applied to the current version. The
+    * comparison and the update run in the same transaction.
+    */
+    private Bundle updateProduct(long id, Bundle extras) {
+        if (extras == null || !extras.containsKey(ProductEntry.EXTRA_VERSION)) {
+            throw new IllegalArgumentException("No version the update is based on.");
+        }
+        ContentValues contentValues = extras.getParcelable(ProductEntry.EXTRA_VALUES);
+        if (contentValues == null || contentValues.size() == 0) {
+            throw new IllegalArgumentException("No values to update.");
+        }
+        ContentValues baseValues = extras.getParcelable(ProductEntry.EXTRA_BASE_VALUES);
+        if (baseValues == null) {
+            baseValues = new ContentValues();
+        }
+        long version = extras.getLong(ProductEntry.EXTRA_VERSION);
+
+        Uri uri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+        String[] versionArgs = { String.valueOf(id), String.valueOf(version) };
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        Bundle result = new Bundle();
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            if (updateProduct(uri, contentValues, VERSION_SELECTION, versionArgs) == 1) {
+                result.putInt(ProductEntry.EXTRA_RESULT, ProductEntry.UPDATE_RESULT_UPDATED);
+            } else {
+                mergeProduct(database, uri, contentValues, baseValues, result);
+            }
+            if (result.getInt(ProductEntry.EXTRA_RESULT) != ProductEntry.UPDATE_RESULT_NOT_FOUND) {
+                result.putLong(ProductEntry.EXTRA_VERSION, DatabaseUtils.longForQuery(database,
+                        "SELECT " + ProductEntry.VERSION + " FROM " + ProductEntry.TABLE_NAME
+                                + " WHERE " + ProductEntry._ID + "=?",
+                        new String[] { String.valueOf(id) }));
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
+        }
+        return result;
+    }
+
+    /*
+    * Applies the changes to the current version of a product that changed after they were
+    * based on it, unless a changed column now has neither its base value nor the changed one.
+    * Puts the result of the update into the result bundle. Must be called inside a transaction.
+    */
+    private void mergeProduct(SQLiteDatabase database, Uri uri, ContentValues contentValues,
+                              ContentValues baseValues, Bundle result) {
+        List<String> columns = new ArrayList<>();
+        columns.add(ProductEntry.VERSION);
+        for (String column : contentValues.keySet()) {
+            if (baseValues.containsKey(column)) {
+                columns.add(column);
+            }
+        }
+
+        long currentVersion;
+        ContentValues conflictingValues = new ContentValues();
+        Cursor cursor = database.query(ProductEntry.TABLE_NAME,
+                columns.toArray(new String[columns.size()]), ProductEntry._ID + "=?",
+                new String[] { String.valueOf(ContentUris.parseId(uri)) }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                result.putInt(ProductEntry.EXTRA_RESULT, ProductEntry.UPDATE_RESULT_NOT_FOUND);
+                return;
+            }
+            currentVersion = cursor.getLong(0);
+            for (int i = 1; i < columns.size(); i++) {
+                String column = columns.get(i);
+                String current = cursor.getString(i);
+                if (!TextUtils.equals(current, baseValues.getAsString(column))
+                        && !TextUtils.equals(current, contentValues.getAsString(column))) {
+                    conflictingValues.put(column, current);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (conflictingValues.size() != 0) {
+            result.putInt(ProductEntry.EXTRA_RESULT, ProductEntry.UPDATE_RESULT_CONFLICT);
+            result.putParcelable(ProductEntry.EXTRA_BASE_VALUES, conflictingValues);
+            return;
+        }
+        // Still conditional, the version read above is the one the merge is based on.
+        updateProduct(uri, contentValues, VERSION_SELECTION, new String[] {
+                String.valueOf(ContentUris.parseId(uri)), String.valueOf(currentVersion) });
+        result.putInt(ProductEntry.EXTRA_RESULT, ProductEntry.UPDATE_RESULT_MERGED);
+    }
+
+    /*
+    * Appends the change of every updated product to the stock ledger, with the reason given by
+    * the Uri of the update. Products whose quantity did not change are left out.
+    */
+    private void appendQuantityChanges(SQLiteDatabase database, Uri uri,
+                                       Map<Long, Integer> oldQuantities, int quantity) {
+        String reason = uri.getQueryParameter(ProductEntry.QUERY_PARAMETER_REASON);
+        if (reason == null) {
+            reason = StockMovementEntry.REASON_ADJUSTMENT;
+        }
+        StockLedger ledger = getWriteStatements(database).ledger;
+        for (Map.Entry<Long, Integer> entry : oldQuantities.entrySet()) {
+            if (entry.getValue() != quantity) {
+                ledger.append(entry.getKey(), quantity - entry.getValue(), quantity, reason);
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        long start = mStats.start();
+        Bundle result = callMethod(method, arg, extras);
+        mStats.record("call", method, start, 0);
+        return result;
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        switch (method) {
+            case ProductEntry.METHOD_SELL:
+                int amount = extras == null ? 1 : extras.getInt(ProductEntry.EXTRA_AMOUNT, 1);
+                return sellProduct(parseId(arg), amount);
+            case ProductEntry.METHOD_SELL_ALL:
+                if (extras == null) {
+                    throw new IllegalArgumentException("No products to sell.");
+                }
+                return sellProducts(extras.getLongArray(ProductEntry.EXTRA_IDS),
+                        extras.getIntArray(ProductEntry.EXTRA_AMOUNTS),
+                        extras.getLongArray(ProductEntry.EXTRA_JOURNAL_SEGMENTS));
+            case ProductEntry.METHOD_UPDATE:
+                return updateProduct(parseId(arg), extras);
+            case ProductEntry.METHOD_QUANTITY_AS_OF:
+                if (extras == null || !extras.containsKey(ProductEntry.EXTRA_TIMESTAMP)) {
+                    throw new IllegalArgumentException("No timestamp to look up.");
+                }
+                return getQuantityAsOf(parseId(arg),
+                        extras.getLong(ProductEntry.EXTRA_TIMESTAMP));
+            case DiagnosticsEntry.METHOD_SET_DIAGNOSTICS_ENABLED:
+                mStats.setEnabled(extras != null
+                        && extras.getBoolean(DiagnosticsEntry.EXTRA_ENABLED));
+                return null;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    private static long parseId(String arg) {
+        try {
+            return Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid product ID " + arg, e);
+        }
+    }
+
+    private Bundle getQuantityAsOf(long id, long timestamp) {
+        Integer quantity = StockLedger.getQuantityAsOf(mDbHelper.getReadableDatabase(), id,
+                timestamp);
+        if (quantity == null) {
+            return null;
+        }
+        Bundle result = new Bundle();
+        result.putInt(ProductEntry.EXTRA_QUANTITY, quantity);
+        return result;
+    }
+
+    private Bundle sellProduct(long id, int amount) {
+        if (amount < 1) {
+            throw new IllegalArgumentException("No valid amount to sell.");
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int quantity;
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            quantity = sell(database, id, amount);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
+        }
+
+        if (quantity == -1) {
+            return null;
+        }
+        Bundle result = new Bundle();
+        result.putInt(ProductEntry.EXTRA_QUANTITY, quantity);
+        return result;
+    }
+
+    /*
+    * Sells all products in a single transaction and notifies the listeners once.
+    */
+    /*
+    * Sells the products in a single transaction. The sales of journal segments written before
+    * are skipped, the last segment written is recorded in the same transaction.
+    */
+    private Bundle sellProducts(long[] ids, int[] amounts, long[] segments) {
+        if (ids == null || amounts == null || ids.length != amounts.length) {
+            throw new IllegalArgumentException("No valid products to sell.");
+        }
+        if (segments != null && segments.length != ids.length) {
+            throw new IllegalArgumentException("No valid journal segments.");
+        }
+        for (int amount : amounts) {
+            if (amount < 1) {
+                throw new IllegalArgumentException("No valid amount to sell.");
+            }
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int[] quantities = new int[ids.length];
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            long lastSegment = segments == null ? 0 : DatabaseUtils.longForQuery(database,
+                    "SELECT " + ProductDbHelper.LAST_SEGMENT + " FROM "
+                            + ProductDbHelper.JOURNAL_STATE_TABLE, null);
+            long newLastSegment = lastSegment;
+            for (int i = 0; i < ids.length; i++) {
+                if (segments != null && segments[i] <= lastSegment) {
+                    quantities[i] = -1;
+                    continue;
+                }
+                quantities[i] = sell(database, ids[i], amounts[i]);
+                if (segments != null) {
+                    newLastSegment = Math.max(newLastSegment, segments[i]);
+                }
+            }
+            if (newLastSegment != lastSegment) {
+                ContentValues values = new ContentValues();
+                values.put(ProductDbHelper.LAST_SEGMENT, newLastSegment);
+                database.update(ProductDbHelper.JOURNAL_STATE_TABLE, values, null, null);
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWrite(database, successful);
+        }
+
+        Bundle result = new Bundle();
+        result.putIntArray(ProductEntry.EXTRA_QUANTITIES, quantities);
+        return result;
+    }
+
+    /*
+    * Decrements the quantity with the conditional update of WriteStatements. Must be called
+    * inside a transaction. Returns the new quantity, or -1 if the product does not exist or has
+    * not enough on stock.
+    */
+    private int sell(SQLiteDatabase database, long id, int amount) {
+        WriteStatements statements = getWriteStatements(database);
+        statements.sell.bindLong(1, amount);
+        statements.sell.bindLong(2, id);
+        statements.sell.bindLong(3, amount);
+        int rowsAffected;
+        try {
+            rowsAffected = statements.sell.executeUpdateDelete();
+        } finally {
+            statements.sell.clearBindings();
+        }
+        if (rowsAffected != 1) {
+            return -1;
+        }
+
+        mPendingChanges.get().changedIds.add(id);
+        statements.selectQuantity.bindLong(1, id);
+        int quantity;
+        try {
+            quantity = (int) statements.selectQuantity.simpleQueryForLong();
+        } finally {
+            statements.selectQuantity.clearBindings();
+        }
+        statements.ledger.append(id, -amount, quantity, StockMovementEntry.REASON_SALE);
+        return quantity;
+    }
+
+    /*
+    * Returns the precompiled statements of the database, compiling them on first use. The
+    * statements of a database that has been replaced are closed. Must be called inside a
+    * transaction.
+    */
+    private WriteStatements getWriteStatements(SQLiteDatabase database) {
+        if (mWriteStatements == null || mWriteStatements.database != database) {
+            if (mWriteStatements != null) {
+                mWriteStatements.close();
+            }
+            mWriteStatements = new WriteStatements(database);
+        }
+        return mWriteStatements;
+    }
+
+    /*
+    * Inserts the values of WriteStatements.INSERT_COLUMNS with the precompiled statement.
+    * Returns the _ID of the new product, or -1 like SQLiteDatabase.insert if it was rejected.
+    */
+    private static long insert(SQLiteStatement statement, ContentValues contentValues) {
+        for (int i = 0; i < WriteStatements.INSERT_COLUMNS.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1,
+                    contentValues.get(WriteStatements.INSERT_COLUMNS[i]));
+        }
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Unable to insert product", e);
+            return -1;
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    /*
+    * Ends the transaction of a write. Once the outermost transaction of the thread has ended, the
+    * collected changes are published if it was committed and dropped if it was rolled back.
+    */
+    private void endWrite(SQLiteDatabase database, boolean successful) {
+        database.endTransaction();
+        if (database.inTransaction()) {
+            return;
+        }
+
+        PendingChanges pendingChanges = mPendingChanges.get();
+        mPendingChanges.remove();
+        if (!successful) {
+            return;
+        }
+
+        if (!pendingChanges.staleImageRefs.isEmpty()) {
+            // Pruning runs in a transaction of its own, which keeps concurrent writes from
+            // referencing an image between its reference count check and its removal.
+            database.beginTransaction();
+            try {
+                pruneImages(database, pendingChanges.staleImageRefs);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        if (!pendingChanges.imageChangedIds.isEmpty()) {
+            ProductImageCache.getInstance(getContext())
+                    .invalidate(pendingChanges.imageChangedIds);
+        }
+
+        Set<Long> changedIds = pendingChanges.changedIds;
+        if (changedIds.isEmpty()) {
+            return;
+        }
+        // Dropped before notifying, so observers querying again read the change.
+        mQueryCache.invalidate(changedIds, pendingChanges.inserted);
+
+        Uri notifyUri;
+        if (changedIds.size() == 1) {
+            notifyUri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI,
+                    changedIds.iterator().next());
+            mStats.recordNotification("item");
+        } else if (changedIds.size() <= MAX_NOTIFIED_IDS) {
+            notifyUri = ProductEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(ProductEntry.QUERY_PARAMETER_CHANGED_IDS,
+                            TextUtils.join(",", changedIds))
+                    .build();
+            mStats.recordNotification("ids");
+        } else {
+            notifyUri = ProductEntry.CONTENT_URI;
+            mStats.recordNotification("list");
+        }
+        getContext().getContentResolver().notifyChange(notifyUri, null);
+    }
+
+    /*
+    * Collects the quantities of the rows matching the selection by _ID.
+    */
+    private Map<Long, Integer> queryQuantities(SQLiteDatabase database, String selection,
+                                               String[] selectionArgs) {
+        Map<Long, Integer> quantities = new HashMap<>();
+        Cursor cursor = database.query(ProductEntry.TABLE_NAME,
+                new String[] { ProductEntry._ID, ProductEntry.QUANTITY }, selection,
+                selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                quantities.put(cursor.getLong(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return quantities;
+    }
+
+    /*
+    * Collects the _IDs of the rows matching the selection.
+    */
+    private Set<Long> queryIds(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Set<Long> ids = new HashSet<>();
+        Cursor cursor = database.query(ProductEntry.TABLE_NAME, new String[] { ProductEntry._ID },
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /*
+    * Replaces the raw image bytes of the values with the reference of the stored image.
+    * Returns false if the image could not be written.
+    */
+    private boolean storeImage(ContentValues contentValues) {
+        byte[] image = contentValues.getAsByteArray(ProductEntry.IMAGE);
+        contentValues.remove(ProductEntry.IMAGE);
+        try {
+            contentValues.put(ProductEntry.IMAGE_REF, mImageStore.put(image));
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to store product image", e);
+            return false;
+        }
+    }
+
+    /*
+    * Collects the image references of the rows matching the selection.
+    */
+    private Set<String> queryImageRefs(SQLiteDatabase database, String selection,
+                                       String[] selectionArgs) {
+        Set<String> imageRefs = new HashSet<>();
+        Cursor cursor = database.query(true, ProductEntry.TABLE_NAME,
+                new String[] { ProductEntry.IMAGE_REF }, selection, selectionArgs,
+                null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) {
+                    imageRefs.add(cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return imageRefs;
+    }
+
+    /*
+    * Deletes the stored images that are no longer referenced by any product.
+    */
+    private void pruneImages(SQLiteDatabase database, Set<String> imageRefs) {
+        for (String imageRef : imageRefs) {
+            long references = DatabaseUtils.queryNumEntries(database, ProductEntry.TABLE_NAME,
+                    ProductEntry.IMAGE_REF + "=?", new String[] { imageRef });
+            if (references == 0) {
+                mImageStore.delete(imageRef);
+            }
+        }
+    }
+
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
@@ -225,9 +1404,162 @@ public class ProductProvider extends ContentProvider {
                 return ProductEntry.CONTENT_LIST_TYPE;
             case PRODUCT_ID:
                 return ProductEntry.CONTENT_ITEM_TYPE;
+            case SEARCH:
+                return ProductEntry.CONTENT_LIST_TYPE;
+            case SUMMARY:
+                return SummaryEntry.CONTENT_ITEM_TYPE;
+            case STOCK_MOVEMENTS:
+                return StockMovementEntry.CONTENT_LIST_TYPE;
+            case DIAGNOSTICS:
+                return null;
+            case EXPORT:
+                return ProductEntry.CSV_MIME_TYPE;
+            case PRODUCT_IMAGE:
+                return ProductEntry.IMAGE_MIME_TYPE;
+            case TOMBSTONES:
+                return TombstoneEntry.CONTENT_LIST_TYPE;
+            case SYNC_STATE:
+                return SyncStateEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
+
+    /*
+    * Opens the CSV export of the catalog or the image of a product, both read only.
+    */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        int match = sUriMatcher.match(uri);
+        if (match != EXPORT && match != PRODUCT_IMAGE) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Cannot open " + uri + " in mode " + mode);
+        }
+        if (match == PRODUCT_IMAGE) {
+            return openImage(uri);
+        }
+
+        // The rows are written into a pipe by a background thread while the reader consumes
+        // them, so only a cursor window of rows is held in memory.
+        Cursor cursor = mDbHelper.getReadableDatabase().query(ProductEntry.TABLE_NAME,
+                ProductEntry.CSV_COLUMNS, null, null, null, null, ProductEntry._ID + " ASC");
+        return openPipeHelper(uri, ProductEntry.CSV_MIME_TYPE, null, cursor,
+                new PipeDataWriter<Cursor>() {
+                    @Override
+                    public void writeDataToPipe(@NonNull ParcelFileDescriptor output,
+                                                @NonNull Uri uri, @NonNull String mimeType,
+                                                @Nullable Bundle opts, @Nullable Cursor cursor) {
+                        writeCsv(output, cursor);
+                    }
+                });
+    }
+
+    /*
+    * Opens the stored image file of the product, which the reader streams from directly. A file
+    * pruned while it is open stays readable until it is closed.
+    */
+    private ParcelFileDescriptor openImage(Uri uri) throws FileNotFoundException {
+        // The Uri is the item Uri of the product followed by the image path segment.
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        String imageRef = null;
+        Cursor cursor = mDbHelper.getReadableDatabase().query(ProductEntry.TABLE_NAME,
+                new String[] { ProductEntry.IMAGE_REF }, ProductEntry._ID + "=?",
+                new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                imageRef = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (imageRef == null) {
+            throw new FileNotFoundException("No image for " + uri);
+        }
+        return ParcelFileDescriptor.open(mImageStore.getFile(imageRef),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /*
+    * Runs on the thread of the pipe. A reader closing the pipe early ends the export.
+    */
+    private static void writeCsv(ParcelFileDescriptor output, Cursor cursor) {
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output), "UTF-8"));
+            try {
+                ProductCsv.writeRecord(writer, ProductEntry.CSV_COLUMNS);
+                String[] fields = new String[ProductEntry.CSV_COLUMNS.length];
+                while (cursor.moveToNext()) {
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = cursor.getString(i);
+                    }
+                    ProductCsv.writeRecord(writer, fields);
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "CSV export ended early", e);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+    * Prints the diagnostics, adb shell dumpsys activity provider ProductProvider [enable|disable|
+    * reset] changes their collection first.
+    */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0) {
+            switch (args[0]) {
+                case "enable":
+                    mStats.setEnabled(true);
+                    break;
+                case "disable":
+                    mStats.setEnabled(false);
+                    break;
+                case "reset":
+                    mStats.reset();
+                    mQueryCache.resetCounters();
+                    ProductImageCache.getInstance(getContext()).resetCounters();
+                    break;
+            }
+        }
+        mStats.dump(writer);
+        writer.println(mQueryCache);
+        writer.println(ProductImageCache.getInstance(getContext()));
+    }
+
+    private static String getMatchName(int match) {
+        switch (match) {
+            case PRODUCTS:
+                return "products";
+            case PRODUCT_ID:
+                return "product_id";
+            case SEARCH:
+                return "search";
+            case SUMMARY:
+                return "summary";
+            case STOCK_MOVEMENTS:
+                return "stock_movements";
+            case DIAGNOSTICS:
+                return "diagnostics";
+            case EXPORT:
+                return "export";
+            case PRODUCT_IMAGE:
+                return "product_image";
+            case TOMBSTONES:
+                return "tombstones";
+            case SYNC_STATE:
+                return "sync_state";
+            default:
+                return "unknown";
+        }
+    }
 }
 
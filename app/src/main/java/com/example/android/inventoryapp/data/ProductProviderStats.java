@@ -0,0 +1,214 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.text.TextUtils;
+
+import com.example.android.inventoryapp.data.ProductContract.DiagnosticsEntry;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and row counts of the calls of ProductProvider, per operation and Uri match.
+ * While collection is turned off, recording costs a single volatile read per call. Counters are
+ * updated without locks, so a snapshot taken during concurrent calls may be off by the calls in
+ * flight.
+ */
+final class ProductProviderStats {
+
+    // Bucket i counts the calls faster than 2^(i + FIRST_BUCKET_SHIFT) microseconds, the last
+    // bucket all slower ones: 64 us up to about 4 s.
+    static final int BUCKET_COUNT = 18;
+    private static final int FIRST_BUCKET_SHIFT = 6;
+
+    static final String[] COLUMNS = {
+            DiagnosticsEntry.OPERATION,
+            DiagnosticsEntry.URI_MATCH,
+            DiagnosticsEntry.COUNT,
+            DiagnosticsEntry.TOTAL_MICROS,
+            DiagnosticsEntry.P50_MICROS,
+            DiagnosticsEntry.P95_MICROS,
+            DiagnosticsEntry.P99_MICROS,
+            DiagnosticsEntry.ROWS,
+            DiagnosticsEntry.MAX_ROWS,
+            DiagnosticsEntry.HISTOGRAM
+    };
+
+    private static final class Entry {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong maxRows = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    }
+
+    private volatile boolean mEnabled;
+    private final ConcurrentMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Turns the collection on or off. Turning it on drops the statistics collected before.
+     */
+    void setEnabled(boolean enabled) {
+        if (enabled && !mEnabled) {
+            mEntries.clear();
+        }
+        mEnabled = enabled;
+    }
+
+    void reset() {
+        mEntries.clear();
+    }
+
+    /**
+     * Returns the start time of a call to pass to {@link #record}, or 0 while the collection is
+     * turned off.
+     */
+    long start() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a call that started at the time returned by {@link #start}. Calls started while the
+     * collection was turned off are ignored.
+     */
+    void record(String operation, String uriMatch, long start, long rows) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        Entry entry = getEntry(operation, uriMatch);
+        entry.count.incrementAndGet();
+        entry.totalNanos.addAndGet(nanos);
+        entry.buckets.incrementAndGet(getBucket(nanos / 1000));
+        entry.rows.addAndGet(rows);
+        long maxRows = entry.maxRows.get();
+        while (rows > maxRows && !entry.maxRows.compareAndSet(maxRows, rows)) {
+            maxRows = entry.maxRows.get();
+        }
+    }
+
+    /**
+     * Counts a change notification of the given kind.
+     */
+    void recordNotification(String kind) {
+        if (mEnabled) {
+            getEntry(DiagnosticsEntry.OPERATION_NOTIFY, kind).count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the statistics as rows of the {@link DiagnosticsEntry} columns, ordered by
+     * operation and Uri match.
+     */
+    MatrixCursor toCursor() {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (Map.Entry<String, Entry> sorted : new TreeMap<>(mEntries).entrySet()) {
+            Entry entry = sorted.getValue();
+            String[] key = sorted.getKey().split(" ", 2);
+            long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = entry.buckets.get(i);
+            }
+            cursor.addRow(new Object[] {
+                    key[0],
+                    key[1],
+                    entry.count.get(),
+                    entry.totalNanos.get() / 1000,
+                    getPercentile(buckets, 0.5),
+                    getPercentile(buckets, 0.95),
+                    getPercentile(buckets, 0.99),
+                    entry.rows.get(),
+                    entry.maxRows.get(),
+                    joinBuckets(buckets)
+            });
+        }
+        return cursor;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("ProductProvider diagnostics " + (mEnabled ? "enabled" : "disabled"));
+        writer.println(TextUtils.join("\t", COLUMNS));
+        Cursor cursor = toCursor();
+        try {
+            String[] values = new String[COLUMNS.length];
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = cursor.getString(i);
+                }
+                writer.println(TextUtils.join("\t", values));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Entry getEntry(String operation, String uriMatch) {
+        String key = operation + " " + uriMatch;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = mEntries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    /*
+    * Returns the bucket of a latency in microseconds.
+    */
+    static int getBucket(long micros) {
+        int bucket = 0;
+        long bound = 1L << FIRST_BUCKET_SHIFT;
+        while (bucket < BUCKET_COUNT - 1 && micros >= bound) {
+            bucket++;
+            bound <<= 1;
+        }
+        return bucket;
+    }
+
+    /*
+    * Returns the upper bound in microseconds of the bucket the percentile falls into, -1 for
+    * the unbounded last bucket and 0 if nothing has been recorded.
+    */
+    static long getPercentile(long[] buckets, double percentile) {
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return i == BUCKET_COUNT - 1 ? -1 : 1L << (i + FIRST_BUCKET_SHIFT);
+            }
+        }
+        return -1;
+    }
+
+    private static String joinBuckets(long[] buckets) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < buckets.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(buckets[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+
+import com.example.android.inventoryapp.data.ProductContract.DiagnosticsEntry;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Memory bounded LRU cache of product query results, kept by ProductProvider. Every entry knows
+ * the _IDs of its rows, so a write only drops the entries it can have changed:
+ * <ul>
+ * <li>entries holding a written product,</li>
+ * <li>entries with a selection or filter, which a written product may enter,</li>
+ * <li>on inserts, entries that end with the last product, like the last page of the catalog.</li>
+ * </ul>
+ * A keyset page in the middle of the catalog survives inserts, updates and deletes of products
+ * on other pages. Results that are large or lack the _ID column are not cached.
+ */
+final class ProductQueryCache {
+
+    static final int MAX_BYTES = 1024 * 1024;
+    static final int MAX_ENTRY_BYTES = MAX_BYTES / 4;
+    static final int MAX_ROWS = 500;
+
+    // Rough per value overhead of a cached row, added to the size of strings and blobs.
+    private static final int VALUE_OVERHEAD_BYTES = 16;
+
+    private static final class Entry {
+        final String[] columns;
+        final Object[][] rows;
+        final Set<Long> ids;
+        final boolean filtered;
+        final boolean open;
+        final int bytes;
+
+        Entry(String[] columns, Object[][] rows, Set<Long> ids, boolean filtered, boolean open,
+              int bytes) {
+            this.columns = columns;
+            this.rows = rows;
+            this.ids = ids;
+            this.filtered = filtered;
+            this.open = open;
+            this.bytes = bytes;
+        }
+    }
+
+    // In access order, the eldest entry is the least recently used. Guarded by this.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mBytes;
+    // Incremented by every invalidation, a result read before it is not cached.
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mInvalidations;
+
+    /**
+     * Returns the key of a query.
+     */
+    static String getKey(String uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder) {
+        return uri + '\n' + Arrays.toString(projection) + '\n' + selection + '\n'
+                + Arrays.toString(selectionArgs) + '\n' + sortOrder;
+    }
+
+    /**
+     * Returns a new cursor over the cached result of the query, or null if it is not cached.
+     */
+    synchronized Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        MatrixCursor cursor = new MatrixCursor(entry.columns, entry.rows.length);
+        for (Object[] row : entry.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put} for a query about to be run.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the result of a query run at the given generation and returns a cursor over it, or
+     * returns the cursor itself, moved before its first row, if the result is not cached.
+     * The filtered flag marks a query with a selection or filter, the open one a query that
+     * gains the products inserted after its last row.
+     */
+    Cursor put(String key, long generation, Cursor cursor, boolean filtered, boolean open) {
+        int idIndex = cursor.getColumnIndex(BaseColumns._ID);
+        if (idIndex == -1 || cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        Set<Long> ids = new HashSet<>();
+        int bytes = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        bytes += 2 * ((String) row[i]).length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        bytes += ((byte[]) row[i]).length;
+                        break;
+                }
+                bytes += VALUE_OVERHEAD_BYTES;
+            }
+            rows[cursor.getPosition()] = row;
+            ids.add(cursor.getLong(idIndex));
+        }
+        cursor.moveToPosition(-1);
+
+        synchronized (this) {
+            if (generation != mGeneration || bytes > MAX_ENTRY_BYTES) {
+                return cursor;
+            }
+            Entry previous = mEntries.put(key,
+                    new Entry(columns, rows, ids, filtered, open, bytes));
+            if (previous != null) {
+                mBytes -= previous.bytes;
+            }
+            mBytes += bytes;
+            trim();
+        }
+
+        cursor.close();
+        MatrixCursor cachedCursor = new MatrixCursor(columns, rows.length);
+        for (Object[] row : rows) {
+            cachedCursor.addRow(row);
+        }
+        return cachedCursor;
+    }
+
+    /**
+     * Drops the entries a committed write of the given products may have changed.
+     */
+    synchronized void invalidate(Collection<Long> changedIds, boolean inserted) {
+        mGeneration++;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.filtered || (inserted && entry.open)
+                    || !Collections.disjoint(entry.ids, changedIds)) {
+                iterator.remove();
+                mBytes -= entry.bytes;
+                mInvalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drops every entry, for changes made outside the writes of the provider.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mInvalidations += mEntries.size();
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Adds the counters as rows of the {@link DiagnosticsEntry#OPERATION_QUERY_CACHE} operation
+     * to the diagnostics.
+     */
+    synchronized void addDiagnostics(MatrixCursor cursor) {
+        addCounter(cursor, "hits", mHits);
+        addCounter(cursor, "misses", mMisses);
+        addCounter(cursor, "evictions", mEvictions);
+        addCounter(cursor, "invalidations", mInvalidations);
+        addCounter(cursor, "entries", mEntries.size());
+        addCounter(cursor, "bytes", mBytes);
+    }
+
+    private static void addCounter(MatrixCursor cursor, String name, long value) {
+        cursor.newRow()
+                .add(DiagnosticsEntry.OPERATION_QUERY_CACHE)
+                .add(name)
+                .add(value);
+    }
+
+    synchronized void resetCounters() {
+        mHits = 0;
+        mMisses = 0;
+        mEvictions = 0;
+        mInvalidations = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = mHits + mMisses;
+        return "ProductQueryCache[hits=" + mHits + ", misses=" + mMisses + ", hitRate="
+                + (lookups == 0 ? 0 : mHits * 100 / lookups) + "%, evictions=" + mEvictions
+                + ", invalidations=" + mInvalidations + ", entries=" + mEntries.size()
+                + ", bytes=" + mBytes + "/" + MAX_BYTES + "]";
+    }
+
+    /*
+    * Evicts the least recently used entries until the cache fits its maximum size.
+    */
+    private void trim() {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mBytes > MAX_BYTES && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            mBytes -= entry.bytes;
+            mEvictions++;
+        }
+    }
+}
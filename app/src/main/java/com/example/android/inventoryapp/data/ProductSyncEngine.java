@@ -0,0 +1,381 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.text.TextUtils;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductContract.StockMovementEntry;
+import com.example.android.inventoryapp.data.ProductContract.SyncStateEntry;
+import com.example.android.inventoryapp.data.ProductContract.TombstoneEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synchronizes the catalog with a sync server in deltas. A sync first pushes the products
+ * changed since they were last synced, the {@link ProductEntry#DIRTY} ones, and the tombstones
+ * of the deleted ones, then pulls the changes made on the server since the pull token of the
+ * previous sync. Both directions move in batches of BATCH_SIZE products, every batch applied
+ * in a single transaction of ProductProvider, so a sync that fails resumes after the last
+ * applied batch. Applying a batch twice changes nothing.
+ * <p>
+ * Conflicts are resolved in favor of the server: a change based on an older server version
+ * than the current one is rejected by the server and replaced by the server's product in the
+ * pull of the same sync.
+ */
+public class ProductSyncEngine {
+
+    public static final class Result {
+        public final int pushedCount;
+        public final int pulledCount;
+        /**
+         * The local changes rejected by the server, replaced by its version of the products.
+         */
+        public final int conflictCount;
+
+        Result(int pushedCount, int pulledCount, int conflictCount) {
+            this.pushedCount = pushedCount;
+            this.pulledCount = pulledCount;
+            this.conflictCount = conflictCount;
+        }
+    }
+
+    // Products per push request, pull response and transaction.
+    static final int BATCH_SIZE = 100;
+
+    // Name of the sync state value holding the pull token of the last applied batch.
+    static final String PULL_TOKEN = "pull_token";
+
+    private static final String[] PUSH_PROJECTION = {
+            ProductEntry._ID,
+            ProductEntry.GLOBAL_ID,
+            ProductEntry.SERVER_VERSION,
+            ProductEntry.VERSION,
+            ProductEntry.NAME,
+            ProductEntry.PRICE,
+            ProductEntry.QUANTITY,
+            ProductEntry.SUPPLIER_PHONE,
+            ProductEntry.UPDATED_AT
+    };
+
+    private static final String[] PULL_PROJECTION = {
+            ProductEntry._ID,
+            ProductEntry.GLOBAL_ID,
+            ProductEntry.SERVER_VERSION
+    };
+
+    private static final String[] TOMBSTONE_PROJECTION = {
+            TombstoneEntry._ID,
+            TombstoneEntry.GLOBAL_ID,
+            TombstoneEntry.SERVER_VERSION,
+            TombstoneEntry.DELETED_AT
+    };
+
+    private final ContentResolver mContentResolver;
+    private final SyncTransport mTransport;
+
+    public ProductSyncEngine(ContentResolver contentResolver, SyncTransport transport) {
+        mContentResolver = contentResolver;
+        mTransport = transport;
+    }
+
+    /**
+     * Pushes the local changes and pulls the changes of the server. Blocks, must not be called
+     * on the main thread. Throws an IOException if an exchange with the server or applying a
+     * batch fails, the batches applied before stay applied.
+     */
+    public Result sync() throws IOException {
+        int[] conflictCount = new int[1];
+        int pushedCount = pushProducts(conflictCount) + pushTombstones(conflictCount);
+        int pulledCount = pull();
+        return new Result(pushedCount, pulledCount, conflictCount[0]);
+    }
+
+    /*
+    * Pushes the dirty products a batch at a time and marks the accepted ones synced. A product
+    * changed again while its batch was pushed stays dirty, based on its new server version.
+    * Products without a global ID, still waiting for the migration assigning them, are pushed
+    * by a later sync.
+    */
+    private int pushProducts(int[] conflictCount) throws IOException {
+        int pushedCount = 0;
+        long afterId = 0;
+        while (true) {
+            List<SyncChange> changes = new ArrayList<>();
+            Map<String, long[]> rows = new HashMap<>();
+            Cursor cursor = mContentResolver.query(ProductEntry.buildPageUri(afterId, BATCH_SIZE),
+                    PUSH_PROJECTION, ProductEntry.DIRTY + "=1 AND "
+                            + ProductEntry.GLOBAL_ID + " IS NOT NULL", null, null);
+            if (cursor == null) {
+                return pushedCount;
+            }
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    afterId = cursor.getLong(0);
+                    String globalId = cursor.getString(1);
+                    changes.add(new SyncChange(globalId, cursor.getLong(2), cursor.getString(4),
+                            cursor.getDouble(5), cursor.getInt(6), cursor.getString(7),
+                            cursor.getLong(8)));
+                    rows.put(globalId, new long[] { afterId, cursor.getLong(3) });
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (!changes.isEmpty()) {
+                List<SyncPayloads.PushResult> results = SyncPayloads.decodePushResponse(
+                        mTransport.exchange(SyncTransport.ENDPOINT_PUSH,
+                                SyncPayloads.encodePushRequest(changes)));
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+                for (SyncPayloads.PushResult result : results) {
+                    long[] row = rows.get(result.globalId);
+                    if (row == null) {
+                        continue;
+                    }
+                    if (result.conflict) {
+                        conflictCount[0]++;
+                        continue;
+                    }
+                    String id = String.valueOf(row[0]);
+                    String serverVersion = String.valueOf(result.serverVersion);
+                    operations.add(ContentProviderOperation.newUpdate(ProductEntry.CONTENT_URI)
+                            .withValue(ProductEntry.SERVER_VERSION, result.serverVersion)
+                            .withValue(ProductEntry.DIRTY, 0)
+                            .withSelection(ProductEntry._ID + "=? AND " + ProductEntry.VERSION
+                                    + "=?", new String[] { id, String.valueOf(row[1]) })
+                            .build());
+                    operations.add(ContentProviderOperation.newUpdate(ProductEntry.CONTENT_URI)
+                            .withValue(ProductEntry.SERVER_VERSION, result.serverVersion)
+                            .withSelection(ProductEntry._ID + "=? AND "
+                                    + ProductEntry.SERVER_VERSION + "<?",
+                                    new String[] { id, serverVersion })
+                            .build());
+                    pushedCount++;
+                }
+                apply(operations);
+            }
+
+            if (count < BATCH_SIZE) {
+                return pushedCount;
+            }
+        }
+    }
+
+    /*
+    * Pushes the tombstones a batch at a time and removes the ones the server has received. The
+    * tombstone of a deletion the server rejected is removed as well, the pull brings the
+    * product back.
+    */
+    private int pushTombstones(int[] conflictCount) throws IOException {
+        int pushedCount = 0;
+        long afterId = 0;
+        Uri uri = TombstoneEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductEntry.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(BATCH_SIZE))
+                .build();
+        while (true) {
+            List<SyncChange> changes = new ArrayList<>();
+            Map<String, Long> ids = new HashMap<>();
+            Cursor cursor = mContentResolver.query(uri, TOMBSTONE_PROJECTION,
+                    TombstoneEntry._ID + ">?", new String[] { String.valueOf(afterId) },
+                    TombstoneEntry._ID);
+            if (cursor == null) {
+                return pushedCount;
+            }
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    afterId = cursor.getLong(0);
+                    changes.add(SyncChange.deletion(cursor.getString(1), cursor.getLong(2),
+                            cursor.getLong(3)));
+                    ids.put(cursor.getString(1), afterId);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (!changes.isEmpty()) {
+                List<SyncPayloads.PushResult> results = SyncPayloads.decodePushResponse(
+                        mTransport.exchange(SyncTransport.ENDPOINT_PUSH,
+                                SyncPayloads.encodePushRequest(changes)));
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+                for (SyncPayloads.PushResult result : results) {
+                    Long id = ids.get(result.globalId);
+                    if (id == null) {
+                        continue;
+                    }
+                    if (result.conflict) {
+                        conflictCount[0]++;
+                    } else {
+                        pushedCount++;
+                    }
+                    operations.add(ContentProviderOperation.newDelete(TombstoneEntry.CONTENT_URI)
+                            .withSelection(TombstoneEntry._ID + "=?",
+                                    new String[] { String.valueOf(id) })
+                            .build());
+                }
+                apply(operations);
+            }
+
+            if (count < BATCH_SIZE) {
+                return pushedCount;
+            }
+        }
+    }
+
+    /*
+    * Pulls the changes of the server a batch at a time. Every batch is applied together with
+    * its pull token, so a failed pull resumes after the last applied batch. Changes the local
+    * product already has, like the ones it pushed itself, are skipped.
+    */
+    private int pull() throws IOException {
+        int pulledCount = 0;
+        String token = getSyncState(PULL_TOKEN);
+        SyncPayloads.PullResponse response;
+        do {
+            response = SyncPayloads.decodePullResponse(mTransport.exchange(
+                    SyncTransport.ENDPOINT_PULL, SyncPayloads.encodePullRequest(
+                            new SyncPayloads.PullRequest(token, BATCH_SIZE))));
+
+            // Only the latest change of a product in the batch is applied.
+            Map<String, SyncChange> changes = new LinkedHashMap<>();
+            for (SyncChange change : response.changes) {
+                SyncChange previous = changes.get(change.globalId);
+                if (previous == null || previous.serverVersion < change.serverVersion) {
+                    changes.put(change.globalId, change);
+                }
+            }
+            Map<String, long[]> rows = queryProducts(changes.keySet());
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            for (SyncChange change : changes.values()) {
+                long[] row = rows.get(change.globalId);
+                if (row == null ? change.deleted : row[1] >= change.serverVersion) {
+                    continue;
+                }
+                addPullOperations(operations, change, row == null ? -1 : row[0]);
+                pulledCount++;
+            }
+            operations.add(ContentProviderOperation.newInsert(SyncStateEntry.CONTENT_URI)
+                    .withValue(SyncStateEntry.NAME, PULL_TOKEN)
+                    .withValue(SyncStateEntry.VALUE, response.nextToken)
+                    .build());
+            apply(operations);
+            token = response.nextToken;
+        } while (response.hasMore);
+        return pulledCount;
+    }
+
+    /*
+    * Adds the operations applying a change of the server to the product of the given _ID, -1 if
+    * there is no local product. The tombstone of a product the server changed or deleted is of
+    * no use anymore and is removed.
+    */
+    private static void addPullOperations(List<ContentProviderOperation> operations,
+                                          SyncChange change, long id) {
+        if (change.deleted) {
+            if (id != -1) {
+                operations.add(ContentProviderOperation.newDelete(
+                        ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id)).build());
+            }
+        } else {
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.NAME, change.name);
+            values.put(ProductEntry.PRICE, change.price);
+            values.put(ProductEntry.QUANTITY, change.quantity);
+            values.put(ProductEntry.SUPPLIER_PHONE, change.supplierPhone);
+            values.put(ProductEntry.UPDATED_AT, change.updatedAt);
+            values.put(ProductEntry.SERVER_VERSION, change.serverVersion);
+            values.put(ProductEntry.DIRTY, 0);
+            if (id == -1) {
+                values.put(ProductEntry.GLOBAL_ID, change.globalId);
+                operations.add(ContentProviderOperation.newInsert(ProductEntry.CONTENT_URI)
+                        .withValues(values)
+                        .build());
+            } else {
+                Uri uri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id).buildUpon()
+                        .appendQueryParameter(ProductEntry.QUERY_PARAMETER_REASON,
+                                StockMovementEntry.REASON_SYNC)
+                        .build();
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValues(values)
+                        .build());
+            }
+        }
+        operations.add(ContentProviderOperation.newDelete(TombstoneEntry.CONTENT_URI)
+                .withSelection(TombstoneEntry.GLOBAL_ID + "=?", new String[] { change.globalId })
+                .build());
+    }
+
+    /*
+    * Returns the _ID and server version of the local products with the given global IDs.
+    */
+    private Map<String, long[]> queryProducts(Iterable<String> globalIds) {
+        List<String> args = new ArrayList<>();
+        for (String globalId : globalIds) {
+            args.add(globalId);
+        }
+        Map<String, long[]> rows = new HashMap<>();
+        if (args.isEmpty()) {
+            return rows;
+        }
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI, PULL_PROJECTION,
+                ProductEntry.GLOBAL_ID + " IN ("
+                        + TextUtils.join(", ", Collections.nCopies(args.size(), "?")) + ")",
+                args.toArray(new String[args.size()]), null);
+        if (cursor == null) {
+            return rows;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getString(1), new long[] { cursor.getLong(0), cursor.getLong(2) });
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private String getSyncState(String name) {
+        Cursor cursor = mContentResolver.query(SyncStateEntry.CONTENT_URI,
+                new String[] { SyncStateEntry.VALUE }, SyncStateEntry.NAME + "=?",
+                new String[] { name }, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+    * Applies the operations of a batch in a single transaction of ProductProvider.
+    */
+    private void apply(ArrayList<ContentProviderOperation> operations) throws IOException {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(ProductContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Cannot apply a sync batch", e);
+        }
+    }
+}
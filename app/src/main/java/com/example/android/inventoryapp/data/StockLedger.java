@@ -0,0 +1,276 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductContract.StockMovementEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only ledger of the quantity changes of the products. Every change is appended as a
+ * movement in the transaction that changes the quantity. After every SNAPSHOT_INTERVAL movements
+ * of a product its quantity is written to a snapshot, so the quantity at any point in time is
+ * its nearest earlier snapshot plus the replay of at most that many movements.
+ *
+ * Compaction folds the movements older than the retention period into a snapshot per product
+ * and deletes them, which keeps the size of the ledger bounded by the movements of that period.
+ */
+final class StockLedger {
+
+    // Movements of a product after which the next one writes a snapshot.
+    static final int SNAPSHOT_INTERVAL = 50;
+
+    static final long RETENTION_MILLIS = 90L * 24 * 60 * 60 * 1000;
+
+    // Number of products compacted per transaction.
+    static final int COMPACTION_BATCH_SIZE = 100;
+
+    /*
+    * Quantity of a product right after the movement with the given _ID, which is 0 for the
+    * snapshots taken of the products existing when the ledger was created.
+    */
+    static final String SNAPSHOTS_TABLE = "stock_snapshots";
+    static final String COLUMN_QUANTITY = "quantity";
+    static final String COLUMN_MOVEMENT_ID = "movement_id";
+
+    static final String MOVEMENTS_PRODUCT_INDEX = StockMovementEntry.TABLE_NAME + "_product_index";
+    static final String MOVEMENTS_TIMESTAMP_INDEX =
+            StockMovementEntry.TABLE_NAME + "_timestamp_index";
+    static final String SNAPSHOTS_PRODUCT_INDEX = SNAPSHOTS_TABLE + "_product_index";
+
+    private final SQLiteStatement mAppend;
+    private final SQLiteStatement mCountSinceSnapshot;
+    private final SQLiteStatement mSnapshot;
+
+    /**
+     * Compiles the statements of the writes to the ledger of the database.
+     */
+    StockLedger(SQLiteDatabase db) {
+        mAppend = db.compileStatement("INSERT INTO " + StockMovementEntry.TABLE_NAME + " ("
+                + StockMovementEntry.PRODUCT_ID + ", " + StockMovementEntry.CHANGE + ", "
+                + StockMovementEntry.REASON + ", " + StockMovementEntry.TIMESTAMP
+                + ") VALUES (?, ?, ?, ?)");
+        // Counts along the product index, which is ordered by _ID within a product, so the
+        // count never reads more than SNAPSHOT_INTERVAL entries.
+        mCountSinceSnapshot = db.compileStatement("SELECT count(*) FROM "
+                + StockMovementEntry.TABLE_NAME + " WHERE " + StockMovementEntry.PRODUCT_ID
+                + " = ?1 AND " + StockMovementEntry._ID + " > (SELECT ifnull(max("
+                + COLUMN_MOVEMENT_ID + "), 0) FROM " + SNAPSHOTS_TABLE + " WHERE "
+                + StockMovementEntry.PRODUCT_ID + " = ?1)");
+        mSnapshot = db.compileStatement("INSERT INTO " + SNAPSHOTS_TABLE + " ("
+                + StockMovementEntry.PRODUCT_ID + ", " + StockMovementEntry.TIMESTAMP + ", "
+                + COLUMN_QUANTITY + ", " + COLUMN_MOVEMENT_ID + ") VALUES (?, ?, ?, ?)");
+    }
+
+    /**
+     * Appends a change of the quantity of the product, which now is the given quantity.
+     * Must be called inside the transaction of the change.
+     */
+    void append(long productId, int change, int quantity, String reason) {
+        long now = System.currentTimeMillis();
+        mAppend.bindLong(1, productId);
+        mAppend.bindLong(2, change);
+        mAppend.bindString(3, reason);
+        mAppend.bindLong(4, now);
+        long movementId;
+        try {
+            movementId = mAppend.executeInsert();
+        } finally {
+            mAppend.clearBindings();
+        }
+
+        mCountSinceSnapshot.bindLong(1, productId);
+        long countSinceSnapshot;
+        try {
+            countSinceSnapshot = mCountSinceSnapshot.simpleQueryForLong();
+        } finally {
+            mCountSinceSnapshot.clearBindings();
+        }
+        if (countSinceSnapshot >= SNAPSHOT_INTERVAL) {
+            mSnapshot.bindLong(1, productId);
+            mSnapshot.bindLong(2, now);
+            mSnapshot.bindLong(3, quantity);
+            mSnapshot.bindLong(4, movementId);
+            try {
+                mSnapshot.executeInsert();
+            } finally {
+                mSnapshot.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    void close() {
+        mAppend.close();
+        mCountSinceSnapshot.close();
+        mSnapshot.close();
+    }
+
+    /**
+     * Returns the quantity of the product at the given time in milliseconds since the epoch, or
+     * null if the product did not exist then or that part of its history has been compacted.
+     */
+    static Integer getQuantityAsOf(SQLiteDatabase db, long productId, long timestamp) {
+        String[] args = new String[] { String.valueOf(productId), String.valueOf(timestamp) };
+        long quantity = 0;
+        long movementId = 0;
+        boolean known = false;
+        Cursor cursor = db.query(SNAPSHOTS_TABLE, new String[] { COLUMN_QUANTITY,
+                        COLUMN_MOVEMENT_ID },
+                StockMovementEntry.PRODUCT_ID + "=? AND " + StockMovementEntry.TIMESTAMP + "<=?",
+                args, null, null, StockMovementEntry.TIMESTAMP + " DESC, " + COLUMN_MOVEMENT_ID
+                        + " DESC", "1");
+        try {
+            if (cursor.moveToFirst()) {
+                quantity = cursor.getLong(0);
+                movementId = cursor.getLong(1);
+                known = true;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Without a snapshot the replay starts at the movement that created the product.
+        cursor = db.rawQuery("SELECT count(*), total(" + StockMovementEntry.CHANGE + ") FROM "
+                + StockMovementEntry.TABLE_NAME + " WHERE " + StockMovementEntry.PRODUCT_ID
+                + "=? AND " + StockMovementEntry.TIMESTAMP + "<=? AND " + StockMovementEntry._ID
+                + ">?", new String[] { args[0], args[1], String.valueOf(movementId) });
+        try {
+            cursor.moveToFirst();
+            if (cursor.getLong(0) > 0) {
+                quantity += cursor.getLong(1);
+                known = true;
+            }
+        } finally {
+            cursor.close();
+        }
+        return known ? (int) quantity : null;
+    }
+
+    /**
+     * Folds the movements older than the cutoff into a snapshot of each product and deletes them,
+     * together with the snapshots the new ones replace. The history of deleted products is
+     * dropped entirely. Every batch of products runs in a transaction of its own. Returns the
+     * number of products compacted.
+     */
+    static int compact(SQLiteDatabase db, long cutoff) {
+        String[] cutoffArgs = new String[] { String.valueOf(cutoff) };
+        int compacted = 0;
+        while (true) {
+            db.beginTransaction();
+            try {
+                List<Long> productIds = new ArrayList<>();
+                Cursor cursor = db.query(true, StockMovementEntry.TABLE_NAME,
+                        new String[] { StockMovementEntry.PRODUCT_ID },
+                        StockMovementEntry.TIMESTAMP + "<?", cutoffArgs, null, null, null,
+                        String.valueOf(COMPACTION_BATCH_SIZE));
+                try {
+                    while (cursor.moveToNext()) {
+                        productIds.add(cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (productIds.isEmpty()) {
+                    db.setTransactionSuccessful();
+                    return compacted;
+                }
+
+                for (long productId : productIds) {
+                    compactProduct(db, productId, cutoff);
+                }
+                db.setTransactionSuccessful();
+                compacted += productIds.size();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static void compactProduct(SQLiteDatabase db, long productId, long cutoff) {
+        String[] args = new String[] { String.valueOf(productId), String.valueOf(cutoff) };
+        // The quantity right before the cutoff, which the new snapshot is taken of.
+        Integer quantity = getQuantityAsOf(db, productId, cutoff - 1);
+        long lastMovementId;
+        Cursor cursor = db.rawQuery("SELECT max(" + StockMovementEntry._ID + ") FROM "
+                + StockMovementEntry.TABLE_NAME + " WHERE " + StockMovementEntry.PRODUCT_ID
+                + "=? AND " + StockMovementEntry.TIMESTAMP + "<?", args);
+        try {
+            cursor.moveToFirst();
+            lastMovementId = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+
+        db.delete(StockMovementEntry.TABLE_NAME, StockMovementEntry.PRODUCT_ID + "=? AND "
+                + StockMovementEntry.TIMESTAMP + "<?", args);
+        db.delete(SNAPSHOTS_TABLE, StockMovementEntry.PRODUCT_ID + "=? AND "
+                + StockMovementEntry.TIMESTAMP + "<?", args);
+
+        boolean exists = DatabaseUtils.queryNumEntries(db, ProductEntry.TABLE_NAME,
+                ProductEntry._ID + "=?", new String[] { args[0] }) != 0;
+        if (quantity != null && exists) {
+            db.execSQL("INSERT INTO " + SNAPSHOTS_TABLE + " (" + StockMovementEntry.PRODUCT_ID
+                    + ", " + StockMovementEntry.TIMESTAMP + ", " + COLUMN_QUANTITY + ", "
+                    + COLUMN_MOVEMENT_ID + ") VALUES (?, ?, ?, ?)",
+                    new Object[] { productId, cutoff - 1, quantity, lastMovementId });
+        }
+    }
+
+    /**
+     * Creates the tables of the ledger and their indexes.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StockMovementEntry.TABLE_NAME + " ("
+                + StockMovementEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + StockMovementEntry.PRODUCT_ID + " INTEGER NOT NULL, "
+                + StockMovementEntry.CHANGE + " INTEGER NOT NULL, "
+                + StockMovementEntry.REASON + " TEXT NOT NULL, "
+                + StockMovementEntry.TIMESTAMP + " INTEGER NOT NULL)");
+        // Ordered by _ID within a product, which is the order of the replay.
+        db.execSQL("CREATE INDEX " + MOVEMENTS_PRODUCT_INDEX + " ON "
+                + StockMovementEntry.TABLE_NAME + " (" + StockMovementEntry.PRODUCT_ID + ")");
+        db.execSQL("CREATE INDEX " + MOVEMENTS_TIMESTAMP_INDEX + " ON "
+                + StockMovementEntry.TABLE_NAME + " (" + StockMovementEntry.TIMESTAMP + ")");
+
+        db.execSQL("CREATE TABLE " + SNAPSHOTS_TABLE + " ("
+                + StockMovementEntry.PRODUCT_ID + " INTEGER NOT NULL, "
+                + StockMovementEntry.TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                + COLUMN_MOVEMENT_ID + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + SNAPSHOTS_PRODUCT_INDEX + " ON " + SNAPSHOTS_TABLE + " ("
+                + StockMovementEntry.PRODUCT_ID + ", " + StockMovementEntry.TIMESTAMP + ")");
+    }
+
+    /**
+     * Takes the first snapshot of at most limit products that existed before the ledger, those
+     * with neither a snapshot nor a created movement. Movements appended since the ledger was
+     * created are subtracted from the current quantity, so the snapshot holds the quantity before
+     * the first of them, taken at its time. Returns the number of products snapshotted.
+     */
+    static int snapshotUntracked(SQLiteDatabase db, int limit) {
+        final String products = ProductEntry.TABLE_NAME;
+        final String movementsOfProduct = " FROM " + StockMovementEntry.TABLE_NAME + " WHERE "
+                + StockMovementEntry.PRODUCT_ID + " = " + products + "." + ProductEntry._ID;
+        db.execSQL("INSERT INTO " + SNAPSHOTS_TABLE + " (" + StockMovementEntry.PRODUCT_ID + ", "
+                + StockMovementEntry.TIMESTAMP + ", " + COLUMN_QUANTITY + ", "
+                + COLUMN_MOVEMENT_ID + ") SELECT " + ProductEntry._ID + ", ifnull((SELECT min("
+                + StockMovementEntry.TIMESTAMP + ")" + movementsOfProduct + "), ?), "
+                + ProductEntry.QUANTITY + " - (SELECT CAST(total(" + StockMovementEntry.CHANGE
+                + ") AS INTEGER)" + movementsOfProduct + "), 0 FROM " + products
+                + " WHERE NOT EXISTS (SELECT 1 FROM " + SNAPSHOTS_TABLE + " WHERE "
+                + StockMovementEntry.PRODUCT_ID + " = " + products + "." + ProductEntry._ID
+                + ") AND NOT EXISTS (SELECT 1" + movementsOfProduct + " AND "
+                + StockMovementEntry.REASON + " = '" + StockMovementEntry.REASON_CREATED
+                + "') LIMIT " + limit,
+                new Object[] { System.currentTimeMillis() });
+        return (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.android.inventoryapp.data;
+
+/**
+ * The state of a product exchanged with the sync server. In a push the server version is the
+ * one the local change is based on, in a pull the version of the change on the server. A
+ * deleted product carries its global ID and server version only.
+ */
+final class SyncChange {
+    final String globalId;
+    final long serverVersion;
+    final boolean deleted;
+    final String name;
+    final double price;
+    final int quantity;
+    final String supplierPhone;
+    final long updatedAt;
+
+    SyncChange(String globalId, long serverVersion, String name, double price, int quantity,
+               String supplierPhone, long updatedAt) {
+        this(globalId, serverVersion, false, name, price, quantity, supplierPhone, updatedAt);
+    }
+
+    private SyncChange(String globalId, long serverVersion, boolean deleted, String name,
+                       double price, int quantity, String supplierPhone, long updatedAt) {
+        this.globalId = globalId;
+        this.serverVersion = serverVersion;
+        this.deleted = deleted;
+        this.name = name;
+        this.price = price;
+        this.quantity = quantity;
+        this.supplierPhone = supplierPhone;
+        this.updatedAt = updatedAt;
+    }
+
+    static SyncChange deletion(String globalId, long serverVersion, long deletedAt) {
+        return new SyncChange(globalId, serverVersion, true, null, 0, 0, null, deletedAt);
+    }
+
+    /**
+     * Returns the same change at another server version.
+     */
+    SyncChange withServerVersion(long serverVersion) {
+        return new SyncChange(globalId, serverVersion, deleted, name, price, quantity,
+                supplierPhone, updatedAt);
+    }
+}
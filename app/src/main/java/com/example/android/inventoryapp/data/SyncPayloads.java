@@ -0,0 +1,223 @@
+package com.example.android.inventoryapp.data;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes and decodes the gzip compressed JSON documents of the sync protocol:
+ * <pre>
+ * push request   {"changes": [change, ...]}
+ * push response  {"results": [{"global_id", "server_version", "conflict"}, ...]}
+ * pull request   {"since": token or absent, "limit": n}
+ * pull response  {"changes": [change, ...], "next_token": token, "has_more": boolean}
+ * change         {"global_id", "server_version", "deleted", "name", "price", "quantity",
+ *                 "supplier_phone", "updated_at"}
+ * </pre>
+ * A push result holds the new server version of an accepted change, or flags a change based on
+ * an older server version than the current one as a conflict. The deltas are the changed
+ * products, every change carries the whole product.
+ */
+final class SyncPayloads {
+
+    /**
+     * The answer of the server to a pushed change.
+     */
+    static final class PushResult {
+        final String globalId;
+        final long serverVersion;
+        final boolean conflict;
+
+        PushResult(String globalId, long serverVersion, boolean conflict) {
+            this.globalId = globalId;
+            this.serverVersion = serverVersion;
+            this.conflict = conflict;
+        }
+    }
+
+    static final class PullRequest {
+        final String since;
+        final int limit;
+
+        PullRequest(String since, int limit) {
+            this.since = since;
+            this.limit = limit;
+        }
+    }
+
+    static final class PullResponse {
+        final List<SyncChange> changes;
+        final String nextToken;
+        final boolean hasMore;
+
+        PullResponse(List<SyncChange> changes, String nextToken, boolean hasMore) {
+            this.changes = changes;
+            this.nextToken = nextToken;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private SyncPayloads() {}
+
+    static byte[] encodePushRequest(List<SyncChange> changes) throws IOException {
+        try {
+            return compress(new JSONObject().put("changes", toJson(changes)));
+        } catch (JSONException e) {
+            throw new IOException("Cannot encode push request", e);
+        }
+    }
+
+    static List<SyncChange> decodePushRequest(byte[] request) throws IOException {
+        try {
+            return toChanges(decompress(request).getJSONArray("changes"));
+        } catch (JSONException e) {
+            throw new IOException("Invalid push request", e);
+        }
+    }
+
+    static byte[] encodePushResponse(List<PushResult> results) throws IOException {
+        try {
+            JSONArray array = new JSONArray();
+            for (PushResult result : results) {
+                array.put(new JSONObject()
+                        .put("global_id", result.globalId)
+                        .put("server_version", result.serverVersion)
+                        .put("conflict", result.conflict));
+            }
+            return compress(new JSONObject().put("results", array));
+        } catch (JSONException e) {
+            throw new IOException("Cannot encode push response", e);
+        }
+    }
+
+    static List<PushResult> decodePushResponse(byte[] response) throws IOException {
+        try {
+            JSONArray array = decompress(response).getJSONArray("results");
+            List<PushResult> results = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject result = array.getJSONObject(i);
+                results.add(new PushResult(result.getString("global_id"),
+                        result.getLong("server_version"), result.optBoolean("conflict")));
+            }
+            return results;
+        } catch (JSONException e) {
+            throw new IOException("Invalid push response", e);
+        }
+    }
+
+    static byte[] encodePullRequest(PullRequest request) throws IOException {
+        try {
+            JSONObject object = new JSONObject().put("limit", request.limit);
+            if (request.since != null) {
+                object.put("since", request.since);
+            }
+            return compress(object);
+        } catch (JSONException e) {
+            throw new IOException("Cannot encode pull request", e);
+        }
+    }
+
+    static PullRequest decodePullRequest(byte[] request) throws IOException {
+        try {
+            JSONObject object = decompress(request);
+            return new PullRequest(object.has("since") ? object.getString("since") : null,
+                    object.getInt("limit"));
+        } catch (JSONException e) {
+            throw new IOException("Invalid pull request", e);
+        }
+    }
+
+    static byte[] encodePullResponse(PullResponse response) throws IOException {
+        try {
+            return compress(new JSONObject()
+                    .put("changes", toJson(response.changes))
+                    .put("next_token", response.nextToken)
+                    .put("has_more", response.hasMore));
+        } catch (JSONException e) {
+            throw new IOException("Cannot encode pull response", e);
+        }
+    }
+
+    static PullResponse decodePullResponse(byte[] response) throws IOException {
+        try {
+            JSONObject object = decompress(response);
+            return new PullResponse(toChanges(object.getJSONArray("changes")),
+                    object.getString("next_token"), object.getBoolean("has_more"));
+        } catch (JSONException e) {
+            throw new IOException("Invalid pull response", e);
+        }
+    }
+
+    private static JSONArray toJson(List<SyncChange> changes) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (SyncChange change : changes) {
+            JSONObject object = new JSONObject()
+                    .put("global_id", change.globalId)
+                    .put("server_version", change.serverVersion)
+                    .put("deleted", change.deleted)
+                    .put("updated_at", change.updatedAt);
+            if (!change.deleted) {
+                object.put("name", change.name)
+                        .put("price", change.price)
+                        .put("quantity", change.quantity)
+                        .put("supplier_phone", change.supplierPhone);
+            }
+            array.put(object);
+        }
+        return array;
+    }
+
+    private static List<SyncChange> toChanges(JSONArray array) throws JSONException {
+        List<SyncChange> changes = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject object = array.getJSONObject(i);
+            String globalId = object.getString("global_id");
+            long serverVersion = object.getLong("server_version");
+            long updatedAt = object.optLong("updated_at");
+            if (object.optBoolean("deleted")) {
+                changes.add(SyncChange.deletion(globalId, serverVersion, updatedAt));
+            } else {
+                changes.add(new SyncChange(globalId, serverVersion, object.getString("name"),
+                        object.getDouble("price"), object.getInt("quantity"),
+                        object.getString("supplier_phone"), updatedAt));
+            }
+        }
+        return changes;
+    }
+
+    private static byte[] compress(JSONObject object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream outputStream = new GZIPOutputStream(bytes);
+        try {
+            outputStream.write(object.toString().getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static JSONObject decompress(byte[] bytes) throws IOException, JSONException {
+        InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+            return new JSONObject(outputStream.toString("UTF-8"));
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.android.inventoryapp.data;
+
+import java.io.IOException;
+
+/**
+ * Carries the requests of {@link ProductSyncEngine} to the sync server and returns its
+ * responses. Requests and responses are gzip compressed JSON documents, described by
+ * SyncPayloads. An exchange that fails throws an IOException, the engine resumes from the last
+ * batch it has applied on its next sync.
+ */
+public interface SyncTransport {
+
+    /**
+     * Endpoint receiving the local changes.
+     */
+    String ENDPOINT_PUSH = "push";
+
+    /**
+     * Endpoint returning the changes made on the server after a pull token.
+     */
+    String ENDPOINT_PULL = "pull";
+
+    /**
+     * Sends the request to the endpoint and returns the response. Blocks.
+     */
+    byte[] exchange(String endpoint, byte[] request) throws IOException;
+}
@@ -0,0 +1,272 @@
+package com.example.android.inventoryapp;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.inventoryapp.data.ProductContract.ProductEntry;
+import com.example.android.inventoryapp.data.ProductProvider;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Local benchmark of {@link ProductProvider} on the JVM, at several catalog sizes with and
+ * without product images. Only runs with {@code ./gradlew test -Pbenchmark}. Every case writes
+ * its latencies as a JSON file to build/benchmark, so they can be compared between builds.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class ProductProviderBenchmarkTest {
+
+    private static final String OUTPUT_DIRECTORY = "build/benchmark";
+
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int ITERATIONS = 200;
+    // Queries reading the whole catalog are repeated less often.
+    private static final int FULL_SCAN_ITERATIONS = 10;
+
+    private static final int BULK_INSERT_CHUNK_SIZE = 1000;
+
+    // Distinct images the products share, the image store keeps each of them once.
+    private static final int IMAGE_COUNT = 50;
+    private static final int IMAGE_BYTES = 16 * 1024;
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0} products, images: {1}")
+    public static Collection<Object[]> getParameters() {
+        List<Object[]> parameters = new ArrayList<>();
+        for (int productCount : new int[] { 1000, 10000, 100000 }) {
+            parameters.add(new Object[] { productCount, false });
+            parameters.add(new Object[] { productCount, true });
+        }
+        return parameters;
+    }
+
+    /*
+    * A single timed call, the iteration tells the calls of a measurement apart.
+    */
+    private interface Operation {
+        void run(int iteration);
+    }
+
+    private final int mProductCount;
+    private final boolean mWithImages;
+    private final Random mRandom = new Random(42);
+    private final List<byte[]> mImages = new ArrayList<>();
+
+    private ProductProvider mProvider;
+    private long mFirstId;
+
+    public ProductProviderBenchmarkTest(int productCount, boolean withImages) {
+        mProductCount = productCount;
+        mWithImages = withImages;
+    }
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("inventory.benchmark"));
+
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            byte[] image = new byte[IMAGE_BYTES];
+            mRandom.nextBytes(image);
+            mImages.add(image);
+        }
+        mProvider = Robolectric.setupContentProvider(ProductProvider.class);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        JSONObject result = new JSONObject();
+        result.put("products", mProductCount);
+        result.put("images", mWithImages);
+        result.put("bulk_insert_ms", seed());
+
+        JSONArray operations = new JSONArray();
+        operations.put(measure("query_catalog_page", ITERATIONS, new Operation() {
+            @Override
+            public void run(int iteration) {
+                long afterId = mFirstId + mRandom.nextInt(mProductCount);
+                readAll(mProvider.query(
+                        ProductEntry.buildPageUri(afterId, CatalogDataSource.PAGE_SIZE),
+                        CatalogDataSource.PROJECTION, null, null, null));
+            }
+        }));
+        operations.put(measure("query_catalog_sorted_by_name", FULL_SCAN_ITERATIONS,
+                new Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        readAll(mProvider.query(ProductEntry.CONTENT_URI,
+                                CatalogDataSource.PROJECTION, null, null,
+                                ProductEntry.SORT_BY_NAME));
+                    }
+                }));
+        operations.put(measure("query_product", ITERATIONS, new Operation() {
+            @Override
+            public void run(int iteration) {
+                readAll(mProvider.query(ContentUris.withAppendedId(ProductEntry.CONTENT_URI,
+                        randomId()), null, null, null, null));
+            }
+        }));
+        operations.put(measure("search", ITERATIONS, new Operation() {
+            @Override
+            public void run(int iteration) {
+                readAll(mProvider.query(ProductEntry.buildSearchUri(
+                        "product " + mRandom.nextInt(mProductCount),
+                        CatalogDataSource.SEARCH_LIMIT), CatalogDataSource.PROJECTION,
+                        null, null, null));
+            }
+        }));
+        operations.put(measure("insert", ITERATIONS, new Operation() {
+            @Override
+            public void run(int iteration) {
+                assertNotNull(mProvider.insert(ProductEntry.CONTENT_URI,
+                        createProduct(mProductCount + iteration)));
+            }
+        }));
+        operations.put(measure("update_quantity", ITERATIONS, new Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(ProductEntry.QUANTITY, iteration);
+                assertEquals(1, mProvider.update(productUri(randomId()), values, null, null));
+            }
+        }));
+        operations.put(measure("update_name", ITERATIONS, new Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(ProductEntry.NAME, "Renamed product " + iteration);
+                assertEquals(1, mProvider.update(productUri(randomId()), values, null, null));
+            }
+        }));
+        operations.put(measure("delete", ITERATIONS, new Operation() {
+            @Override
+            public void run(int iteration) {
+                // Deletes from the front of the catalog, so every iteration finds a product.
+                mProvider.delete(productUri(mFirstId + iteration), null, null);
+            }
+        }));
+        result.put("operations", operations);
+
+        write(result);
+    }
+
+    /*
+    * Fills the catalog in chunks of bulk inserts and returns the time it took in milliseconds.
+    */
+    private long seed() {
+        long start = System.nanoTime();
+        for (int offset = 0; offset < mProductCount; offset += BULK_INSERT_CHUNK_SIZE) {
+            int count = Math.min(BULK_INSERT_CHUNK_SIZE, mProductCount - offset);
+            ContentValues[] values = new ContentValues[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = createProduct(offset + i);
+            }
+            assertEquals(count, mProvider.bulkInsert(ProductEntry.CONTENT_URI, values));
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        Cursor cursor = mProvider.query(ProductEntry.buildPageUri(0, 1),
+                new String[] { ProductEntry._ID }, null, null, null);
+        try {
+            cursor.moveToFirst();
+            mFirstId = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+        return millis;
+    }
+
+    /*
+    * Runs the operation after a warmup and returns its latency percentiles in microseconds.
+    */
+    private JSONObject measure(String name, int iterations, Operation operation)
+            throws JSONException {
+        for (int i = 0; i < Math.min(WARMUP_ITERATIONS, iterations); i++) {
+            operation.run(i);
+        }
+
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            operation.run(WARMUP_ITERATIONS + i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        result.put("iterations", iterations);
+        result.put("median_us", nanos[iterations / 2] / 1000);
+        result.put("p95_us", nanos[iterations * 95 / 100] / 1000);
+        result.put("max_us", nanos[iterations - 1] / 1000);
+        return result;
+    }
+
+    private void write(JSONObject result) throws IOException, JSONException {
+        File directory = new File(OUTPUT_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File file = new File(directory, "product_provider_" + mProductCount
+                + (mWithImages ? "_images" : "") + ".json");
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(result.toString(2));
+        } finally {
+            writer.close();
+        }
+    }
+
+    private long randomId() {
+        return mFirstId + mRandom.nextInt(mProductCount);
+    }
+
+    private static Uri productUri(long id) {
+        return ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContentValues createProduct(int index) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.NAME, "Product " + index);
+        values.put(ProductEntry.PRICE, index % 100);
+        values.put(ProductEntry.QUANTITY, index % 50);
+        values.put(ProductEntry.SUPPLIER_PHONE, "+3670" + index);
+        if (mWithImages) {
+            values.put(ProductEntry.IMAGE, mImages.get(index % IMAGE_COUNT));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.android.inventoryapp.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Local unit test of the CSV format of {@link ProductCsv}.
+ */
+public class ProductCsvTest {
+
+    @Test
+    public void writeRecord_quotesOnlyWhereNeeded() throws Exception {
+        StringWriter writer = new StringWriter();
+        ProductCsv.writeRecord(writer, new String[] { "Tea", "Milk, 1 l", "6\" pan", null });
+        assertEquals("Tea,\"Milk, 1 l\",\"6\"\" pan\",\r\n", writer.toString());
+    }
+
+    @Test
+    public void readRecord_roundTripsWrittenRecords() throws Exception {
+        String[] first = { "Tea", "Milk, 1 l", "6\" pan", "two\nlines" };
+        String[] second = { "", "3", "4", "+3670" };
+        StringWriter writer = new StringWriter();
+        ProductCsv.writeRecord(writer, first);
+        ProductCsv.writeRecord(writer, second);
+
+        ProductCsv.RecordReader reader =
+                new ProductCsv.RecordReader(new StringReader(writer.toString()));
+        assertArrayEquals(first, reader.readRecord());
+        assertEquals(1, reader.getLineNumber());
+        assertArrayEquals(second, reader.readRecord());
+        // The quoted line break of the first record counts as a line.
+        assertEquals(3, reader.getLineNumber());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_acceptsLineFeedsAndMissingLastLineEnd() throws Exception {
+        ProductCsv.RecordReader reader = new ProductCsv.RecordReader(new StringReader("a,b\nc,d"));
+        assertArrayEquals(new String[] { "a", "b" }, reader.readRecord());
+        assertArrayEquals(new String[] { "c", "d" }, reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test(expected = IOException.class)
+    public void readRecord_rejectsUnterminatedQuote() throws Exception {
+        new ProductCsv.RecordReader(new StringReader("\"open,end\n")).readRecord();
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.android.inventoryapp.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test of the subsampling of {@link ProductImagePipeline}.
+ */
+public class ProductImagePipelineTest {
+
+    @Test
+    public void inSampleSize_keepsRequestedSize() throws Exception {
+        // A 4000x3000 camera photo shown in a 1080x450 view is halved once, halving it twice
+        // would make it 1000 pixels wide. A 1000 pixel wide view takes both halvings.
+        assertEquals(2, ProductImagePipeline.calculateInSampleSize(4000, 3000, 1080, 450));
+        assertEquals(4, ProductImagePipeline.calculateInSampleSize(4000, 3000, 1000, 450));
+    }
+
+    @Test
+    public void inSampleSize_smallImageIsNotSubsampled() throws Exception {
+        assertEquals(1, ProductImagePipeline.calculateInSampleSize(160, 120, 1080, 450));
+    }
+
+    @Test
+    public void inSampleSize_unknownViewSizeIsNotSubsampled() throws Exception {
+        assertEquals(1, ProductImagePipeline.calculateInSampleSize(4000, 3000, 0, 0));
+    }
+}
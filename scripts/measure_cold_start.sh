@@ -0,0 +1,106 @@
+#!/usr/bin/env bash
+#
+# Measures cold starts of CatalogActivity on the connected device.
+#
+# Every run kills the app first (am start -S), so each launch pays for process creation,
+# ProductProvider.onCreate, the first catalog query and the first frame. Two times are taken
+# per run:
+#   total        TotalTime of am start -W, launch until the first frame of the Activity.
+#   fully_drawn  The "Fully drawn" time the system logs when CatalogActivity reports its first
+#                frame showing the loaded catalog.
+#
+# Usage: scripts/measure_cold_start.sh [runs] [history.csv]
+#
+#   runs         Number of measured launches, 10 by default. One unmeasured launch comes first.
+#   history.csv  File the median of this measurement is appended to, one line per build, so
+#                cold starts can be compared from release to release.
+#
+# Environment:
+#   INSTALL=1        Builds and installs the debug variant first (./gradlew installDebug).
+#                    Only compare measurements of the same variant.
+#   COMPILE_MODE=m   ART compilation mode applied before measuring on Android 7.0 and later,
+#                    speed-profile by default, so every measurement starts from the same code.
+#
+# For reproducible numbers use the same device, keep it charged and idle, and turn off
+# animations. The trace sections CatalogActivity.onCreate, ProductProvider.openDatabase,
+# CatalogDataSource.firstPage and CatalogActivity.firstFrame show in a systrace captured with
+#   systrace.py -a com.example.android.inventoryapp am view gfx
+set -euo pipefail
+
+PACKAGE=com.example.android.inventoryapp
+ACTIVITY=$PACKAGE/.CatalogActivity
+RUNS=${1:-10}
+HISTORY=${2:-}
+OUTPUT_DIR=app/build/cold-start
+
+cd "$(dirname "$0")/.."
+
+if [[ "${INSTALL:-0}" == 1 ]]; then
+    ./gradlew -q installDebug
+fi
+
+sdk=$(adb shell getprop ro.build.version.sdk | tr -d '\r')
+if (( sdk >= 24 )); then
+    adb shell cmd package compile -m "${COMPILE_MODE:-speed-profile}" -f "$PACKAGE" > /dev/null
+fi
+
+# Launches once and prints "total fully_drawn" in milliseconds, fully_drawn is -1 if it was
+# not reported within 10 seconds.
+launch() {
+    adb logcat -c
+    local total
+    total=$(adb shell am start -S -W -n "$ACTIVITY" | tr -d '\r' \
+        | awk -F': ' '/^TotalTime/ { print $2 }')
+
+    local fully_drawn=-1
+    local line
+    for _ in $(seq 1 20); do
+        # Logged by ActivityManager, ActivityTaskManager on Android 10 and later.
+        line=$(adb logcat -d -s ActivityManager:I ActivityTaskManager:I | tr -d '\r' \
+            | grep "Fully drawn $ACTIVITY" || true)
+        if [[ -n "$line" ]]; then
+            fully_drawn=$(echo "$line" | tail -n 1 | sed -E 's/.*: \+(([0-9]+)s)?([0-9]+)ms.*/\2 \3/' \
+                | awk '{ if (NF == 2) print $1 * 1000 + $2; else print $1 }')
+            break
+        fi
+        sleep 0.5
+    done
+    echo "$total $fully_drawn"
+}
+
+median() {
+    sort -n | awk '{ values[NR] = $1 } END {
+        if (NR == 0) { print -1 } else if (NR % 2) { print values[(NR + 1) / 2] }
+        else { print (values[NR / 2] + values[NR / 2 + 1]) / 2 } }'
+}
+
+mkdir -p "$OUTPUT_DIR"
+results="$OUTPUT_DIR/$(date +%Y%m%d-%H%M%S).csv"
+echo "run,total_ms,fully_drawn_ms" > "$results"
+
+# Warms up the device side caches of adb and the package manager, not measured.
+launch > /dev/null
+
+for run in $(seq 1 "$RUNS"); do
+    read -r total fully_drawn < <(launch)
+    echo "$run,$total,$fully_drawn" >> "$results"
+    echo "Run $run: total ${total} ms, fully drawn ${fully_drawn} ms"
+done
+
+total_median=$(tail -n +2 "$results" | cut -d, -f2 | median)
+fully_drawn_median=$(tail -n +2 "$results" | cut -d, -f3 | { grep -v '^-1$' || true; } | median)
+echo "Median of $RUNS runs: total ${total_median} ms, fully drawn ${fully_drawn_median} ms"
+echo "Runs written to $results"
+
+if [[ -n "$HISTORY" ]]; then
+    version=$(adb shell dumpsys package "$PACKAGE" | tr -d '\r' \
+        | awk -F= '/versionName/ { print $2; exit }')
+    if [[ ! -f "$HISTORY" ]]; then
+        echo "date,version,commit,device,sdk,runs,total_median_ms,fully_drawn_median_ms" \
+            > "$HISTORY"
+    fi
+    device=$(adb shell getprop ro.product.model | tr -d '\r')
+    echo "$(date +%Y-%m-%d),$version,$(git rev-parse --short HEAD),$device,$sdk,$RUNS,$total_median,$fully_drawn_median" \
+        >> "$HISTORY"
+    echo "Appended to $HISTORY"
+fi